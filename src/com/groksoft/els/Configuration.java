@@ -29,21 +29,29 @@ public class Configuration
     public static final int RENAME_BOTH = 3;
 
     private String authorizedPassword = "";
+    private long batchSize = 0L;
+    private boolean benchmark = false;
     private String consoleLevel = "debug";  // Levels: ALL, TRACE, DEBUG, INFO, WARN, ERROR, FATAL, and OFF
+    private int continuous = 0;
     private boolean crossCheck = false;
     private String debugLevel = "debug";
+    private boolean directIO = false;
     private boolean dryRun = false;
     private boolean duplicateCheck = false;
     private String exportCollectionFilename = "";
     private String exportTextFilename = "";
+    private ArrayList<String[]> fanOuts = new ArrayList<>();
     private boolean forceCollection = false;
     private boolean forceTargets = false;
+    private String journalFilename = "";
     private boolean keepELSFiles = false;
     private String logFilename = "els.log";
+    private int maxConnections = 10;
     private String mismatchFilename = "";
     private boolean noBackFill = false;
     private String[] originalArgs;
     private boolean overwrite = false;
+    private boolean preallocate = false;
     private boolean publishOperation = true;
     private String publisherCollectionFilename = "";
     private String publisherLibrariesFileName = "";
@@ -52,13 +60,19 @@ public class Configuration
     private String remoteType = "-";
     private boolean requestCollection = false;
     private boolean requestTargets = false;
+    private int sftpChannels = 1;
+    private String sftpTuningFilename = "";
+    private long splitSize = 0L;
     private boolean specificLibrary = false;
     private String subscriberCollectionFilename = "";
     private String subscriberLibrariesFileName = "";
     private boolean renaming = false;
     private int renamingType = RENAME_NONE;
     private String targetsFilename = "";
+    private String throttleFilename = "";
+    private String transferProfilesFilename = "";
     private boolean validation = false;
+    private boolean watch = false;
     private boolean whatsNewAll = false;
     private String whatsNewFilename = "";
 
@@ -122,6 +136,21 @@ public class Configuration
         logger.info(SHORT, "  cfg: -v Validate = " + Boolean.toString(isValidation()));
         logger.info(SHORT, "  cfg: -" + (whatsNewAll ? "W" : "w") + " What's New output filename = " + getWhatsNewFilename() + (whatsNewAll ? ", show all items" : ""));
         logger.info(SHORT, "  cfg: -x Cross-check = " + Boolean.toString(isCrossCheck()));
+        logger.info(SHORT, "  cfg: --batch Batch files smaller than = " + (getBatchSize() > 0 ? Utils.formatLong(getBatchSize()) : "off"));
+        logger.info(SHORT, "  cfg: --benchmark Benchmark transfer profiles = " + Boolean.toString(isBenchmark()));
+        logger.info(SHORT, "  cfg: --continuous Publish new files quiet for = " + (isContinuous() ? getContinuous() + " seconds" : "off"));
+        logger.info(SHORT, "  cfg: --direct-io Direct I/O = " + Boolean.toString(isDirectIO()));
+        for (String[] fanOut : getFanOuts())
+            logger.info(SHORT, "  cfg: --fan-out Also subscriber = " + fanOut[0] + ", targets = " + fanOut[1]);
+        logger.info(SHORT, "  cfg: --journal Copy journal filename = " + getJournalFilename());
+        logger.info(SHORT, "  cfg: --max-connections Stty sessions served at once = " + getMaxConnections());
+        logger.info(SHORT, "  cfg: --preallocate Preallocate = " + Boolean.toString(isPreallocate()));
+        logger.info(SHORT, "  cfg: --sftp-channels Sftp channels = " + getSftpChannels());
+        logger.info(SHORT, "  cfg: --sftp-tuning Sftp server tuning filename = " + getSftpTuningFilename());
+        logger.info(SHORT, "  cfg: --split Split files larger than = " + (getSplitSize() > 0 ? Utils.formatLong(getSplitSize()) : "off"));
+        logger.info(SHORT, "  cfg: --throttle I/O limits filename = " + getThrottleFilename());
+        logger.info(SHORT, "  cfg: --transfer-profiles Transfer profiles filename = " + getTransferProfilesFilename());
+        logger.info(SHORT, "  cfg: --watch Keep listener collection current = " + Boolean.toString(isWatch()));
     }
 
     /**
@@ -144,6 +173,48 @@ public class Configuration
         this.authorizedPassword = password;
     }
 
+    /**
+     * Gets the small-file batch threshold
+     * <p>
+     * Files of a remote group smaller than this are sent as one archive.
+     *
+     * @return bytes, 0 is off
+     */
+    public long getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * Sets the small-file batch threshold
+     *
+     * @param batchSize bytes, 0 is off
+     */
+    public void setBatchSize(long batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Is this a benchmark of the transfer profiles instead of a back-up?
+     *
+     * @return true if benchmarking
+     */
+    public boolean isBenchmark()
+    {
+        return benchmark;
+    }
+
+    /**
+     * Sets benchmark
+     *
+     * @param benchmark true to benchmark the transfer profiles
+     */
+    public void setBenchmark(boolean benchmark)
+    {
+        this.benchmark = benchmark;
+    }
+
     /**
      * Gets console level
      *
@@ -164,6 +235,36 @@ public class Configuration
         this.consoleLevel = consoleLevel;
     }
 
+    /**
+     * Gets the quiet period of continuous publishing
+     *
+     * @return seconds a directory must be unchanged, 0 if off
+     */
+    public int getContinuous()
+    {
+        return continuous;
+    }
+
+    /**
+     * Sets the quiet period of continuous publishing
+     *
+     * @param continuous seconds a directory must be unchanged, 0 if off
+     */
+    public void setContinuous(int continuous)
+    {
+        this.continuous = continuous;
+    }
+
+    /**
+     * Is this a continuous publish?
+     *
+     * @return true if new files are published as they land
+     */
+    public boolean isContinuous()
+    {
+        return continuous > 0;
+    }
+
     public boolean isCrossCheck()
     {
         return crossCheck;
@@ -194,6 +295,28 @@ public class Configuration
         this.debugLevel = debugLevel;
     }
 
+    /**
+     * Is direct I/O enabled?
+     * <p>
+     * When enabled local copies and SFTP receives bypass the operating system page cache.
+     *
+     * @return true/false
+     */
+    public boolean isDirectIO()
+    {
+        return directIO;
+    }
+
+    /**
+     * Sets direct I/O mode
+     *
+     * @param directIO true/false
+     */
+    public void setDirectIO(boolean directIO)
+    {
+        this.directIO = directIO;
+    }
+
     public boolean isDuplicateCheck()
     {
         return duplicateCheck;
@@ -244,6 +367,27 @@ public class Configuration
         this.exportTextFilename = exportTextFilename;
     }
 
+    /**
+     * Gets the extra subscribers of a fan-out
+     *
+     * @return list of subscriber library or collection filename and targets filename pairs
+     */
+    public ArrayList<String[]> getFanOuts()
+    {
+        return fanOuts;
+    }
+
+    /**
+     * Adds an extra subscriber to fan-out to
+     *
+     * @param subscriberFilename the subscriber library or collection filename
+     * @param targetsFilename    the targets filename of that subscriber
+     */
+    public void addFanOut(String subscriberFilename, String targetsFilename)
+    {
+        fanOuts.add(new String[]{subscriberFilename, targetsFilename});
+    }
+
     /**
      * Gets log filename
      *
@@ -264,6 +408,26 @@ public class Configuration
         this.logFilename = logFilename;
     }
 
+    /**
+     * Gets the maximum stty sessions served at once
+     *
+     * @return the number of sessions, more wait their turn
+     */
+    public int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the maximum stty sessions served at once
+     *
+     * @param maxConnections the number of sessions, more wait their turn
+     */
+    public void setMaxConnections(int maxConnections)
+    {
+        this.maxConnections = maxConnections;
+    }
+
     /**
      * Gets mismatch filename
      *
@@ -311,6 +475,28 @@ public class Configuration
         return overwrite == true;
     }
 
+    /**
+     * Is destination preallocation enabled?
+     * <p>
+     * When enabled destination files are reserved at full size before copying.
+     *
+     * @return true/false
+     */
+    public boolean isPreallocate()
+    {
+        return preallocate;
+    }
+
+    /**
+     * Sets destination preallocation
+     *
+     * @param preallocate true/false
+     */
+    public void setPreallocate(boolean preallocate)
+    {
+        this.preallocate = preallocate;
+    }
+
     /**
      * Gets PatternLayout for log4j2
      * <p>
@@ -486,6 +672,126 @@ public class Configuration
         this.targetsFilename = targetsFilename;
     }
 
+    /**
+     * Gets journal filename
+     *
+     * @return the crash-safe copy journal filename
+     */
+    public String getJournalFilename()
+    {
+        return journalFilename;
+    }
+
+    /**
+     * Sets journal filename
+     *
+     * @param journalFilename the crash-safe copy journal filename
+     */
+    public void setJournalFilename(String journalFilename)
+    {
+        this.journalFilename = journalFilename;
+    }
+
+    /**
+     * Gets the number of sftp channels
+     *
+     * @return the size of the ClientSftp channel pool
+     */
+    public int getSftpChannels()
+    {
+        return sftpChannels;
+    }
+
+    /**
+     * Sets the number of sftp channels
+     *
+     * @param sftpChannels the size of the ClientSftp channel pool
+     */
+    public void setSftpChannels(int sftpChannels)
+    {
+        this.sftpChannels = sftpChannels;
+    }
+
+    /**
+     * Gets sftp tuning filename
+     *
+     * @return the JSON sftp server tuning filename
+     */
+    public String getSftpTuningFilename()
+    {
+        return sftpTuningFilename;
+    }
+
+    /**
+     * Sets sftp tuning filename
+     *
+     * @param sftpTuningFilename the JSON sftp server tuning filename
+     */
+    public void setSftpTuningFilename(String sftpTuningFilename)
+    {
+        this.sftpTuningFilename = sftpTuningFilename;
+    }
+
+    /**
+     * Gets the size above which remote files are sent in parallel ranges
+     *
+     * @return bytes, 0 is off
+     */
+    public long getSplitSize()
+    {
+        return splitSize;
+    }
+
+    /**
+     * Sets the size above which remote files are sent in parallel ranges
+     *
+     * @param splitSize bytes, 0 is off
+     */
+    public void setSplitSize(long splitSize)
+    {
+        this.splitSize = splitSize;
+    }
+
+    /**
+     * Gets throttle filename
+     *
+     * @return the JSON I/O limits filename
+     */
+    public String getThrottleFilename()
+    {
+        return throttleFilename;
+    }
+
+    /**
+     * Sets throttle filename
+     *
+     * @param throttleFilename the JSON I/O limits filename
+     */
+    public void setThrottleFilename(String throttleFilename)
+    {
+        this.throttleFilename = throttleFilename;
+    }
+
+    /**
+     * Gets transfer profiles filename
+     *
+     * @return the JSON sftp transfer profiles filename
+     */
+    public String getTransferProfilesFilename()
+    {
+        return transferProfilesFilename;
+    }
+
+    /**
+     * Sets transfer profiles filename
+     *
+     * @param transferProfilesFilename the JSON sftp transfer profiles filename
+     */
+    public void setTransferProfilesFilename(String transferProfilesFilename)
+    {
+        this.transferProfilesFilename = transferProfilesFilename;
+    }
+
     /**
      * Gets Main version
      *
@@ -805,6 +1111,26 @@ public class Configuration
         this.validation = validation;
     }
 
+    /**
+     * Gets the watch option, keep a listener's collection current
+     *
+     * @return true if watching
+     */
+    public boolean isWatch()
+    {
+        return watch;
+    }
+
+    /**
+     * Sets the watch option
+     *
+     * @param watch true to watch the libraries of a listener
+     */
+    public void setWatch(boolean watch)
+    {
+        this.watch = watch;
+    }
+
     /**
      * Is What's New an "all" option?
      *
@@ -858,6 +1184,23 @@ public class Configuration
                 case "--no-back-fill":
                     setNoBackFill(true);
                     break;
+                case "--batch":                                        // batch small remote files
+                    if (index <= args.length - 2)
+                    {
+                        long size = Utils.getScaledValue(args[index + 1]);
+                        if (size < 0)
+                            throw new MungerException("Error: --batch requires a size with a scale, e.g. 1MB");
+                        setBatchSize(size);
+                        ++index;
+                    }
+                    else
+                    {
+                        throw new MungerException("Error: --batch requires a size, e.g. 1MB");
+                    }
+                    break;
+                case "--benchmark":                                    // benchmark transfer profiles
+                    setBenchmark(true);
+                    break;
                 case "-c":                                             // console level
                 case "--console-level":
                     if (index <= args.length - 2)
@@ -870,6 +1213,26 @@ public class Configuration
                         throw new MungerException("Error: -c requires a level, trace, debug, info, warn, error, fatal, or off");
                     }
                     break;
+                case "--continuous":                                   // publish new files as they land
+                    if (index <= args.length - 2)
+                    {
+                        try
+                        {
+                            setContinuous(Integer.parseInt(args[index + 1]));
+                        }
+                        catch (NumberFormatException e)
+                        {
+                            throw new MungerException("Error: --continuous requires a number of seconds");
+                        }
+                        if (getContinuous() < 1)
+                            throw new MungerException("Error: --continuous must be 1 second or more");
+                        ++index;
+                    }
+                    else
+                    {
+                        throw new MungerException("Error: --continuous requires a number of seconds");
+                    }
+                    break;
                 case "-D":                                             // Dry run
                 case "--dry-run":
                     setDryRun(true);
@@ -886,6 +1249,9 @@ public class Configuration
                         throw new MungerException("Error: -d requires a level, trace, debug, info, warn, error, fatal, or off");
                     }
                     break;
+                case "--direct-io":                                    // bypass page cache for copies
+                    setDirectIO(true);
+                    break;
                 case "-e":                                             // export publisher items to flat text file
                 case "--export-text":
                     if (index <= args.length - 2)
@@ -899,6 +1265,17 @@ public class Configuration
                         throw new MungerException("Error: -e requires an export path output filename");
                     }
                     break;
+                case "--fan-out":                                      // another subscriber and its targets
+                    if (index <= args.length - 3)
+                    {
+                        addFanOut(args[index + 1], args[index + 2]);
+                        index += 2;
+                    }
+                    else
+                    {
+                        throw new MungerException("Error: --fan-out requires a subscriber filename and a targets filename");
+                    }
+                    break;
                 case "-f":                                             // log filename
                 case "--log-file":
                     if (index <= args.length - 2)
@@ -928,6 +1305,17 @@ public class Configuration
                 case "--keep":
                     setKeepELSFiles(true);
                     break;
+                case "--journal":                                      // crash-safe copy journal
+                    if (index <= args.length - 2)
+                    {
+                        setJournalFilename(args[index + 1]);
+                        ++index;
+                    }
+                    else
+                    {
+                        throw new MungerException("Error: --journal requires a journal filename");
+                    }
+                    break;
                 case "-l":                                             // publisher library to process
                 case "--library":
                     if (index <= args.length - 2)
@@ -941,6 +1329,26 @@ public class Configuration
                         throw new MungerException("Error: -l requires a publisher library name");
                     }
                     break;
+                case "--max-connections":                              // stty sessions served at once
+                    if (index <= args.length - 2)
+                    {
+                        try
+                        {
+                            setMaxConnections(Integer.parseInt(args[index + 1]));
+                        }
+                        catch (NumberFormatException e)
+                        {
+                            throw new MungerException("Error: --max-connections requires a number");
+                        }
+                        if (getMaxConnections() < 1)
+                            throw new MungerException("Error: --max-connections must be 1 or more");
+                        ++index;
+                    }
+                    else
+                    {
+                        throw new MungerException("Error: --max-connections requires a number");
+                    }
+                    break;
                 case "-m":                                             // Mismatch output filename
                 case "--mismatches":
                     if (index <= args.length - 2)
@@ -982,6 +1390,9 @@ public class Configuration
                         throw new MungerException("Error: -p requires a publisher libraries filename");
                     }
                     break;
+                case "--preallocate":                                  // reserve destination space before copying
+                    setPreallocate(true);
+                    break;
                 case "-P":                                             // publisher JSON collection items file
                 case "--publisher-collection":
                     if (index <= args.length - 2)
@@ -1034,6 +1445,51 @@ public class Configuration
                         throw new MungerException("Error: -S requires an subscriber collection filename");
                     }
                     break;
+                case "--sftp-channels":                                // parallel sftp transfers
+                    if (index <= args.length - 2)
+                    {
+                        try
+                        {
+                            setSftpChannels(Integer.parseInt(args[index + 1]));
+                        }
+                        catch (NumberFormatException e)
+                        {
+                            throw new MungerException("Error: --sftp-channels requires a number");
+                        }
+                        if (getSftpChannels() < 1)
+                            throw new MungerException("Error: --sftp-channels must be 1 or more");
+                        ++index;
+                    }
+                    else
+                    {
+                        throw new MungerException("Error: --sftp-channels requires a number");
+                    }
+                    break;
+                case "--sftp-tuning":                                  // sftp server tuning filename
+                    if (index <= args.length - 2)
+                    {
+                        setSftpTuningFilename(args[index + 1]);
+                        ++index;
+                    }
+                    else
+                    {
+                        throw new MungerException("Error: --sftp-tuning requires an sftp tuning filename");
+                    }
+                    break;
+                case "--split":                                        // split large remote files
+                    if (index <= args.length - 2)
+                    {
+                        long size = Utils.getScaledValue(args[index + 1]);
+                        if (size < 0)
+                            throw new MungerException("Error: --split requires a size with a scale, e.g. 4GB");
+                        setSplitSize(size);
+                        ++index;
+                    }
+                    else
+                    {
+                        throw new MungerException("Error: --split requires a size, e.g. 4GB");
+                    }
+                    break;
                 case "-t":                                             // targets filename
                 case "--targets":
                     if (index <= args.length - 2)
@@ -1062,6 +1518,28 @@ public class Configuration
                         throw new MungerException("Error: -T requires a targets filename");
                     }
                     break;
+                case "--throttle":                                     // I/O limits filename
+                    if (index <= args.length - 2)
+                    {
+                        setThrottleFilename(args[index + 1]);
+                        ++index;
+                    }
+                    else
+                    {
+                        throw new MungerException("Error: --throttle requires a throttle filename");
+                    }
+                    break;
+                case "--transfer-profiles":                            // sftp transfer profiles filename
+                    if (index <= args.length - 2)
+                    {
+                        setTransferProfilesFilename(args[index + 1]);
+                        ++index;
+                    }
+                    else
+                    {
+                        throw new MungerException("Error: --transfer-profiles requires a transfer profiles filename");
+                    }
+                    break;
                 case "-u":                                             // publisher duplicate check
                 case "--duplicates":
                     setDuplicateCheck(true);
@@ -1070,6 +1548,9 @@ public class Configuration
                 case "--validate":
                     setValidation(true);
                     break;
+                case "--watch":                                        // keep listener collection current
+                    setWatch(true);
+                    break;
                 case "-w":                                             // What's New output filename
                 case "--whatsnew":
                     if (index <= args.length - 2)
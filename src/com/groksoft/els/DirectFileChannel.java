@@ -0,0 +1,439 @@
+package com.groksoft.els;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileAttribute;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Page-cache-friendly FileChannel using O_DIRECT where available
+ * <p>
+ * Reads at block-aligned positions go through a channel opened with
+ * ExtendedOpenOption.DIRECT using an aligned buffer, bypassing the operating
+ * system page cache. Sequential writes of any size, such as sftp packets, are
+ * staged in the aligned buffer and written through the direct channel a whole
+ * number of blocks at a time. Only the unaligned head and tail of a run of
+ * writes go through a normal channel on the same file.
+ * <p>
+ * ExtendedOpenOption.DIRECT requires Java 10 or later and a file system that
+ * supports it. It is looked up at runtime so ELS still runs on Java 8, where
+ * open() simply returns a normal FileChannel.
+ */
+public class DirectFileChannel extends FileChannel
+{
+    public static final int BUFFER_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_ALIGNMENT = 4096;
+
+    private static Logger logger = LogManager.getLogger("applog");
+    private static OpenOption directOption = null;
+    private static boolean directChecked = false;
+
+    private int alignment;
+    private ByteBuffer aligned;
+    private FileChannel buffered;
+    private FileChannel direct;
+    private long position = 0L;
+    private long staged = -1L; // file position of the first staged byte, -1 if none
+
+    /**
+     * Instantiate with both channels already open
+     */
+    private DirectFileChannel(FileChannel direct, FileChannel buffered, int alignment)
+    {
+        this.direct = direct;
+        this.buffered = buffered;
+        this.alignment = alignment;
+    }
+
+    /**
+     * Allocate a direct ByteBuffer with an aligned memory address
+     *
+     * @param size      Size of buffer, a multiple of alignment
+     * @param alignment Alignment in bytes
+     * @return ByteBuffer aligned
+     */
+    private static ByteBuffer allocateAligned(int size, int alignment) throws IOException
+    {
+        try
+        {
+            // ByteBuffer.alignedSlice() is Java 9+, always present when DIRECT is
+            Method method = ByteBuffer.class.getMethod("alignedSlice", int.class);
+            ByteBuffer buf = (ByteBuffer) method.invoke(ByteBuffer.allocateDirect(size + alignment), alignment);
+            buf.limit(size);
+            return buf.slice();
+        }
+        catch (Exception e)
+        {
+            throw new IOException("Cannot allocate aligned buffer: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the ExtendedOpenOption.DIRECT option if this JVM has it
+     *
+     * @return OpenOption or null if not supported
+     */
+    public static synchronized OpenOption getDirectOption()
+    {
+        if (!directChecked)
+        {
+            directChecked = true;
+            try
+            {
+                Class<?> clazz = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+                directOption = (OpenOption) clazz.getField("DIRECT").get(null);
+            }
+            catch (Exception e)
+            {
+                logger.info("Direct I/O is not supported by this Java runtime, using normal I/O");
+                directOption = null;
+            }
+        }
+        return directOption;
+    }
+
+    /**
+     * Get the block size of the file store holding a path
+     *
+     * @param path The file, or if it does not exist yet the nearest existing parent is used
+     * @return int alignment in bytes
+     */
+    private static int getAlignment(Path path)
+    {
+        int alignment = DEFAULT_ALIGNMENT;
+        try
+        {
+            Path p = path.toAbsolutePath();
+            while (p != null && Files.notExists(p))
+            {
+                p = p.getParent();
+            }
+            if (p != null)
+            {
+                // FileStore.getBlockSize() is Java 10+, the same as DIRECT
+                FileStore store = Files.getFileStore(p);
+                Method method = FileStore.class.getMethod("getBlockSize");
+                long size = (Long) method.invoke(store);
+                if (size > 0 && size <= BUFFER_SIZE)
+                    alignment = (int) size;
+            }
+        }
+        catch (Exception e)
+        {
+            // use default
+        }
+        return alignment;
+    }
+
+    /**
+     * Open a file for direct I/O
+     * <p>
+     * If direct I/O is not supported by the Java runtime or the file system a normal
+     * FileChannel is returned.
+     *
+     * @param path    The file to open
+     * @param options The open options
+     * @param attrs   Any file attributes to set when created
+     * @return FileChannel either a DirectFileChannel or a normal FileChannel
+     * @throws IOException
+     */
+    public static FileChannel open(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException
+    {
+        OpenOption directOpt = getDirectOption();
+        if (directOpt != null)
+        {
+            FileChannel direct = null;
+            try
+            {
+                int alignment = getAlignment(path);
+                Set<OpenOption> directOptions = new HashSet<>(options);
+                directOptions.add(directOpt);
+                direct = FileChannel.open(path, directOptions, attrs);
+
+                // the buffered channel must not truncate what the direct channel just opened
+                Set<OpenOption> bufferedOptions = new HashSet<>(options);
+                bufferedOptions.remove(StandardOpenOption.TRUNCATE_EXISTING);
+                bufferedOptions.remove(StandardOpenOption.CREATE_NEW);
+                FileChannel buffered = FileChannel.open(path, bufferedOptions);
+
+                DirectFileChannel channel = new DirectFileChannel(direct, buffered, alignment);
+                channel.aligned = allocateAligned(BUFFER_SIZE, alignment);
+                if (options.contains(StandardOpenOption.APPEND))
+                    channel.position = buffered.size();
+                return channel;
+            }
+            catch (IOException | UnsupportedOperationException e)
+            {
+                // file system does not support O_DIRECT, e.g. tmpfs, fall back cleanly
+                if (direct != null)
+                    direct.close();
+                logger.debug("Direct I/O not available for " + path + ", using normal I/O: " + e.getMessage());
+            }
+        }
+        return FileChannel.open(path, options, attrs);
+    }
+
+    /**
+     * Write the whole blocks staged through the direct channel
+     * <p>
+     * Any partial block is moved to the start of the buffer to be completed
+     * by the next write.
+     */
+    private void flushBlocks() throws IOException
+    {
+        int blocks = (aligned.position() / alignment) * alignment;
+        if (blocks == 0)
+            return;
+        int pending = aligned.position();
+        aligned.position(0);
+        aligned.limit(blocks);
+        while (aligned.hasRemaining())
+        {
+            direct.write(aligned, staged + aligned.position());
+        }
+        aligned.limit(pending);
+        aligned.position(blocks);
+        aligned.compact();
+        staged += blocks;
+    }
+
+    /**
+     * Write everything staged, the partial block at the end through the normal channel
+     */
+    private void flushStaged() throws IOException
+    {
+        if (staged < 0)
+            return;
+        flushBlocks();
+        aligned.flip();
+        while (aligned.hasRemaining())
+        {
+            buffered.write(aligned, staged + aligned.position());
+        }
+        aligned.clear();
+        staged = -1L;
+    }
+
+    @Override
+    public synchronized void force(boolean metaData) throws IOException
+    {
+        flushStaged();
+        direct.force(metaData);
+        buffered.force(metaData);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException
+    {
+        try
+        {
+            synchronized (this)
+            {
+                flushStaged();
+            }
+        }
+        finally
+        {
+            closeChannels();
+        }
+    }
+
+    private void closeChannels() throws IOException
+    {
+        try
+        {
+            direct.close();
+        }
+        finally
+        {
+            buffered.close();
+        }
+    }
+
+    @Override
+    public synchronized FileLock lock(long pos, long size, boolean shared) throws IOException
+    {
+        flushStaged();
+        return buffered.lock(pos, size, shared);
+    }
+
+    @Override
+    public synchronized MappedByteBuffer map(MapMode mode, long pos, long size) throws IOException
+    {
+        flushStaged();
+        return buffered.map(mode, pos, size);
+    }
+
+    @Override
+    public long position() throws IOException
+    {
+        return position;
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException
+    {
+        if (newPosition < 0)
+            throw new IllegalArgumentException("negative position");
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        int count = read(dst, position);
+        if (count > 0)
+            position += count;
+        return count;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst, long pos) throws IOException
+    {
+        flushStaged();
+        if (pos % alignment != 0 || !dst.hasRemaining())
+            return buffered.read(dst, pos);
+
+        // read whole aligned blocks then hand back only what was asked for
+        int want = Math.min(dst.remaining(), aligned.capacity());
+        int length = ((want + alignment - 1) / alignment) * alignment;
+        aligned.clear();
+        aligned.limit(length);
+        int count = direct.read(aligned, pos);
+        if (count <= 0)
+            return count;
+        aligned.flip();
+        if (aligned.remaining() > want)
+            aligned.limit(want);
+        count = aligned.remaining();
+        dst.put(aligned);
+        return count;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+    {
+        long total = 0L;
+        for (int i = offset; i < offset + length; ++i)
+        {
+            int count = read(dsts[i]);
+            if (count < 0)
+                return (total > 0) ? total : -1;
+            total += count;
+            if (dsts[i].hasRemaining())
+                break;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized long size() throws IOException
+    {
+        long size = buffered.size();
+        if (staged >= 0)
+            size = Math.max(size, staged + aligned.position());
+        return size;
+    }
+
+    @Override
+    public synchronized long transferFrom(ReadableByteChannel src, long pos, long count) throws IOException
+    {
+        flushStaged();
+        return buffered.transferFrom(src, pos, count);
+    }
+
+    @Override
+    public synchronized long transferTo(long pos, long count, WritableByteChannel target) throws IOException
+    {
+        flushStaged();
+        return buffered.transferTo(pos, count, target);
+    }
+
+    @Override
+    public synchronized FileChannel truncate(long size) throws IOException
+    {
+        flushStaged();
+        buffered.truncate(size);
+        if (position > size)
+            position = size;
+        return this;
+    }
+
+    @Override
+    public synchronized FileLock tryLock(long pos, long size, boolean shared) throws IOException
+    {
+        flushStaged();
+        return buffered.tryLock(pos, size, shared);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        int count = write(src, position);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src, long pos) throws IOException
+    {
+        int total = src.remaining();
+        if (staged < 0 || pos != staged + aligned.position())
+        {
+            // not a continuation of the staged run, start a new one
+            flushStaged();
+            int head = (int) Math.min(src.remaining(), (alignment - pos % alignment) % alignment);
+            if (head > 0)
+            {
+                // up to the next block boundary
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + head);
+                while (slice.hasRemaining())
+                {
+                    buffered.write(slice, pos + head - slice.remaining());
+                }
+                src.position(src.position() + head);
+                pos += head;
+            }
+            if (!src.hasRemaining())
+                return total;
+            staged = pos;
+        }
+
+        while (src.hasRemaining())
+        {
+            int length = Math.min(src.remaining(), aligned.remaining());
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + length);
+            aligned.put(slice);
+            src.position(src.position() + length);
+            if (!aligned.hasRemaining())
+                flushBlocks();
+        }
+        return total;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+    {
+        long total = 0L;
+        for (int i = offset; i < offset + length; ++i)
+        {
+            total += write(srcs[i]);
+        }
+        return total;
+    }
+
+}
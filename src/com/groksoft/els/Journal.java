@@ -0,0 +1,493 @@
+package com.groksoft.els;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.groksoft.els.repository.Item;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Crash-safe copy journal
+ * <p>
+ * An append-only file of one JSON entry per line. A munge first journals every
+ * group and file it plans to copy, then marks the plan complete, then records
+ * each target assignment and each completed copy. Every entry is synced to disk
+ * before the work it describes continues.
+ * <p>
+ * If a run dies the next run with the same journal finds a complete plan without
+ * an end entry and resumes: the scan and compare phases are skipped, completed
+ * files are skipped, and a file that was in progress goes to the same target
+ * so a remote .els-part transfer resumes.
+ * <p>
+ * The start entry records the publisher, subscriber and targets files and the
+ * keys of both libraries. A run with others refuses to resume the journal.
+ * Each planned file records its size and modified time so a file changed since
+ * can be found before it is copied.
+ */
+public class Journal
+{
+    public static final String ASSIGNED = "assigned";
+    public static final String COMPLETED = "completed";
+    public static final String END = "end";
+    public static final String FILE = "file";
+    public static final String GROUP = "group";
+    public static final String PLANNED = "planned";
+    public static final String START = "start";
+
+    private transient Logger logger = LogManager.getLogger("applog");
+    private Map<String, String> assignments = new HashMap<>();
+    private Set<String> completed = new HashSet<>();
+    private String filename;
+    private Gson gson = new Gson();
+    private List<Group> groups = new ArrayList<>();
+    private Map<String, String> originals = new HashMap<>();
+    private FileOutputStream out = null;
+    private String publisher;
+    private String publisherKey;
+    private boolean resuming = false;
+    private Entry started = null;
+    private String subscriber;
+    private String subscriberKey;
+    private String targets;
+    private Writer writer = null;
+
+    /**
+     * One line of the journal
+     */
+    private static class Entry
+    {
+        String type;
+        String group;
+        long size;
+        Item item;
+        long modified;
+        String original;
+        String to;
+        String stamp;
+        String publisher;
+        String publisherKey;
+        String subscriber;
+        String subscriberKey;
+        String targets;
+    }
+
+    /**
+     * A planned group of files
+     */
+    public static class Group
+    {
+        public String name;
+        public long size;
+        public ArrayList<Item> items = new ArrayList<>();
+    }
+
+    private Journal()
+    {
+        // hide default constructor
+    }
+
+    /**
+     * Instantiate a journal
+     *
+     * @param filename      The journal file
+     * @param publisher     The publisher libraries or collection file
+     * @param subscriber    The subscriber libraries or collection file
+     * @param targets       The targets file
+     * @param publisherKey  The key of the publisher libraries
+     * @param subscriberKey The key of the subscriber libraries
+     */
+    public Journal(String filename, String publisher, String subscriber, String targets, String publisherKey, String subscriberKey)
+    {
+        this.filename = filename;
+        this.publisher = absolute(publisher);
+        this.subscriber = absolute(subscriber);
+        this.targets = absolute(targets);
+        this.publisherKey = publisherKey;
+        this.subscriberKey = subscriberKey;
+    }
+
+    private static String absolute(String file)
+    {
+        return (file == null || file.length() < 1) ? "" : Paths.get(file).toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * Append an entry and sync it to disk
+     */
+    private void append(Entry entry, boolean sync) throws MungerException
+    {
+        try
+        {
+            writer.write(gson.toJson(entry));
+            writer.write("\n");
+            writer.flush();
+            if (sync)
+                out.getFD().sync();
+        }
+        catch (IOException e)
+        {
+            throw new MungerException("Exception writing journal " + filename + " trace: " + Utils.getStackTrace(e));
+        }
+    }
+
+    /**
+     * Record the target path of a file before it is copied
+     *
+     * @param item The publisher item
+     * @param to   The full destination path
+     */
+    public void assigned(Item item, String to) throws MungerException
+    {
+        if (!to.equals(assignments.get(item.getFullPath())))
+        {
+            Entry entry = new Entry();
+            entry.type = ASSIGNED;
+            entry.item = item;
+            entry.to = to;
+            append(entry, true);
+            assignments.put(item.getFullPath(), to);
+        }
+    }
+
+    /**
+     * Close the journal
+     */
+    public void close()
+    {
+        try
+        {
+            if (writer != null)
+                writer.close();
+        }
+        catch (IOException e)
+        {
+            // ignore
+        }
+        writer = null;
+        out = null;
+    }
+
+    /**
+     * Record a successfully copied file
+     *
+     * @param item The publisher item
+     */
+    public void completed(Item item) throws MungerException
+    {
+        Entry entry = new Entry();
+        entry.type = COMPLETED;
+        entry.item = item;
+        append(entry, true);
+        completed.add(item.getFullPath());
+    }
+
+    /**
+     * Record the end of the run, a later run starts a new journal
+     */
+    public void end() throws MungerException
+    {
+        Entry entry = new Entry();
+        entry.type = END;
+        entry.stamp = LocalDateTime.now().toString();
+        append(entry, true);
+    }
+
+    /**
+     * Forget the target assigned to a file that changed since it was planned
+     * <p>
+     * The file is copied to a target chosen for its new size. A later resume
+     * finds the change again.
+     *
+     * @param item The publisher item
+     */
+    public void forget(Item item)
+    {
+        assignments.remove(item.getFullPath());
+    }
+
+    /**
+     * Get the target assigned to a file by an earlier run
+     *
+     * @param item The publisher item
+     * @return String full destination path or null
+     */
+    public String getAssigned(Item item)
+    {
+        return assignments.get(item.getFullPath());
+    }
+
+    /**
+     * Get the subscriber's original directory for a file when it was planned
+     * <p>
+     * Lets a resumed run back-fill without the subscriber collection.
+     *
+     * @param item The publisher item
+     * @return String directory or null
+     */
+    public String getOriginal(Item item)
+    {
+        return originals.get(item.getFullPath());
+    }
+
+    /**
+     * Get the planned groups
+     *
+     * @return List of Group in the order planned
+     */
+    public List<Group> getGroups()
+    {
+        return groups;
+    }
+
+    /**
+     * Has this file been copied?
+     *
+     * @param item The publisher item
+     * @return true if a completed entry exists
+     */
+    public boolean isCompleted(Item item)
+    {
+        return completed.contains(item.getFullPath());
+    }
+
+    /**
+     * Is this run continuing an interrupted one?
+     *
+     * @return true if a complete plan was loaded
+     */
+    public boolean isResuming()
+    {
+        return resuming;
+    }
+
+    /**
+     * Open the journal
+     * <p>
+     * An existing journal with a complete plan and no end is loaded to resume,
+     * otherwise a new journal is started.
+     *
+     * @throws MungerException if the journal to resume was planned for other files or libraries
+     */
+    public void open() throws MungerException
+    {
+        try
+        {
+            if (Files.exists(Paths.get(filename)))
+                load();
+
+            if (resuming)
+            {
+                String other = (started == null) ? "a run without its files recorded" : mismatch(started);
+                if (other != null)
+                {
+                    throw new MungerException("Journal " + filename + " is an unfinished plan for " + other +
+                            ", run with the same files to finish it or remove the journal to start again");
+                }
+
+                long files = 0L;
+                for (Group group : groups)
+                    files += group.items.size();
+                logger.info("Resuming journal " + filename + ": " + groups.size() + " groups, " + files + " files, " +
+                        completed.size() + " already completed");
+            }
+            else
+            {
+                groups.clear();
+                assignments.clear();
+                completed.clear();
+                originals.clear();
+                logger.info("Starting journal " + filename);
+            }
+
+            out = new FileOutputStream(filename, resuming);
+            writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            if (resuming)
+            {
+                // terminate any torn entry from the crash
+                writer.write("\n");
+                writer.flush();
+            }
+            else
+            {
+                Entry entry = new Entry();
+                entry.type = START;
+                entry.stamp = LocalDateTime.now().toString();
+                entry.publisher = publisher;
+                entry.subscriber = subscriber;
+                entry.targets = targets;
+                entry.publisherKey = publisherKey;
+                entry.subscriberKey = subscriberKey;
+                append(entry, true);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new MungerException("Exception opening journal " + filename + " trace: " + Utils.getStackTrace(e));
+        }
+    }
+
+    /**
+     * Load an existing journal
+     */
+    private void load() throws IOException
+    {
+        boolean planned = false;
+        boolean ended = false;
+        Group current = null;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(filename), StandardCharsets.UTF_8))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                Entry entry;
+                try
+                {
+                    entry = gson.fromJson(line, Entry.class);
+                }
+                catch (JsonSyntaxException e)
+                {
+                    // a torn last line from a crash
+                    logger.warn("Ignoring damaged journal entry: " + line);
+                    continue;
+                }
+                if (entry == null || entry.type == null)
+                    continue;
+                switch (entry.type)
+                {
+                    case START:
+                        started = entry;
+                        planned = false;
+                        ended = false;
+                        groups.clear();
+                        assignments.clear();
+                        completed.clear();
+                        originals.clear();
+                        break;
+                    case GROUP:
+                        current = new Group();
+                        current.name = entry.group;
+                        current.size = entry.size;
+                        groups.add(current);
+                        break;
+                    case FILE:
+                        entry.item.setModified(entry.modified);
+                        if (current != null)
+                            current.items.add(entry.item);
+                        if (entry.original != null)
+                            originals.put(entry.item.getFullPath(), entry.original);
+                        break;
+                    case PLANNED:
+                        planned = true;
+                        break;
+                    case ASSIGNED:
+                        assignments.put(entry.item.getFullPath(), entry.to);
+                        break;
+                    case COMPLETED:
+                        completed.add(entry.item.getFullPath());
+                        break;
+                    case END:
+                        ended = true;
+                        break;
+                }
+            }
+        }
+        resuming = planned && !ended;
+    }
+
+    /**
+     * Describe how the run of a start entry differs from this one
+     *
+     * @return String the other run, or null if it is this one
+     */
+    private String mismatch(Entry start)
+    {
+        if (!publisher.equals(start.publisher))
+            return "publisher " + start.publisher;
+        if (!subscriber.equals(start.subscriber))
+            return "subscriber " + start.subscriber;
+        if (!targets.equals(start.targets))
+            return "targets " + start.targets;
+        if (!String.valueOf(publisherKey).equals(String.valueOf(start.publisherKey)))
+            return "publisher key " + start.publisherKey;
+        if (!String.valueOf(subscriberKey).equals(String.valueOf(start.subscriberKey)))
+            return "subscriber key " + start.subscriberKey;
+        return null;
+    }
+
+    /**
+     * Add a group of files to the plan
+     *
+     * @param name      The group name
+     * @param group     The items to copy
+     * @param size      The total size of the group
+     * @param originals The subscriber's original directory of each item, or null entries
+     */
+    public void plan(String name, ArrayList<Item> group, long size, List<String> originals) throws MungerException
+    {
+        Group planned = new Group();
+        planned.name = name;
+        planned.size = size;
+
+        Entry entry = new Entry();
+        entry.type = GROUP;
+        entry.group = name;
+        entry.size = size;
+        append(entry, false);
+
+        for (int i = 0; i < group.size(); ++i)
+        {
+            Item item = group.get(i);
+            entry = new Entry();
+            entry.type = FILE;
+            entry.item = item;
+            entry.modified = modified(item);
+            entry.original = originals.get(i);
+            append(entry, false);
+            planned.items.add(item);
+            if (entry.original != null)
+                this.originals.put(item.getFullPath(), entry.original);
+        }
+        groups.add(planned);
+    }
+
+    /**
+     * Get the modified time of a file, from its scan if it has one
+     */
+    private long modified(Item item)
+    {
+        if (item.getModified() >= 0)
+            return item.getModified();
+        try
+        {
+            return Files.getLastModifiedTime(Paths.get(item.getFullPath())).toMillis();
+        }
+        catch (IOException e)
+        {
+            return -1L;
+        }
+    }
+
+    /**
+     * Mark the plan complete, from here an interrupted run can be resumed
+     */
+    public void planned() throws MungerException
+    {
+        Entry entry = new Entry();
+        entry.type = PLANNED;
+        entry.stamp = LocalDateTime.now().toString();
+        append(entry, true);
+    }
+
+}
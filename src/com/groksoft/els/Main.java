@@ -1,10 +1,18 @@
 package com.groksoft.els;
 
+import com.groksoft.els.bulk.ClientBulk;
+import com.groksoft.els.bulk.ServeBulk;
 import com.groksoft.els.repository.Repository;
+import com.groksoft.els.repository.Watcher;
 import com.groksoft.els.sftp.ClientSftp;
+import com.groksoft.els.sftp.LoopbackBenchmark;
 import com.groksoft.els.sftp.ServeSftp;
+import com.groksoft.els.sftp.SftpTunings;
+import com.groksoft.els.sftp.TransferProfiles;
 import com.groksoft.els.stty.ClientStty;
 import com.groksoft.els.stty.ServeStty;
+import com.groksoft.els.stty.SttyBenchmark;
+import com.groksoft.els.throttle.Governor;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -77,6 +85,18 @@ public class Main
             // get the named logger
             logger = LogManager.getLogger("applog");
 
+            // optional I/O limits used by scans, copies and sftp
+            if (cfg.getThrottleFilename().length() > 0)
+                Governor.getInstance().read(cfg.getThrottleFilename());
+
+            // optional sftp cipher, MAC and compression by file type
+            if (cfg.getTransferProfilesFilename().length() > 0)
+                TransferProfiles.getInstance().read(cfg.getTransferProfilesFilename());
+
+            // optional sftp server I/O service, threads and buffers
+            if (cfg.getSftpTuningFilename().length() > 0)
+                SftpTunings.getInstance().read(cfg.getSftpTuningFilename());
+
             // an execution of this program can only be configured as one of these
             switch (cfg.getRemoteFlag())
             {
@@ -85,6 +105,13 @@ public class Main
                     logger.info("+ ELS Local Process begin, version " + cfg.getPROGRAM_VERSION() + " ------------------------------------------");
                     cfg.dump();
 
+                    if (cfg.isBenchmark())
+                    {
+                        new LoopbackBenchmark(cfg).run();
+                        new SttyBenchmark().run();
+                        break;
+                    }
+
                     context.publisherRepo = readRepo(cfg, Repository.PUBLISHER, Repository.VALIDATE);
                     if (!cfg.isValidation()) // only publisher needed for a JSON file validation
                     {
@@ -109,13 +136,27 @@ public class Main
                     {
                         // start serveStty server
                         sessionThreads = new ThreadGroup("PServer");
-                        context.serveStty = new ServeStty(sessionThreads, 10, cfg, context, true);
+                        context.serveStty = new ServeStty(sessionThreads, cfg.getMaxConnections(), cfg, context, true);
                         context.serveStty.startListening(context.publisherRepo);
                         isListening = true;
 
                         // start serveSftp server
-                        context.serveSftp = new ServeSftp(context.publisherRepo, context.subscriberRepo, true);
+                        context.serveSftp = new ServeSftp(cfg, context.publisherRepo, context.subscriberRepo, true);
                         context.serveSftp.startServer();
+
+                        // start serveBulk server if enabled
+                        if (ServeBulk.isEnabled(context.publisherRepo))
+                        {
+                            context.serveBulk = new ServeBulk(cfg, context.publisherRepo, context.subscriberRepo, true);
+                            context.serveBulk.startServer();
+                        }
+
+                        // keep the collection current as the libraries change
+                        if (cfg.isWatch())
+                        {
+                            context.watcher = new Watcher(context.publisherRepo);
+                            context.watcher.startWatching();
+                        }
                     }
                     else
                     {
@@ -147,11 +188,19 @@ public class Main
                         }
 
                         // start the serveSftp client
-                        context.clientSftp = new ClientSftp(context.publisherRepo, context.subscriberRepo, true);
+                        context.clientSftp = new ClientSftp(cfg, context, context.publisherRepo, context.subscriberRepo, true);
                         if (!context.clientSftp.startClient())
                         {
                             throw new MungerException("Publisher sftp client failed to connect");
                         }
+
+                        // start the bulk client if selected, sftp is used if it cannot connect
+                        if (ClientBulk.isEnabled(context.publisherRepo, context.subscriberRepo))
+                        {
+                            context.clientBulk = new ClientBulk(cfg, context.publisherRepo, context.subscriberRepo, true);
+                            if (!context.clientBulk.startClient())
+                                context.clientBulk = null;
+                        }
                     }
                     break;
 
@@ -174,15 +223,30 @@ public class Main
                         }
 
                         // start the serveSftp client
-                        context.clientSftp = new ClientSftp(context.publisherRepo, context.subscriberRepo, true);
+                        context.clientSftp = new ClientSftp(cfg, context, context.publisherRepo, context.subscriberRepo, true);
                         if (!context.clientSftp.startClient())
                         {
                             throw new MungerException("Publisher sftp client failed to connect");
                         }
 
-                        // the Process class handles the ELS process
-                        proc = new Process(cfg, context);
-                        returnValue = proc.process();
+                        // start the bulk client if selected, sftp is used if it cannot connect
+                        if (ClientBulk.isEnabled(context.publisherRepo, context.subscriberRepo))
+                        {
+                            context.clientBulk = new ClientBulk(cfg, context.publisherRepo, context.subscriberRepo, true);
+                            if (!context.clientBulk.startClient())
+                                context.clientBulk = null;
+                        }
+
+                        if (cfg.isBenchmark())
+                        {
+                            context.clientSftp.benchmark();
+                        }
+                        else
+                        {
+                            // the Process class handles the ELS process
+                            proc = new Process(cfg, context);
+                            returnValue = proc.process();
+                        }
                     }
                     else
                     {
@@ -206,13 +270,27 @@ public class Main
                     {
                         // start serveStty server
                         sessionThreads = new ThreadGroup("SServer");
-                        context.serveStty = new ServeStty(sessionThreads, 10, cfg, context, true);
+                        context.serveStty = new ServeStty(sessionThreads, cfg.getMaxConnections(), cfg, context, true);
                         context.serveStty.startListening(context.subscriberRepo);
                         isListening = true;
 
                         // start serveSftp server
-                        context.serveSftp = new ServeSftp(context.subscriberRepo, context.publisherRepo, true);
+                        context.serveSftp = new ServeSftp(cfg, context.subscriberRepo, context.publisherRepo, true);
                         context.serveSftp.startServer();
+
+                        // start serveBulk server if enabled
+                        if (ServeBulk.isEnabled(context.subscriberRepo))
+                        {
+                            context.serveBulk = new ServeBulk(cfg, context.subscriberRepo, context.publisherRepo, true);
+                            context.serveBulk.startServer();
+                        }
+
+                        // keep the collection current as the libraries change
+                        if (cfg.isWatch())
+                        {
+                            context.watcher = new Watcher(context.subscriberRepo);
+                            context.watcher.startWatching();
+                        }
                     }
                     else
                     {
@@ -247,21 +325,36 @@ public class Main
                         }
 
                         // start the serveSftp client
-                        context.clientSftp = new ClientSftp(context.subscriberRepo, context.publisherRepo, true);
+                        context.clientSftp = new ClientSftp(cfg, context, context.subscriberRepo, context.publisherRepo, true);
                         if (!context.clientSftp.startClient())
                         {
                             throw new MungerException("Publisher sftp client failed to connect");
                         }
 
+                        // start the bulk client if selected, sftp is used if it cannot connect
+                        if (ClientBulk.isEnabled(context.subscriberRepo, context.publisherRepo))
+                        {
+                            context.clientBulk = new ClientBulk(cfg, context.subscriberRepo, context.publisherRepo, true);
+                            if (!context.clientBulk.startClient())
+                                context.clientBulk = null;
+                        }
+
                         // start serveStty server
                         sessionThreads = new ThreadGroup("SServer");
-                        context.serveStty = new ServeStty(sessionThreads, 10, cfg, context, false);
+                        context.serveStty = new ServeStty(sessionThreads, cfg.getMaxConnections(), cfg, context, false);
                         context.serveStty.startListening(context.subscriberRepo);
                         isListening = true;
 
                         // start serveSftp server
-                        context.serveSftp = new ServeSftp(context.subscriberRepo, context.publisherRepo, false);
+                        context.serveSftp = new ServeSftp(cfg, context.subscriberRepo, context.publisherRepo, false);
                         context.serveSftp.startServer();
+
+                        // start serveBulk server if enabled
+                        if (ServeBulk.isEnabled(context.subscriberRepo))
+                        {
+                            context.serveBulk = new ServeBulk(cfg, context.subscriberRepo, context.publisherRepo, false);
+                            context.serveBulk.startServer();
+                        }
                     }
                     else
                     {
@@ -429,10 +522,22 @@ public class Main
         {
             context.clientSftp.stopClient();
         }
+        if (context.clientBulk != null)
+        {
+            context.clientBulk.stopClient();
+        }
+        if (context.serveBulk != null)
+        {
+            context.serveBulk.stopServer();
+        }
         if (context.serveSftp != null)
         {
             context.serveSftp.stopServer();
         }
+        if (context.watcher != null)
+        {
+            context.watcher.requestStop();
+        }
     }
 
     /**
@@ -440,12 +545,15 @@ public class Main
      */
     public class Context
     {
+        public ClientBulk clientBulk;
         public ClientSftp clientSftp;
         public ClientStty clientStty;
         public Repository publisherRepo;
+        public ServeBulk serveBulk;
         public ServeSftp serveSftp;
         public ServeStty serveStty;
         public Repository subscriberRepo;
+        public Watcher watcher;
     }
 
 } // Main
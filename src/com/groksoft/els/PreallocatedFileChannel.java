@@ -0,0 +1,274 @@
+package com.groksoft.els;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileChannel for a destination file that has been preallocated to its full size
+ * <p>
+ * The file is allocated at the expected size before any data is written so the
+ * file system can place it in as few pieces as possible, and so a full disk is
+ * reported before the copy starts instead of part way through.
+ * <p>
+ * When closed the file is truncated to the highest byte actually written. An
+ * interrupted transfer therefore leaves a partial file of the correct length
+ * that a later run may resume.
+ */
+public class PreallocatedFileChannel extends FileChannel
+{
+    public static final long MINIMUM_SIZE = 1024L * 1024L; // smaller files are not worth preallocating
+    public static final String[] FALLOCATE = {"/usr/bin/fallocate", "/bin/fallocate"};
+
+    private static Logger logger = LogManager.getLogger("applog");
+    private static String fallocate = null;
+    private static boolean fallocateChecked = false;
+
+    private FileChannel channel;
+    private long written = 0L;
+
+    /**
+     * Instantiate with an open channel
+     */
+    private PreallocatedFileChannel(FileChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    /**
+     * Allocate the blocks of a file with the fallocate utility
+     *
+     * @return true if allocated, false if fallocate is not available or failed
+     */
+    private static boolean fallocate(Path path, long size)
+    {
+        String command = getFallocate();
+        if (command == null)
+            return false;
+        try
+        {
+            java.lang.Process process = new ProcessBuilder(command, "-l", Long.toString(size), path.toString())
+                    .redirectErrorStream(true).redirectOutput(new File("/dev/null")).start();
+            if (!process.waitFor(30, TimeUnit.SECONDS))
+            {
+                process.destroy();
+                return false;
+            }
+            return process.exitValue() == 0;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Get the fallocate utility, Linux only
+     *
+     * @return String path or null if not available
+     */
+    private static synchronized String getFallocate()
+    {
+        if (!fallocateChecked)
+        {
+            fallocateChecked = true;
+            if (System.getProperty("os.name", "").toLowerCase().startsWith("linux"))
+            {
+                for (String candidate : FALLOCATE)
+                {
+                    if (Files.isExecutable(Paths.get(candidate)))
+                    {
+                        fallocate = candidate;
+                        break;
+                    }
+                }
+            }
+            if (fallocate == null)
+                logger.info("fallocate is not available, preallocated files are extended to their size instead");
+        }
+        return fallocate;
+    }
+
+    /**
+     * Preallocate an open destination channel
+     * <p>
+     * Java does not have a portable fallocate() so on Linux the fallocate
+     * utility allocates the blocks, one process per file of MINIMUM_SIZE or
+     * more. Elsewhere, or if the file system does not support it, the file is
+     * extended to the full size. On NTFS that allocates the clusters; on file
+     * systems that create sparse files only the free space check is gained.
+     *
+     * @param channel The open, empty destination channel
+     * @param path    The destination path, used to check free space
+     * @param size    The expected final size
+     * @return FileChannel wrapper that truncates to the data written when closed
+     * @throws IOException if there is not enough space
+     */
+    public static FileChannel preallocate(FileChannel channel, Path path, long size) throws IOException
+    {
+        FileStore store = Files.getFileStore(path);
+        long usable = store.getUsableSpace();
+        long current = channel.size();
+        if (size - current > usable)
+        {
+            throw new IOException("Insufficient space to preallocate " + Utils.formatLong(size) +
+                    " for " + path + ", " + Utils.formatLong(usable) + " available");
+        }
+        if (size > current && !fallocate(path, size))
+        {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.write(last, size - 1);
+        }
+        return new PreallocatedFileChannel(channel);
+    }
+
+    /**
+     * Track the highest byte written
+     */
+    private void track(long end)
+    {
+        if (end > written)
+            written = end;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException
+    {
+        channel.force(metaData);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException
+    {
+        try
+        {
+            if (channel.size() > written)
+                channel.truncate(written);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    @Override
+    public FileLock lock(long pos, long size, boolean shared) throws IOException
+    {
+        return channel.lock(pos, size, shared);
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long pos, long size) throws IOException
+    {
+        return channel.map(mode, pos, size);
+    }
+
+    @Override
+    public long position() throws IOException
+    {
+        return channel.position();
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException
+    {
+        channel.position(newPosition);
+        return this;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        return channel.read(dst);
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long pos) throws IOException
+    {
+        return channel.read(dst, pos);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+    {
+        return channel.read(dsts, offset, length);
+    }
+
+    @Override
+    public long size() throws IOException
+    {
+        return channel.size();
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long pos, long count) throws IOException
+    {
+        long n = channel.transferFrom(src, pos, count);
+        track(pos + n);
+        return n;
+    }
+
+    @Override
+    public long transferTo(long pos, long count, WritableByteChannel target) throws IOException
+    {
+        return channel.transferTo(pos, count, target);
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException
+    {
+        channel.truncate(size);
+        if (written > size)
+            written = size;
+        return this;
+    }
+
+    @Override
+    public FileLock tryLock(long pos, long size, boolean shared) throws IOException
+    {
+        return channel.tryLock(pos, size, shared);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        int n = channel.write(src);
+        track(channel.position());
+        return n;
+    }
+
+    @Override
+    public int write(ByteBuffer src, long pos) throws IOException
+    {
+        int n = channel.write(src, pos);
+        track(pos + n);
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+    {
+        long n = channel.write(srcs, offset, length);
+        track(channel.position());
+        return n;
+    }
+
+}
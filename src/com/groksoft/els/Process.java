@@ -2,8 +2,11 @@ package com.groksoft.els;
 
 import com.groksoft.els.repository.Item;
 import com.groksoft.els.repository.Library;
+import com.groksoft.els.repository.Repository;
+import com.groksoft.els.repository.Watcher;
 import com.groksoft.els.storage.Storage;
 import com.groksoft.els.storage.Target;
+import com.groksoft.els.throttle.Governor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.Marker;
@@ -14,13 +17,33 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ELS Process
  */
 public class Process
 {
+    public static final long KEEP_ALIVE = 60000L; // ms between pings of an idle subscriber, it times out at 120 seconds
+    public static final long STOP_WAIT = 5000L; // ms Ctrl-C waits for a continuous publish to stop
+
     private Configuration cfg = null;
     private Main.Context context;
     private int copyCount = 0;
@@ -30,16 +53,42 @@ public class Process
     private long grandTotalItems = 0L;
     private long grandTotalOriginalLocation = 0L;
     private long grandTotalSize = 0L;
+    private volatile Map<String, Long> prefetchedSpace = null;
     private ArrayList<String> ignoredList = new ArrayList<>();
     private boolean isInitialized = false;
+    private Journal journal = null;
+    private BlockingQueue<Item> landed = null;
     private boolean justScannedPublisher = false;
+    private volatile boolean receivedTargets = false;
     private String lastGroupName = "";
     private transient Logger logger = LogManager.getLogger("applog");
     private Storage storageTargets = null;
+    private volatile boolean stopping = false;
     private long totalDirectories = 0;
     private long totalItems = 0;
+    private String whatsNewLibrary = "";
+    private String whatsNewPath = "";
     private long whatsNewTotal = 0;
 
+    /**
+     * A subscriber of a fan-out and the files of the current group it is missing
+     */
+    private static class Destination
+    {
+        int copies = 0;
+        int errors = 0;
+        ArrayList<Item> missing = new ArrayList<>();
+        Repository repo;
+        long size = 0L;
+        Storage targets;
+
+        Destination(Repository repo, Storage targets)
+        {
+            this.repo = repo;
+            this.targets = targets;
+        }
+    }
+
     /**
      * Hide default constructor
      */
@@ -57,6 +106,30 @@ public class Process
         this.context = ctxt;
     }
 
+    /**
+     * Write the totals to and close the -m mismatch and -w What's New output files
+     *
+     * @param mismatchFile the mismatch file, or null
+     * @param whatsNewFile the What's New file, or null
+     */
+    private void closeOutputs(PrintWriter mismatchFile, PrintWriter whatsNewFile)
+    {
+        if (mismatchFile != null)
+        {
+            mismatchFile.println("----------------------------------------------------");
+            mismatchFile.println("Total items: " + grandTotalItems);
+            mismatchFile.println("Total size : " + Utils.formatLong(grandTotalSize));
+            mismatchFile.close();
+        }
+        if (whatsNewFile != null)
+        {
+            whatsNewFile.println("    --------------------------------");
+            whatsNewFile.println("    Total for " + whatsNewLibrary + " = " + whatsNewTotal);
+            whatsNewFile.println("    ================================");
+            whatsNewFile.close();
+        }
+    }
+
     /**
      * Copy a file, local or remote
      *
@@ -70,7 +143,8 @@ public class Process
         {
             if (cfg.isRemoteSession())
             {
-                context.clientSftp.transmitFile(from, to, overwrite);
+                if (!context.clientSftp.transmitFile(from, to, overwrite))
+                    return false;
             }
             else
             {
@@ -81,7 +155,16 @@ public class Process
                 {
                     f.getParentFile().mkdirs();
                 }
-                Files.copy(fromPath, toPath, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING, LinkOption.NOFOLLOW_LINKS);
+                if (cfg.isDirectIO() || cfg.isPreallocate() || Governor.getInstance().isActive())
+                {
+                    // bypass the page cache so a backup does not evict media being streamed,
+                    // reserve the whole file up-front to reduce fragmentation, and/or throttle
+                    Utils.copyFile(fromPath, toPath, cfg.isDirectIO(), cfg.isPreallocate());
+                }
+                else
+                {
+                    Files.copy(fromPath, toPath, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING, LinkOption.NOFOLLOW_LINKS);
+                }
             }
         }
         catch (UnsupportedOperationException e)
@@ -107,6 +190,49 @@ public class Process
         return true;
     }
 
+    /**
+     * Copy a batch of small files to a remote subscriber
+     * <p>
+     * Any file the subscriber did not unpack is copied individually.
+     *
+     * @param batch     the items
+     * @param dests     the full to path of each item
+     * @param overwrite whether to overwrite any existing target file
+     */
+    private void copyBatch(ArrayList<Item> batch, ArrayList<String> dests, boolean overwrite) throws MungerException
+    {
+        boolean[] sent = new boolean[batch.size()];
+        if (batch.size() > 1)
+        {
+            ArrayList<String> srcs = new ArrayList<>();
+            for (Item item : batch)
+                srcs.add(item.getFullPath());
+            logger.info("  > Sending batch of " + batch.size() + " small files");
+            sent = context.clientSftp.transmitBatch(srcs, dests);
+            int missed = 0;
+            for (boolean unpacked : sent)
+            {
+                if (!unpacked)
+                    ++missed;
+            }
+            if (missed > 0)
+                logger.warn("  ! Batch did not deliver " + missed + " of " + batch.size() + " files, copying them individually");
+        }
+
+        for (int i = 0; i < batch.size(); ++i)
+        {
+            Item item = batch.get(i);
+            if (!sent[i] && !copyFile(item.getFullPath(), dests.get(i), overwrite))
+            {
+                ++errorCount;
+            }
+            else if (journal != null)
+            {
+                journal.completed(item);
+            }
+        }
+    }
+
     /**
      * Copy group of files
      * <p>
@@ -135,6 +261,16 @@ public class Process
         {
             if (group.size() > 0)
             {
+                // small files of a remote group are sent as one batch
+                boolean batching = cfg.getBatchSize() > 0 && cfg.isRemoteSession() && context.clientSftp.canBatch();
+                ArrayList<Item> batch = new ArrayList<>();
+                ArrayList<String> batchDests = new ArrayList<>();
+
+                // with more than one sftp channel remote files are sent in parallel
+                boolean parallel = cfg.isRemoteSession() && context.clientSftp.getChannels() > 1;
+                ArrayList<Item> pending = new ArrayList<>();
+                ArrayList<Future<Boolean>> transfers = new ArrayList<>();
+
                 for (Item groupItem : group)
                 {
                     if (cfg.isDryRun())
@@ -143,25 +279,59 @@ public class Process
                         ++copyCount;
                         logger.info("  > Would copy #" + copyCount + " " + groupItem.getFullPath());
                     }
+                    else if (journal != null && journal.isCompleted(groupItem))
+                    {
+                        logger.debug("  = Journal has completed " + groupItem.getFullPath());
+                    }
+                    else if (journal != null && !recheck(groupItem))
+                    {
+                        ++errorCount;
+                    }
                     else
                     {
-                        String targetPath = getTarget(groupItem, groupItem.getLibrary(), totalSize);
+                        // an interrupted copy goes back to the same place so it can resume
+                        String to = (journal != null) ? journal.getAssigned(groupItem) : null;
+                        String targetPath = (to != null) ? to : getTarget(groupItem, groupItem.getLibrary(), totalSize);
                         if (targetPath != null)
                         {
                             // copy item(s) to targetPath
                             ++copyCount;
 
-                            String to = targetPath + context.subscriberRepo.getWriteSeparator();
-                            to += context.publisherRepo.normalize(context.subscriberRepo.getLibraryData().libraries.flavor, groupItem.getItemPath());
+                            if (to == null)
+                            {
+                                to = targetPath + context.subscriberRepo.getWriteSeparator();
+                                to += context.publisherRepo.normalize(context.subscriberRepo.getLibraryData().libraries.flavor, groupItem.getItemPath());
+                            }
+                            if (journal != null)
+                                journal.assigned(groupItem, to);
+
+                            if (batching && groupItem.getSize() < cfg.getBatchSize())
+                            {
+                                String msg = "  > Batching #" + copyCount + " " + groupItem.getFullPath() + " to " + to;
+                                logger.info(msg);
+                                response += (msg + "\r\n");
+                                batch.add(groupItem);
+                                batchDests.add(to);
+                                continue;
+                            }
 
                             String msg = "  > Copying #" + copyCount + " " + groupItem.getFullPath() + " to " + to;
                             logger.info(msg);
                             response += (msg + "\r\n");
 
-                            if (!copyFile(groupItem.getFullPath(), to, overwrite))
+                            if (parallel)
+                            {
+                                pending.add(groupItem);
+                                transfers.add(context.clientSftp.transmitFileAsync(groupItem.getFullPath(), to, overwrite));
+                            }
+                            else if (!copyFile(groupItem.getFullPath(), to, overwrite))
                             {
                                 ++errorCount;
                             }
+                            else if (journal != null)
+                            {
+                                journal.completed(groupItem);
+                            }
                         }
                         else
                         {
@@ -172,6 +342,20 @@ public class Process
                         }
                     }
                 }
+
+                if (batch.size() > 0)
+                {
+                    copyBatch(batch, batchDests, overwrite);
+                }
+
+                // wait for any parallel transfers of this group
+                for (int i = 0; i < transfers.size(); ++i)
+                {
+                    if (!transfers.get(i).get())
+                        ++errorCount;
+                    else if (journal != null)
+                        journal.completed(pending.get(i));
+                }
             }
             grandTotalItems = grandTotalItems + group.size();
             group.clear();
@@ -189,6 +373,34 @@ public class Process
         return response;
     }
 
+    /**
+     * Copy the groups planned in the journal
+     * <p>
+     * Used after a munge has planned all groups and when resuming an interrupted
+     * run. The journal is ended when everything was copied without error.
+     */
+    private void copyJournal()
+    {
+        try
+        {
+            if (!journal.isResuming())
+                journal.planned();
+            for (Journal.Group planned : journal.getGroups())
+            {
+                currentGroupName = planned.name;
+                copyGroup(new ArrayList<>(planned.items), planned.size, cfg.isOverwrite());
+            }
+            if (!fault && errorCount == 0)
+                journal.end();
+        }
+        catch (Exception e)
+        {
+            fault = true;
+            ++errorCount;
+            logger.error("Exception " + e.getMessage() + " trace: " + Utils.getStackTrace(e));
+        }
+    }
+
     /**
      * Check publisher collection data for duplicates
      */
@@ -279,6 +491,245 @@ public class Process
         context.publisherRepo.exportText();
     }
 
+    /**
+     * Munge one publisher to several local subscribers at once
+     * <p>
+     * The -s subscriber and each --fan-out subscriber are compared in one pass
+     * over the publisher items. Each file of a group is read once and written
+     * to every subscriber missing it.
+     *
+     * @throws Exception if a subscriber or its targets cannot be read
+     */
+    private void fanOut() throws Exception
+    {
+        Marker SHORT = MarkerManager.getMarker("SHORT");
+
+        if (cfg.isRemoteSession())
+            throw new MungerException("--fan-out subscribers are local, it cannot be used with -r");
+        if (journal != null || cfg.isContinuous())
+            throw new MungerException("--fan-out cannot be used with --journal or --continuous");
+
+        List<Destination> destinations = new ArrayList<>();
+        destinations.add(new Destination(context.subscriberRepo, storageTargets));
+        for (String[] fanOut : cfg.getFanOuts())
+        {
+            Repository repo = new Repository(cfg);
+            repo.read(fanOut[0]);
+            Storage targets = new Storage();
+            targets.read(fanOut[1], repo.getLibraryData().libraries.flavor);
+            targets.validate();
+            destinations.add(new Destination(repo, targets));
+        }
+
+        String header = "Munging " + context.publisherRepo.getLibraryData().libraries.description + " to " + destinations.size() + " subscribers";
+        PrintWriter mismatchFile = null;
+        PrintWriter whatsNewFile = null;
+        if (cfg.getMismatchFilename().length() > 0)
+            mismatchFile = openOutput(cfg.getMismatchFilename(), "Mismatches", header);
+        if (cfg.getWhatsNewFilename().length() > 0)
+            whatsNewFile = openOutput(cfg.getWhatsNewFilename(), "What's New", "What's New");
+
+        logger.info(header);
+        for (Destination destination : destinations)
+            logger.info("  " + destination.repo.getLibraryData().libraries.description);
+
+        ArrayList<Item> group = new ArrayList<>();
+        try
+        {
+            for (Library pubLib : context.publisherRepo.getLibraryData().libraries.bibliography)
+            {
+                if (cfg.isSpecificLibrary() && !cfg.isSelectedLibrary(pubLib.name))
+                {
+                    logger.info("Skipping library: " + pubLib.name);
+                    continue;
+                }
+
+                // the subscribers of this library
+                List<Destination> subscribed = new ArrayList<>();
+                for (Destination destination : destinations)
+                {
+                    Library subLib = destination.repo.getLibrary(pubLib.name);
+                    if (subLib == null)
+                        continue;
+                    if (subLib.items == null || subLib.items.size() < 1)
+                        destination.repo.scan(subLib.name);
+                    subscribed.add(destination);
+                }
+                if (subscribed.isEmpty())
+                    continue;
+
+                if (pubLib.items == null || pubLib.items.size() < 1)
+                    pubLib = context.publisherRepo.scan(pubLib.name);
+                logger.info("Munge " + pubLib.name + ": " + pubLib.items.size() + " publisher items with " + subscribed.size() + " subscribers");
+
+                for (Item item : pubLib.items)
+                {
+                    if (context.publisherRepo.ignore(item))
+                    {
+                        logger.debug("  ! Ignoring " + item.getItemPath());
+                        ignoredList.add(item.getFullPath());
+                        continue;
+                    }
+                    if (item.isDirectory())
+                    {
+                        ++totalDirectories;
+                        continue;
+                    }
+                    ++totalItems;
+
+                    if (isNewGrouping(item))
+                    {
+                        fanOutGroup(group, destinations);
+                        if (whatsNewFile != null)
+                            whatsNewFile.flush();
+                        if (mismatchFile != null)
+                            mismatchFile.flush();
+                    }
+
+                    String itemPath = Utils.pipe(context.publisherRepo, item.getItemPath());
+                    boolean needed = false;
+                    for (Destination destination : subscribed)
+                    {
+                        if (destination.repo.hasItem(item, itemPath) == null)
+                        {
+                            logger.info("  + Subscriber " + destination.repo.getLibraryData().libraries.description + " missing " + item.getItemPath());
+                            destination.missing.add(item);
+                            destination.size += item.getSize();
+                            needed = true;
+                        }
+                    }
+                    if (needed)
+                    {
+                        if (whatsNewFile != null)
+                            whatsNew(whatsNewFile, item);
+                        if (mismatchFile != null)
+                            mismatchFile.println(item.getFullPath());
+                        group.add(item);
+                    }
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            fault = true;
+            ++errorCount;
+            logger.error("Exception " + e.getMessage() + " trace: " + Utils.getStackTrace(e));
+        }
+        finally
+        {
+            try
+            {
+                fanOutGroup(group, destinations); // the last group
+            }
+            catch (Exception e)
+            {
+                fault = true;
+                ++errorCount;
+                logger.error("Exception " + e.getMessage() + " trace: " + Utils.getStackTrace(e));
+            }
+            closeOutputs(mismatchFile, whatsNewFile);
+        }
+
+        logger.info(SHORT, "# Subscribers      : " + destinations.size());
+        if (ignoredList.size() > 0)
+            logger.info(SHORT, "# Ignored files    : " + ignoredList.size());
+        logger.info(SHORT, "# Directories      : " + totalDirectories);
+        logger.info(SHORT, "# Files            : " + totalItems);
+        logger.info(SHORT, "# Copies           : " + copyCount + ((!cfg.isDryRun()) ? ", " + grandTotalOriginalLocation + " of which went to original locations" : ""));
+        for (Destination destination : destinations)
+            logger.info(SHORT, "#   " + destination.repo.getLibraryData().libraries.description + " : " + destination.copies +
+                    (destination.errors > 0 ? ", " + destination.errors + " errors" : ""));
+        logger.info(SHORT, "# Errors           : " + errorCount);
+        logger.info(SHORT, "# Items processed  : " + grandTotalItems);
+        logger.info(SHORT, "# Total size read  : " + Utils.formatLong(grandTotalSize));
+    }
+
+    /**
+     * Copy a fan-out group, each file read once for all subscribers missing it
+     *
+     * @param group        the files missing from one or more subscribers, cleared when done
+     * @param destinations the subscribers, their missing files are cleared when done
+     */
+    private void fanOutGroup(ArrayList<Item> group, List<Destination> destinations) throws Exception
+    {
+        if (group.isEmpty())
+            return;
+
+        // where each subscriber puts the group
+        Map<Item, List<Path>> tos = new IdentityHashMap<>();
+        Map<Item, List<Destination>> whose = new IdentityHashMap<>();
+        for (Destination destination : destinations)
+        {
+            for (Item item : destination.missing)
+            {
+                String target = getTarget(item, item.getLibrary(), destination.size, destination.repo, destination.targets);
+                if (target == null)
+                {
+                    ++errorCount;
+                    ++destination.errors;
+                    logger.error("    No space on any target of " + destination.repo.getLibraryData().libraries.description + " for " +
+                            item.getLibrary() + " that is " + destination.size / (1024 * 1024) + " MB");
+                    break; // the other subscribers still get the group
+                }
+                String to = target + destination.repo.getWriteSeparator() +
+                        context.publisherRepo.normalize(destination.repo.getLibraryData().libraries.flavor, item.getItemPath());
+                tos.computeIfAbsent(item, key -> new ArrayList<>()).add(Paths.get(to));
+                whose.computeIfAbsent(item, key -> new ArrayList<>()).add(destination);
+            }
+            destination.missing.clear();
+            destination.size = 0L;
+        }
+
+        for (Item item : group)
+        {
+            List<Path> paths = tos.get(item);
+            if (paths == null)
+                continue;
+            List<Destination> owners = whose.get(item);
+            for (Path path : paths)
+            {
+                ++copyCount;
+                logger.info("  > " + (cfg.isDryRun() ? "Would copy #" : "Copying #") + copyCount + " " + item.getFullPath() + " to " + path);
+            }
+            if (cfg.isDryRun())
+            {
+                for (Destination destination : owners)
+                    ++destination.copies;
+                continue;
+            }
+
+            // each subscriber succeeds or fails on its own, a failed copy is removed
+            List<IOException> failures;
+            try
+            {
+                failures = Utils.copyFile(Paths.get(item.getFullPath()).toRealPath(), paths, cfg.isDirectIO(), cfg.isPreallocate());
+            }
+            catch (IOException e)
+            {
+                failures = new ArrayList<>(Collections.nCopies(paths.size(), e)); // the source could not be read
+            }
+            boolean copied = false;
+            for (int i = 0; i < paths.size(); ++i)
+            {
+                if (failures.get(i) != null)
+                {
+                    ++errorCount;
+                    ++owners.get(i).errors;
+                    logger.error("Copy problem IOException: " + failures.get(i).getMessage() + " copying to " + paths.get(i));
+                }
+                else
+                {
+                    ++owners.get(i).copies;
+                    copied = true;
+                }
+            }
+            if (copied)
+                grandTotalSize += item.getSize();
+        }
+        grandTotalItems += group.size();
+        group.clear();
+    }
+
     public int getCopyCount()
     {
         return copyCount;
@@ -288,7 +739,7 @@ public class Process
     {
         String location = cfg.getTargetsFilename();
 
-        if (cfg.isRemoteSession() && cfg.isRequestTargets())
+        if (cfg.isRemoteSession() && cfg.isRequestTargets() && !receivedTargets)
         {
             // request target data from remote subscriber
             location = context.clientStty.retrieveRemoteData(location, "targets");
@@ -303,6 +754,35 @@ public class Process
             storageTargets.validate();
     }
 
+    /**
+     * Get the names of the libraries the subscriber library file lists
+     *
+     * @return List of library names, selected with -l if used
+     */
+    private List<String> getSubscribedLibraries()
+    {
+        List<String> names = new ArrayList<>();
+        for (Library subLib : context.subscriberRepo.getLibraryData().libraries.bibliography)
+        {
+            if (!cfg.isSpecificLibrary() || cfg.isSelectedLibrary(subLib.name))
+                names.add(subLib.name);
+        }
+        return names;
+    }
+
+    /**
+     * Get the key of a repository's libraries
+     *
+     * @param repo The repository, may be null
+     * @return String key, empty if none
+     */
+    private String key(Repository repo)
+    {
+        if (repo == null || repo.getLibraryData() == null || repo.getLibraryData().libraries.key == null)
+            return "";
+        return repo.getLibraryData().libraries.key;
+    }
+
     /**
      * Gets a subscriber target
      * <p>
@@ -319,6 +799,22 @@ public class Process
      * @throws MungerException the els exception
      */
     public String getTarget(Item item, String library, long size) throws Exception
+    {
+        return getTarget(item, library, size, context.subscriberRepo, storageTargets);
+    }
+
+    /**
+     * Gets a target of a given subscriber, see getTarget(Item, String, long)
+     *
+     * @param item       the item
+     * @param library    the publisher library.definition.name
+     * @param size       the total size of item(s) to be copied
+     * @param subscriber the subscriber repository
+     * @param targets    the storage targets of the subscriber
+     * @return the target
+     * @throws MungerException the els exception
+     */
+    private String getTarget(Item item, String library, long size, Repository subscriber, Storage targets) throws Exception
     {
         String target = null;
         boolean allFull = true;
@@ -326,7 +822,7 @@ public class Process
         long space = 0L;
         long minimum = 0L;
 
-        Target storage = storageTargets.getLibraryTarget(library);
+        Target storage = targets.getLibraryTarget(library);
         if (storage != null)
         {
             minimum = Utils.getScaledValue(storage.minimum);
@@ -336,16 +832,41 @@ public class Process
             minimum = Storage.minimumBytes;
         }
 
+        String path = null;
+        if (!cfg.isNoBackFill())
+        {
+            if (journal != null && journal.isResuming())
+                path = journal.getOriginal(item);
+            else
+                path = subscriber.hasDirectory(library, Utils.pipe(context.publisherRepo, item.getItemPath()));
+        }
+
+        // ask a pipelined remote subscriber for the space of every location at once,
+        // otherwise each is asked in turn until one fits
+        Map<String, Long> remoteSpace = null;
+        if (cfg.isRemoteSession() && context.clientStty.isPipelined())
+        {
+            List<String> locations = new ArrayList<>();
+            if (path != null)
+                locations.add(path);
+            if (storage != null)
+                locations.addAll(Arrays.asList(storage.locations));
+            // space asked for during the scan holds until something is copied
+            if (copyCount == 0 && prefetchedSpace != null && prefetchedSpace.keySet().containsAll(locations))
+                remoteSpace = prefetchedSpace;
+            else
+                remoteSpace = context.clientStty.availableSpace(locations);
+        }
+
         // see if there is an "original" directory the new content will fit in
         if (!cfg.isNoBackFill())
         {
-            String path = context.subscriberRepo.hasDirectory(library, Utils.pipe(context.publisherRepo, item.getItemPath()));
             if (path != null)
             {
                 if (cfg.isRemoteSession())
                 {
                     // remote subscriber
-                    space = context.clientStty.availableSpace(path);
+                    space = (remoteSpace != null) ? remoteSpace.get(path) : context.clientStty.availableSpace(path);
                 }
                 else
                 {
@@ -382,7 +903,7 @@ public class Process
                 if (cfg.isRemoteSession())
                 {
                     // remote subscriber
-                    space = context.clientStty.availableSpace(candidate);
+                    space = (remoteSpace != null) ? remoteSpace.get(candidate) : context.clientStty.availableSpace(candidate);
                 }
                 else
                 {
@@ -451,16 +972,51 @@ public class Process
             // get -s Subscriber libraries
             if (cfg.getSubscriberLibrariesFileName().length() > 0)
             {
-                if (cfg.isRemoteSession() && cfg.isRequestCollection())
+                if (journal != null && journal.isResuming())
                 {
-                    // request complete collection data from remote subscriber
-                    String location = context.clientStty.retrieveRemoteData(cfg.getSubscriberLibrariesFileName(), "collection");
-                    if (location == null || location.length() < 1)
-                        throw new MungerException("Could not retrieve remote collections file");
+                    logger.info("Resuming from journal, subscriber collection not needed");
+                }
+                else if (cfg.isRemoteSession() && cfg.isRequestCollection())
+                {
+                    // the subscriber scans and sends while the publisher scans, join before comparing
+                    List<String> subscribed = getSubscribedLibraries();
+                    ExecutorService retriever = Executors.newSingleThreadExecutor(runnable ->
+                    {
+                        Thread thread = new Thread(runnable, "Process.retrieve");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    Future<String> remote = retriever.submit(this::retrieveRemote);
+                    retriever.shutdown();
+
+                    long start = System.currentTimeMillis();
+                    long scanned;
+                    String location;
+                    try
+                    {
+                        scanPublisher(subscribed);
+                        scanned = System.currentTimeMillis();
+                        location = remote.get();
+                    }
+                    catch (ExecutionException e)
+                    {
+                        throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                    }
+                    finally
+                    {
+                        // a failed scan must not leave the retrieval using the stty connection during shutdown
+                        if (!remote.isDone())
+                        {
+                            remote.cancel(true);
+                            if (!retriever.awaitTermination(2 * KEEP_ALIVE, TimeUnit.MILLISECONDS))
+                                logger.warn("Retrieval of subscriber data did not stop");
+                        }
+                    }
+                    logger.info("Publisher scan took " + (scanned - start) + " ms, subscriber data " +
+                            (System.currentTimeMillis() - start) + " ms, overlapped");
+
                     cfg.setSubscriberLibrariesFileName(""); // clear so the collection file will be used
                     cfg.setSubscriberCollectionFilename(location);
-
-                    context.subscriberRepo.read(cfg.getSubscriberCollectionFilename());
                 }
             }
 
@@ -558,8 +1114,6 @@ public class Process
         PrintWriter mismatchFile = null;
         PrintWriter whatsNewFile = null;
         PrintWriter targetFile = null;
-        String currentWhatsNew = "";
-        String currLib = "";
         ArrayList<Item> group = new ArrayList<>();
         long totalSize = 0;
         Marker SHORT = MarkerManager.getMarker("SHORT");
@@ -571,39 +1125,13 @@ public class Process
         // setup the -m mismatch output file
         if (cfg.getMismatchFilename().length() > 0)
         {
-            try
-            {
-                mismatchFile = new PrintWriter(cfg.getMismatchFilename());
-                mismatchFile.println(header);
-                logger.info("Writing to Mismatches file " + cfg.getMismatchFilename());
-            }
-            catch (FileNotFoundException fnf)
-            {
-                fault = true;
-                ++errorCount;
-                String s = "File not found exception for Mismatches output file " + cfg.getMismatchFilename();
-                logger.error(s);
-                throw new MungerException(s);
-            }
+            mismatchFile = openOutput(cfg.getMismatchFilename(), "Mismatches", header);
         }
 
         // setup the -w What's New output file
         if (cfg.getWhatsNewFilename().length() > 0)
         {
-            try
-            {
-                whatsNewFile = new PrintWriter(cfg.getWhatsNewFilename());
-                whatsNewFile.println("What's New");
-                logger.info("Writing to What's New file " + cfg.getWhatsNewFilename());
-            }
-            catch (FileNotFoundException fnf)
-            {
-                fault = true;
-                ++errorCount;
-                String s = "File not found exception for What's New output file " + cfg.getWhatsNewFilename();
-                logger.error(s);
-                throw new MungerException(s);
-            }
+            whatsNewFile = openOutput(cfg.getWhatsNewFilename(), "What's New", "What's New");
         }
 
         logger.info(header);
@@ -624,7 +1152,7 @@ public class Process
                         // do the libraries have items or do they need to be scanned?
                         if (pubLib.items == null || pubLib.items.size() < 1)
                         {
-                            context.publisherRepo.scan(pubLib.name);
+                            pubLib = context.publisherRepo.scan(pubLib.name);
                             scanned = true;
                         }
                         if (subLib.items == null || subLib.items.size() < 1)
@@ -637,7 +1165,7 @@ public class Process
 
                             if (!cfg.isRemoteSession()) // remote collection already loaded and may be empty
                             {
-                                context.subscriberRepo.scan(subLib.name);
+                                subLib = context.subscriberRepo.scan(subLib.name);
                             }
                         }
 
@@ -675,37 +1203,7 @@ public class Process
                                         if (cfg.getWhatsNewFilename().length() > 0)
                                         {
                                             logger.info("  + Subscriber " + subLib.name + " missing " + item.getItemPath());
-
-                                            /*
-                                             * Unless the -W or --whatsnew-all option is used:
-                                             * Only show the left side of mismatches file. And Only show it once.
-                                             * So if you have 10 new episodes of Lucifer only the following will show in the what's new file
-                                             * Big Bang Theory
-                                             * Lucifer
-                                             * Legion
-                                             */
-                                            if (!item.getLibrary().equals(currLib))
-                                            {
-                                                // If not first time display and reset the whatsNewTotal
-                                                if (!currLib.equals(""))
-                                                {
-                                                    whatsNewFile.println("    --------------------------------");
-                                                    whatsNewFile.println("    Number of " + currLib + " = " + whatsNewTotal);
-                                                    whatsNewFile.println("    ================================");
-                                                    whatsNewTotal = 0;
-                                                }
-                                                currLib = item.getLibrary();
-                                                whatsNewFile.println("");
-                                                whatsNewFile.println(currLib);
-                                                whatsNewFile.println(new String(new char[currLib.length()]).replace('\0', '='));
-                                            }
-                                            String path = Utils.getLastPath(item.getItemPath(), context.publisherRepo.getSeparator());
-                                            if (cfg.isWhatsNewAll() || !currentWhatsNew.equalsIgnoreCase(path))
-                                            {
-                                                whatsNewFile.println("    " + (cfg.isWhatsNewAll() ? item.getItemPath() : path));
-                                                currentWhatsNew = path;
-                                                whatsNewTotal++;
-                                            }
+                                            whatsNew(whatsNewFile, item);
                                         }
 
                                         if (cfg.getMismatchFilename().length() > 0)
@@ -719,7 +1217,7 @@ public class Process
                                         {
                                             logger.info("Switching groups from " + lastGroupName + " to " + currentGroupName);
                                             // There is a new group - process the old group
-                                            copyGroup(group, totalSize, cfg.isOverwrite());
+                                            processGroup(group, totalSize);
                                             totalSize = 0L;
 
                                             // Flush the output files
@@ -781,7 +1279,7 @@ public class Process
                 {
                     // Process the last group
                     logger.info("Processing last group " + currentGroupName);
-                    copyGroup(group, totalSize, cfg.isOverwrite());
+                    processGroup(group, totalSize);
                 }
                 catch (Exception e)
                 {
@@ -792,21 +1290,14 @@ public class Process
                 totalSize = 0L;
             }
 
-            // Close all the files and show the results
-            if (mismatchFile != null)
+            // with a journal the plan is complete, now copy it
+            if (journal != null && !fault)
             {
-                mismatchFile.println("----------------------------------------------------");
-                mismatchFile.println("Total items: " + grandTotalItems);
-                mismatchFile.println("Total size : " + Utils.formatLong(grandTotalSize));
-                mismatchFile.close();
-            }
-            if (whatsNewFile != null)
-            {
-                whatsNewFile.println("    --------------------------------");
-                whatsNewFile.println("    Total for " + currLib + " = " + whatsNewTotal);
-                whatsNewFile.println("    ================================");
-                whatsNewFile.close();
+                copyJournal();
             }
+
+            // Close all the files and show the results
+            closeOutputs(mismatchFile, whatsNewFile);
         }
 
         if (ignoredList.size() > 0)
@@ -857,6 +1348,34 @@ public class Process
         logger.info(SHORT, "# Total size       : " + Utils.formatLong(grandTotalSize));
     }
 
+    /**
+     * Open a -m mismatch or -w What's New output file
+     *
+     * @param filename the file
+     * @param kind     what it is for messages
+     * @param header   its first line
+     * @return PrintWriter of the file
+     * @throws MungerException if it cannot be created
+     */
+    private PrintWriter openOutput(String filename, String kind, String header) throws MungerException
+    {
+        try
+        {
+            PrintWriter file = new PrintWriter(filename);
+            file.println(header);
+            logger.info("Writing to " + kind + " file " + filename);
+            return file;
+        }
+        catch (FileNotFoundException fnf)
+        {
+            fault = true;
+            ++errorCount;
+            String s = "File not found exception for " + kind + " output file " + filename;
+            logger.error(s);
+            throw new MungerException(s);
+        }
+    }
+
     /**
      * Process everything
      * <p>
@@ -872,12 +1391,27 @@ public class Process
         {
             try
             {
+                if (cfg.getJournalFilename().length() > 0)
+                {
+                    journal = new Journal(cfg.getJournalFilename(),
+                            (cfg.getPublisherLibrariesFileName().length() > 0) ? cfg.getPublisherLibrariesFileName() : cfg.getPublisherCollectionFilename(),
+                            (cfg.getSubscriberLibrariesFileName().length() > 0) ? cfg.getSubscriberLibrariesFileName() : cfg.getSubscriberCollectionFilename(),
+                            cfg.getTargetsFilename(), key(context.publisherRepo), key(context.subscriberRepo));
+                    journal.open();
+                }
+
                 if (!isInitialized)
                 {
                     initialize();
                 }
 
-                if (isInitialized)
+                if (isInitialized && journal != null && journal.isResuming())
+                {
+                    if (cfg.getTargetsFilename().length() < 1)
+                        throw new MungerException("-t or -T target is required to resume a journal");
+                    resume(); // skip the scan and compare phases
+                }
+                else if (isInitialized)
                 {
                     // if all the pieces are specified munge the collections
                     if ((cfg.getPublisherLibrariesFileName().length() > 0 ||
@@ -886,7 +1420,24 @@ public class Process
                                     cfg.getSubscriberCollectionFilename().length() > 0) &&
                             cfg.getTargetsFilename().length() > 0)
                     {
-                        munge(); // this is the full munge process
+                        // watch first so its scan is the one munged and nothing lands unseen
+                        if (cfg.isContinuous())
+                            startWatcher();
+
+                        if (cfg.getFanOuts().size() > 0)
+                            fanOut(); // several subscribers at once
+                        else
+                            munge(); // this is the full munge process
+
+                        if (cfg.isContinuous() && !fault)
+                        {
+                            if (journal != null)
+                            {
+                                journal.close(); // its plan is done, new groups are not journaled
+                                journal = null;
+                            }
+                            continuous();
+                        }
                     }
                 }
             }
@@ -908,6 +1459,11 @@ public class Process
         }
         finally
         {
+            if (journal != null)
+            {
+                journal.close();
+            }
+
             if (logger != null)
             {
                 // the - makes searching for the ending of a run easier
@@ -944,6 +1500,306 @@ public class Process
         return returnValue;
     } // process
 
+    /**
+     * Publish new files as they land until stopped
+     * <p>
+     * The Watcher started before munge() hands over each file it adds or sees
+     * change. Files are gathered by directory, and once a directory has been
+     * quiet for the --continuous period its files the subscriber does not have
+     * are copied as one group. The subscriber collection read at the start is
+     * not read again, so only the new files are compared. The size and modified
+     * time of each file published are kept so it is published again if it
+     * changes, and forgotten once it is removed.
+     */
+    private void continuous()
+    {
+        Marker SHORT = MarkerManager.getMarker("SHORT");
+        long quiet = cfg.getContinuous() * 1000L;
+        Map<String, Map<String, Item>> pending = new LinkedHashMap<>();
+        Map<String, Long> changed = new HashMap<>();
+        Map<String, String> published = new HashMap<>();
+
+        // finish the current file and say goodbye to the subscriber on Ctrl-C
+        Thread publishing = Thread.currentThread();
+        Thread hook = new Thread(() ->
+        {
+            stopping = true;
+            try
+            {
+                publishing.join(STOP_WAIT);
+            }
+            catch (InterruptedException e)
+            {
+                // exit anyway
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(hook);
+
+        logger.info("Publishing new files continuously, after " + cfg.getContinuous() + " quiet seconds");
+        long nextPing = System.currentTimeMillis() + KEEP_ALIVE;
+        int groups = 0;
+        while (!stopping)
+        {
+            try
+            {
+                Item item = landed.poll(1, TimeUnit.SECONDS);
+                while (item != null)
+                {
+                    String full = item.getFullPath();
+                    String directory = full.substring(0, Math.max(0, full.lastIndexOf(context.publisherRepo.getSeparator())));
+                    pending.computeIfAbsent(directory, key -> new LinkedHashMap<>()).put(full, item); // latest size wins
+                    changed.put(directory, System.currentTimeMillis());
+                    item = landed.poll();
+                }
+
+                Iterator<Map.Entry<String, Map<String, Item>>> it = pending.entrySet().iterator();
+                while (it.hasNext() && !stopping)
+                {
+                    Map.Entry<String, Map<String, Item>> entry = it.next();
+                    if (System.currentTimeMillis() - changed.get(entry.getKey()) < quiet)
+                        continue; // still landing
+                    it.remove();
+                    changed.remove(entry.getKey());
+                    if (publishGroup(entry.getKey(), entry.getValue().values(), published))
+                        ++groups;
+                    nextPing = System.currentTimeMillis() + KEEP_ALIVE;
+                }
+
+                if (System.currentTimeMillis() >= nextPing)
+                {
+                    if (context.clientStty != null && !context.clientStty.ping())
+                        throw new MungerException("Subscriber did not answer, stopping continuous publish");
+                    published.keySet().removeIf(path -> Files.notExists(Paths.get(path)));
+                    nextPing = System.currentTimeMillis() + KEEP_ALIVE;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+            catch (Exception e)
+            {
+                fault = true;
+                ++errorCount;
+                logger.error("Exception " + e.getMessage() + " trace: " + Utils.getStackTrace(e));
+                break;
+            }
+        }
+
+        if (!stopping)
+        {
+            try
+            {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            }
+            catch (IllegalStateException e)
+            {
+                // already shutting down
+            }
+        }
+        context.watcher.requestStop();
+        if (!pending.isEmpty())
+            logger.warn("Continuous publish stopped with " + pending.size() + " groups still landing");
+        logger.info(SHORT, "# Groups published : " + groups);
+        logger.info(SHORT, "# Copies           : " + copyCount);
+        logger.info(SHORT, "# Errors           : " + errorCount);
+    }
+
+    /**
+     * Copy a group found by munge(), or add it to the journal plan
+     *
+     * @param group     the group, cleared when done
+     * @param totalSize the total size
+     * @throws MungerException the els exception
+     */
+    private void processGroup(ArrayList<Item> group, long totalSize) throws MungerException
+    {
+        if (journal != null)
+        {
+            if (group.size() > 0)
+            {
+                // keep the back-fill directories, a resumed run does not have the subscriber collection
+                ArrayList<String> originals = new ArrayList<>();
+                for (Item item : group)
+                {
+                    originals.add(cfg.isNoBackFill() ? null :
+                            context.subscriberRepo.hasDirectory(item.getLibrary(), Utils.pipe(context.publisherRepo, item.getItemPath())));
+                }
+                String path = group.get(0).getItemPath();
+                int i = path.lastIndexOf(context.publisherRepo.getSeparator());
+                journal.plan((i > 0) ? path.substring(0, i) : path, group, totalSize, originals);
+            }
+            group.clear();
+        }
+        else
+        {
+            copyGroup(group, totalSize, cfg.isOverwrite());
+        }
+    }
+
+    /**
+     * Copy the files of one landed directory the subscriber does not have
+     *
+     * @param directory The publisher directory
+     * @param items     The files that landed in it
+     * @param published Full paths already published with the size and modified time sent, updated
+     * @return true if anything was copied
+     */
+    private boolean publishGroup(String directory, Collection<Item> items, Map<String, String> published) throws MungerException
+    {
+        ArrayList<Item> group = new ArrayList<>();
+        Map<String, String> stamps = new HashMap<>();
+        long totalSize = 0L;
+        for (Item item : items)
+        {
+            String stamp = stamp(item.getFullPath());
+            if (stamp == null)
+            {
+                published.remove(item.getFullPath()); // gone again
+                continue;
+            }
+            if (stamp.equals(published.get(item.getFullPath())))
+                continue; // already sent as it is
+            if (context.publisherRepo.ignore(item))
+            {
+                logger.debug("  ! Ignoring " + item.getItemPath());
+                continue;
+            }
+            if (cfg.isSpecificLibrary() && !cfg.isSelectedLibrary(item.getLibrary()))
+                continue;
+            if (context.subscriberRepo.getLibrary(item.getLibrary()) == null)
+                continue; // not subscribed
+            if (!published.containsKey(item.getFullPath()) &&
+                    context.subscriberRepo.hasItem(item, Utils.pipe(context.publisherRepo, item.getItemPath())) != null)
+            {
+                logger.debug("  = Subscriber " + item.getLibrary() + " has " + item.getItemPath());
+                continue;
+            }
+            logger.info("  + Subscriber " + item.getLibrary() + " " + (published.containsKey(item.getFullPath()) ? "changed " : "missing ") + item.getItemPath());
+            group.add(item);
+            stamps.put(item.getFullPath(), stamp);
+            totalSize += item.getSize();
+        }
+        if (group.isEmpty())
+            return false;
+
+        logger.info("Publishing " + group.size() + " new or changed files of " + directory);
+        currentGroupName = directory;
+        try
+        {
+            copyGroup(group, totalSize, cfg.isOverwrite());
+        }
+        catch (MungerException e)
+        {
+            logger.error(e.getMessage()); // keep publishing later groups
+            return false;
+        }
+        published.putAll(stamps);
+        return true;
+    }
+
+    /**
+     * Get the size and modified time of a file
+     *
+     * @param path The file
+     * @return String of the size and modified time, null if it does not exist
+     */
+    private String stamp(String path)
+    {
+        try
+        {
+            BasicFileAttributes attributes = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+            return attributes.size() + " " + attributes.lastModifiedTime().toMillis();
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Retrieve the subscriber's collection, and targets and their free space if requested
+     * <p>
+     * Runs on its own thread while the publisher scans. Only the subscriber
+     * repository and the stty connection are used.
+     *
+     * @return String location of the received collection file
+     */
+    private String retrieveRemote() throws Exception
+    {
+        String location = context.clientStty.retrieveRemoteData(cfg.getSubscriberLibrariesFileName(), "collection");
+        if (location == null || location.length() < 1)
+            throw new MungerException("Could not retrieve remote collections file");
+        context.subscriberRepo.read(location);
+
+        if (cfg.isRequestTargets() && cfg.getTargetsFilename().length() > 0)
+        {
+            // the same connection is free now, and the targets are small
+            cfg.setTargetsFilename(context.clientStty.retrieveRemoteData(cfg.getTargetsFilename(), "targets"));
+            receivedTargets = true;
+
+            // ask a pipelined subscriber for the space of every target location while the publisher scans
+            if (context.clientStty.isPipelined())
+            {
+                Storage targets = new Storage();
+                targets.read(cfg.getTargetsFilename(), context.subscriberRepo.getLibraryData().libraries.flavor);
+                List<String> locations = new ArrayList<>();
+                for (Target target : targets.getTargetData().targets.storage)
+                    locations.addAll(Arrays.asList(target.locations));
+                prefetchedSpace = context.clientStty.availableSpace(locations);
+            }
+        }
+        return location;
+    }
+
+    /**
+     * Check a journaled file is unchanged since it was planned
+     * <p>
+     * The plan may be from an earlier run. A file that changed goes to a newly
+     * chosen target instead of resuming a partial copy, one that is gone cannot
+     * be copied.
+     *
+     * @param item The planned publisher item
+     * @return true if the file can be copied
+     */
+    private boolean recheck(Item item)
+    {
+        try
+        {
+            BasicFileAttributes attrs = Files.readAttributes(Paths.get(item.getFullPath()), BasicFileAttributes.class);
+            long modified = attrs.lastModifiedTime().toMillis();
+            if (attrs.size() != item.getSize() || (item.getModified() >= 0 && modified != item.getModified()))
+            {
+                logger.warn("  ! " + item.getFullPath() + " changed since it was planned, choosing its target again");
+                journal.forget(item);
+            }
+            return true;
+        }
+        catch (IOException e)
+        {
+            logger.error("  ! " + item.getFullPath() + " is gone since it was planned: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Resume an interrupted run from the journal
+     */
+    private void resume()
+    {
+        Marker SHORT = MarkerManager.getMarker("SHORT");
+
+        logger.info("Resuming " + context.publisherRepo.getLibraryData().libraries.description + " to " +
+                context.subscriberRepo.getLibraryData().libraries.description + " from journal " + cfg.getJournalFilename());
+
+        copyJournal();
+
+        logger.info(SHORT, "# Copies           : " + copyCount + ((!cfg.isDryRun()) ? ", " + grandTotalOriginalLocation + " of which went to original locations" : ""));
+        logger.info(SHORT, "# Errors           : " + errorCount);
+        logger.info(SHORT, "# Items processed  : " + grandTotalItems);
+        logger.info(SHORT, "# Total size       : " + Utils.formatLong(grandTotalSize));
+    }
+
     /**
      * Search publisher collection for string substitutions for renaming items
      */
@@ -1005,4 +1861,91 @@ public class Process
         return empties;
     }
 
+    /**
+     * Scan the publisher libraries a subscriber has, unless already loaded
+     * <p>
+     * Once every selected library is scanned later steps do not scan again.
+     *
+     * @param names The library names
+     */
+    private void scanPublisher(List<String> names) throws MungerException
+    {
+        if (cfg.isContinuous())
+        {
+            startWatcher(); // its scan is the one used
+            justScannedPublisher = true;
+            return;
+        }
+        if (cfg.getPublisherLibrariesFileName().length() < 1)
+            return; // a collection file is used
+        for (String name : names)
+        {
+            Library pubLib = context.publisherRepo.getLibrary(name);
+            if (pubLib != null && (pubLib.items == null || pubLib.items.size() < 1))
+                context.publisherRepo.scan(pubLib.name);
+        }
+
+        // renaming, export and duplicates use this scan if it covered every selected library
+        for (Library pubLib : context.publisherRepo.getLibraryData().libraries.bibliography)
+        {
+            if ((!cfg.isSpecificLibrary() || cfg.isSelectedLibrary(pubLib.name)) && pubLib.items == null)
+                return;
+        }
+        justScannedPublisher = true;
+    }
+
+    /**
+     * Start the Watcher of a continuous publish, once
+     */
+    private void startWatcher() throws MungerException
+    {
+        if (context.watcher != null)
+            return;
+        landed = new LinkedBlockingQueue<>();
+        context.watcher = new Watcher(context.publisherRepo);
+        context.watcher.setLanded(landed);
+        context.watcher.startWatching();
+    }
+
+    /**
+     * Add a publisher item a subscriber is missing to the -w What's New file
+     *
+     * @param whatsNewFile the What's New file
+     * @param item         the item
+     * @throws MungerException the els exception
+     */
+    private void whatsNew(PrintWriter whatsNewFile, Item item) throws MungerException
+    {
+        /*
+         * Unless the -W or --whatsnew-all option is used:
+         * Only show the left side of mismatches file. And Only show it once.
+         * So if you have 10 new episodes of Lucifer only the following will show in the what's new file
+         * Big Bang Theory
+         * Lucifer
+         * Legion
+         */
+        if (!item.getLibrary().equals(whatsNewLibrary))
+        {
+            // If not first time display and reset the whatsNewTotal
+            if (!whatsNewLibrary.equals(""))
+            {
+                whatsNewFile.println("    --------------------------------");
+                whatsNewFile.println("    Number of " + whatsNewLibrary + " = " + whatsNewTotal);
+                whatsNewFile.println("    ================================");
+                whatsNewTotal = 0;
+            }
+            whatsNewLibrary = item.getLibrary();
+            whatsNewFile.println("");
+            whatsNewFile.println(whatsNewLibrary);
+            whatsNewFile.println(new String(new char[whatsNewLibrary.length()]).replace('\0', '='));
+        }
+        String path = Utils.getLastPath(item.getItemPath(), context.publisherRepo.getSeparator());
+        if (cfg.isWhatsNewAll() || !whatsNewPath.equalsIgnoreCase(path))
+        {
+            whatsNewFile.println("    " + (cfg.isWhatsNewAll() ? item.getItemPath() : path));
+            whatsNewPath = path;
+            whatsNewTotal++;
+        }
+    }
+
 } // Process
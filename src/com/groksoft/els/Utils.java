@@ -2,21 +2,34 @@ package com.groksoft.els;
 
 import com.groksoft.els.repository.Libraries;
 import com.groksoft.els.repository.Repository;
+import com.groksoft.els.stty.SttyCipher;
+import com.groksoft.els.throttle.Governor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import javax.crypto.Cipher;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
 import java.math.BigDecimal;
 import java.net.SocketTimeoutException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.security.Key;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributeView;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -25,7 +38,6 @@ import java.util.regex.Pattern;
  */
 public class Utils
 {
-    private static Cipher cipher = null;
     private static Logger logger = LogManager.getLogger("applog");
 
     /**
@@ -58,71 +70,224 @@ public class Utils
     }
 
     /**
-     * Decrypt a byte array to a string using provided key
+     * Copy a local file with optional direct I/O and preallocation
+     * <p>
+     * Reads and writes draw from the I/O Governor when a throttle file is used.
+     * <p>
+     * Like Files.copy() with REPLACE_EXISTING and COPY_ATTRIBUTES the times,
+     * permissions and, where the user may set it, owner are preserved, see
+     * copyAttributes().
      *
-     * @param key       UUID key
-     * @param encrypted Data to decrypt
-     * @return String Decrypted texts
+     * @param from        The source file
+     * @param to          The destination file
+     * @param direct      Bypass the page cache if supported
+     * @param preallocate Preallocate the destination to the source size
+     * @return long Bytes copied
+     * @throws IOException
      */
-    public static String decrypt(String key, byte[] encrypted)
+    public static long copyFile(Path from, Path to, boolean direct, boolean preallocate) throws IOException
     {
-        String output = "";
-        try
+        IOException failed = copyFile(from, Collections.singletonList(to), direct, preallocate).get(0);
+        if (failed != null)
+            throw failed;
+        return Files.size(to);
+    }
+
+    /**
+     * Copy a local file to several destinations, reading it once
+     * <p>
+     * Each buffer read is written to every destination before the next read.
+     * Missing parent directories are created. A destination that fails is
+     * dropped and its partial file deleted while the others go on.
+     *
+     * @param from        The source file
+     * @param tos         The destination files
+     * @param direct      Bypass the page cache if supported
+     * @param preallocate Preallocate the destinations to the source size
+     * @return List of the exception of each destination, null where it was copied
+     * @throws IOException if the source cannot be read, all partial files are deleted
+     */
+    public static List<IOException> copyFile(Path from, List<Path> tos, boolean direct, boolean preallocate) throws IOException
+    {
+        long total = 0L;
+        Set<OpenOption> readOptions = new HashSet<>();
+        readOptions.add(StandardOpenOption.READ);
+        Set<OpenOption> writeOptions = new HashSet<>();
+        writeOptions.add(StandardOpenOption.WRITE);
+        writeOptions.add(StandardOpenOption.CREATE);
+        writeOptions.add(StandardOpenOption.TRUNCATE_EXISTING);
+
+        List<FileChannel> outs = new ArrayList<>();
+        List<IOException> failures = new ArrayList<>(Collections.nCopies(tos.size(), (IOException) null));
+        boolean done = false;
+        try (FileChannel in = (direct) ? DirectFileChannel.open(from, readOptions) : FileChannel.open(from, readOptions))
         {
-            // Create key and cipher
-            key = key.replaceAll("-", "");
-            if (key.length() > 16)
+            long size = in.size();
+            int open = 0;
+            for (int i = 0; i < tos.size(); ++i)
             {
-                key = key.substring(0, 16);
+                Path to = tos.get(i);
+                outs.add(null);
+                try
+                {
+                    if (to.getParent() != null)
+                        Files.createDirectories(to.getParent());
+                    FileChannel opened = (direct) ? DirectFileChannel.open(to, writeOptions) : FileChannel.open(to, writeOptions);
+                    outs.set(i, opened);
+                    if (preallocate && size >= PreallocatedFileChannel.MINIMUM_SIZE)
+                        outs.set(i, PreallocatedFileChannel.preallocate(opened, to, size));
+                    ++open;
+                }
+                catch (IOException e)
+                {
+                    failures.set(i, e);
+                    close(outs, i, failures);
+                }
             }
-            Key aesKey = new SecretKeySpec(key.getBytes(), "AES");
-            if (cipher == null)
+
+            Governor governor = Governor.getInstance();
+            String fromName = from.toString();
+            ByteBuffer buf = ByteBuffer.allocateDirect(DirectFileChannel.BUFFER_SIZE);
+            while (total < size && open > 0)
             {
-                cipher = Cipher.getInstance("AES");
+                buf.clear();
+                if (governor.isActive())
+                {
+                    // smaller chunks keep a throttled copy smooth
+                    buf.limit(Governor.CHUNK_SIZE);
+                    governor.acquireBytes(fromName, buf.limit());
+                }
+                int count = in.read(buf, total);
+                if (count < 0)
+                    break;
+                buf.flip();
+                for (int i = 0; i < outs.size(); ++i)
+                {
+                    if (outs.get(i) == null)
+                        continue;
+                    try
+                    {
+                        governor.acquireBytes(tos.get(i).toString(), count);
+                        ByteBuffer slice = buf.duplicate();
+                        long position = total;
+                        while (slice.hasRemaining())
+                        {
+                            position += outs.get(i).write(slice, position);
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        failures.set(i, e);
+                        close(outs, i, failures);
+                        --open;
+                    }
+                }
+                total += count;
             }
-            // decrypt the text
-            cipher.init(Cipher.DECRYPT_MODE, aesKey);
-            output = new String(cipher.doFinal(encrypted));
+            done = true;
         }
-        catch (Exception e)
+        finally
         {
-            logger.error(e.getMessage());
+            for (int i = 0; i < outs.size(); ++i)
+                close(outs, i, failures);
+            for (int i = 0; i < tos.size(); ++i)
+            {
+                if (done && failures.get(i) == null)
+                {
+                    try
+                    {
+                        copyAttributes(from, tos.get(i));
+                    }
+                    catch (IOException e)
+                    {
+                        failures.set(i, e);
+                    }
+                }
+                if (!done || failures.get(i) != null)
+                {
+                    try
+                    {
+                        Files.deleteIfExists(tos.get(i));
+                    }
+                    catch (IOException e)
+                    {
+                        logger.warn("Partial copy " + tos.get(i) + " cannot be deleted: " + e.getMessage());
+                    }
+                }
+            }
         }
-        return output;
+        return failures;
     }
 
     /**
-     * Encrypt a string using provided key
+     * Copy the attributes of a file as Files.copy() with COPY_ATTRIBUTES does
+     * <p>
+     * The times are always copied. On POSIX file stores so are the permissions,
+     * and the owner and group when this user is allowed to give them. On DOS file
+     * stores the read-only, hidden, system and archive flags are copied.
      *
-     * @param key  UUID key
-     * @param text Data to encrypt
-     * @return byte[] of encrypted data
+     * @param from The source file
+     * @param to   The copied file
+     * @throws IOException
      */
-    public static byte[] encrypt(String key, String text)
+    private static void copyAttributes(Path from, Path to) throws IOException
     {
-        byte[] encrypted = {};
-        try
+        BasicFileAttributes basic = Files.readAttributes(from, BasicFileAttributes.class);
+        Files.getFileAttributeView(to, BasicFileAttributeView.class).setTimes(basic.lastModifiedTime(), basic.lastAccessTime(), basic.creationTime());
+
+        FileStore fromStore = Files.getFileStore(from);
+        FileStore toStore = Files.getFileStore(to);
+        if (fromStore.supportsFileAttributeView(PosixFileAttributeView.class) && toStore.supportsFileAttributeView(PosixFileAttributeView.class))
         {
-            // Create key and cipher
-            key = key.replaceAll("-", "");
-            if (key.length() > 16)
+            PosixFileAttributes posix = Files.readAttributes(from, PosixFileAttributes.class);
+            PosixFileAttributeView view = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+            try
             {
-                key = key.substring(0, 16);
+                view.setOwner(posix.owner());
             }
-            Key aesKey = new SecretKeySpec(key.getBytes(), "AES");
-            if (cipher == null)
+            catch (IOException e)
             {
-                cipher = Cipher.getInstance("AES");
+                // only the superuser may give a file away
             }
-            // encrypt the text
-            cipher.init(Cipher.ENCRYPT_MODE, aesKey);
-            encrypted = cipher.doFinal(text.getBytes());
+            try
+            {
+                view.setGroup(posix.group());
+            }
+            catch (IOException e)
+            {
+                // only to a group of this user
+            }
+            view.setPermissions(posix.permissions()); // after the owner, a change of owner may clear set-id bits
+        }
+        else if (fromStore.supportsFileAttributeView(DosFileAttributeView.class) && toStore.supportsFileAttributeView(DosFileAttributeView.class))
+        {
+            DosFileAttributes dos = Files.readAttributes(from, DosFileAttributes.class);
+            DosFileAttributeView view = Files.getFileAttributeView(to, DosFileAttributeView.class);
+            view.setArchive(dos.isArchive());
+            view.setHidden(dos.isHidden());
+            view.setSystem(dos.isSystem());
+            view.setReadOnly(dos.isReadOnly()); // last, so the copy stays writable until done
+        }
+    }
+
+    /**
+     * Close one destination of copyFile(), recording a failure to close
+     */
+    private static void close(List<FileChannel> outs, int index, List<IOException> failures)
+    {
+        FileChannel out = outs.get(index);
+        if (out == null)
+            return;
+        outs.set(index, null);
+        try
+        {
+            out.close();
         }
-        catch (Exception e)
+        catch (IOException e)
         {
-            logger.error(e.getMessage());
+            if (failures.get(index) == null)
+                failures.set(index, e);
         }
-        return encrypted;
     }
 
     /**
@@ -303,6 +468,43 @@ public class Utils
         return sw.getBuffer().toString();
     }
 
+    /**
+     * Hash a byte range of a file
+     * <p>
+     * Used to verify the tail of a partial transfer before resuming it.
+     *
+     * @param path   The file
+     * @param offset Start of the range
+     * @param length Bytes in the range, fewer are hashed if the file is shorter
+     * @return String SHA-256 of the range in hex
+     * @throws IOException
+     */
+    public static String hashRange(String path, long offset, long length) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (RandomAccessFile in = new RandomAccessFile(path, "r"))
+        {
+            in.seek(offset);
+            long remaining = length;
+            int n;
+            while (remaining > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0)
+            {
+                digest.update(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+        return toHex(digest.digest());
+    }
+
     /**
      * Parse the host from a site string
      * <p>
@@ -359,44 +561,53 @@ public class Utils
 
     /**
      * Read an encrypted data stream, return decrypted string
+     * <p>
+     * A timeout before the first byte of a message is retried, a timeout
+     * within one fails the read since the bytes already read are lost.
      *
-     * @param in  DataInputStream to read, e.g. remote connection
-     * @param key UUID key to decrypt the data stream
+     * @param in     DataInputStream to read, e.g. remote connection
+     * @param cipher SttyCipher of the connection
      * @return String read from stream; null if connection is closed
      */
-    public static String read(DataInputStream in, String key) throws Exception
+    public static String read(DataInputStream in, SttyCipher cipher) throws Exception
     {
-        byte[] buf = {};
         String input = "";
+        boolean started = false;
         while (true)
         {
             try
             {
-                int count = in.readInt();
-                int pos = 0;
-                if (count > 0)
+                int first = in.read();
+                if (first < 0)
+                    throw new EOFException();
+                started = true;
+                int count = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+                if (count < 0)
                 {
-                    buf = new byte[count];
-                    int remaining = count;
-                    while (true)
-                    {
-                        int readCount = in.read(buf, pos, remaining);
-                        if (readCount < 0)
-                            break;
-                        pos += readCount;
-                        remaining -= readCount;
-                        if (pos == count)
-                            break;
-                    }
-                    if (pos != count)
+                    // a message larger than one frame
+                    ByteArrayOutputStream message = new ByteArrayOutputStream();
+                    do
                     {
-                        logger.warn("Read counts do not match, expected " + count + ", received " + pos);
+                        ByteBuffer buf = cipher.read(in, count);
+                        message.write(buf.array(), 0, buf.limit());
+                        count = in.readInt();
                     }
+                    while (count < 0);
+                    ByteBuffer buf = cipher.read(in, count);
+                    message.write(buf.array(), 0, buf.limit());
+                    input = new String(message.toByteArray(), StandardCharsets.UTF_8);
+                }
+                else if (count > 0)
+                {
+                    ByteBuffer buf = cipher.read(in, count);
+                    input = new String(buf.array(), 0, buf.limit(), StandardCharsets.UTF_8);
                 }
                 break;
             }
             catch (SocketTimeoutException e)
             {
+                if (started)
+                    throw new MungerException("stty connection timed out within a message");
                 continue;
             }
             catch (EOFException e)
@@ -406,45 +617,51 @@ public class Utils
             }
             catch (IOException e)
             {
-                if (e.getMessage().toLowerCase().contains("connection reset"))
+                if (e.getMessage() != null && e.getMessage().toLowerCase().contains("connection reset"))
                 {
                     logger.info("connection closed by client");
-                    input = null;
-                    //break;
                 }
-                //logger.error(e.getMessage());
                 throw e;
-                //break;
             }
         }
-        if (buf.length > 0)
-            input = decrypt(key, buf);
         return input;
     }
 
+    /**
+     * Format bytes as lowercase hex
+     *
+     * @param bytes The bytes
+     * @return String of two hex digits per byte
+     */
+    public static String toHex(byte[] bytes)
+    {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
     /**
      * Write an encrypted string to output stream
+     * <p>
+     * A message larger than one frame is split into as many as it needs.
      *
      * @param out     DataOutputStream to write
-     * @param key     UUID key to encrypt the string
+     * @param cipher  SttyCipher of the connection
      * @param message String to encrypted and write
      */
-    public static void write(DataOutputStream out, String key, String message) throws Exception
+    public static void write(DataOutputStream out, SttyCipher cipher, String message) throws Exception
     {
-//        try
-//        {
-            byte[] buf = encrypt(key, message);
-            out.writeInt(buf.length);
-            out.write(buf);
-            out.flush();
-//        }
-//        catch (IOException e)
-//        {
-//            if (!e.getMessage().toLowerCase().contains("connection reset"))
-//            {
-//                logger.error(e.getMessage());
-//            }
-//        }
+        byte[] buf = message.getBytes(StandardCharsets.UTF_8);
+        int limit = SttyCipher.MAXIMUM_FRAME - SttyCipher.TAG_SIZE;
+        int offset = 0;
+        while (buf.length - offset > limit)
+        {
+            cipher.write(out, buf, offset, limit, true);
+            offset += limit;
+        }
+        cipher.write(out, buf, offset, buf.length - offset);
+        out.flush();
     }
 
 }
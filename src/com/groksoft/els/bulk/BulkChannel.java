@@ -0,0 +1,434 @@
+package com.groksoft.els.bulk;
+
+import com.groksoft.els.throttle.Governor;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Length-framed bulk data connection
+ * <p>
+ * Every message is a 4-byte length followed by that many bytes. When the
+ * connection opens both ends prove they know the libraries.key UUIDs of the
+ * publisher and subscriber with an HMAC of the server's hello and random
+ * nonces, which also derives an AES key for each direction. The hello carries
+ * the server's protection, so it cannot be weakened on the way.
+ * <p>
+ * A client configured for none accepts either protection, otherwise it refuses
+ * a server that does not seal.
+ * <p>
+ * With aes-gcm every frame, including file data, is sealed with AES-GCM. With
+ * none file data is not framed and goes straight between the file and the
+ * socket with FileChannel.transferTo and transferFrom.
+ */
+public class BulkChannel
+{
+    public static final String AES_GCM = "aes-gcm";
+    public static final String NONE = "none";
+    public static final int CHUNK_SIZE = 256 * 1024; // sealed frame size, small enough for the JIT to warm up quickly
+
+    private static final int MAGIC = 0x454c5342; // ELSB
+    private static final int NONCE_SIZE = 16;
+    private static final int PROOF_SIZE = 32;
+    private static final int TAG_SIZE = 16;
+    private static final int HELLO_SIZE = 9;
+    private static final int VERSION = 1;
+
+    private Cipher cipher = null;
+    private String host;
+    private SecretKeySpec readKey = null;
+    private long reads = 0L;
+    private boolean sealed;
+    private SocketChannel socket;
+    private SecretKeySpec writeKey = null;
+    private long writes = 0L;
+
+    private BulkChannel()
+    {
+        // hide default constructor
+    }
+
+    private BulkChannel(SocketChannel socket, boolean sealed)
+    {
+        this.socket = socket;
+        this.sealed = sealed;
+        SocketAddress address = socket.socket().getRemoteSocketAddress();
+        if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null)
+            host = ((InetSocketAddress) address).getAddress().getHostAddress();
+        else
+            host = String.valueOf(address);
+    }
+
+    /**
+     * Authenticate a connection accepted by the bulk server
+     *
+     * @param socket     The accepted connection
+     * @param clientKey  The libraries.key of the client
+     * @param serverKey  The libraries.key of this server
+     * @param protection aes-gcm or none
+     * @return BulkChannel ready for messages
+     * @throws IOException if the client cannot prove it knows the keys
+     */
+    public static BulkChannel accept(SocketChannel socket, String clientKey, String serverKey, String protection) throws IOException
+    {
+        BulkChannel channel = new BulkChannel(socket, !NONE.equalsIgnoreCase(protection));
+        byte[] serverNonce = random();
+
+        ByteBuffer hello = ByteBuffer.allocate(HELLO_SIZE + NONCE_SIZE);
+        hello.putInt(MAGIC).putInt(VERSION).put((byte) (channel.sealed ? 1 : 0)).put(serverNonce).flip();
+        byte[] header = Arrays.copyOf(hello.array(), HELLO_SIZE);
+        channel.writeFully(hello);
+
+        ByteBuffer reply = channel.readFully(NONCE_SIZE + PROOF_SIZE);
+        byte[] clientNonce = new byte[NONCE_SIZE];
+        byte[] proof = new byte[PROOF_SIZE];
+        reply.get(clientNonce).get(proof);
+
+        byte[] secret = (clientKey + serverKey).getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(proof, hmac(secret, "client", header, serverNonce, clientNonce)))
+            throw new IOException("bulk client " + channel.host + " failed authentication");
+        channel.writeFully(ByteBuffer.wrap(hmac(secret, "server", header, serverNonce, clientNonce)));
+
+        channel.setKeys(hmac(secret, "server to client", header, serverNonce, clientNonce),
+                hmac(secret, "client to server", header, serverNonce, clientNonce));
+        return channel;
+    }
+
+    /**
+     * Authenticate a connection to a bulk server
+     *
+     * @param socket     The connection
+     * @param clientKey  The libraries.key of this client
+     * @param serverKey  The libraries.key of the server
+     * @param protection aes-gcm or none, the weakest protection this client accepts
+     * @return BulkChannel ready for messages
+     * @throws IOException if the server cannot prove it knows the keys or does not protect enough
+     */
+    public static BulkChannel connect(SocketChannel socket, String clientKey, String serverKey, String protection) throws IOException
+    {
+        BulkChannel channel = new BulkChannel(socket, false);
+
+        ByteBuffer hello = channel.readFully(HELLO_SIZE + NONCE_SIZE);
+        byte[] header = Arrays.copyOf(hello.array(), HELLO_SIZE);
+        if (hello.getInt() != MAGIC || hello.getInt() != VERSION)
+            throw new IOException("bulk server " + channel.host + " is not a compatible ELS");
+        channel.sealed = hello.get() != 0;
+        if (!channel.sealed && !NONE.equalsIgnoreCase(protection))
+            throw new IOException("bulk server " + channel.host + " offers none, this system requires " + AES_GCM);
+        byte[] serverNonce = new byte[NONCE_SIZE];
+        hello.get(serverNonce);
+
+        byte[] clientNonce = random();
+        byte[] secret = (clientKey + serverKey).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer reply = ByteBuffer.allocate(NONCE_SIZE + PROOF_SIZE);
+        reply.put(clientNonce).put(hmac(secret, "client", header, serverNonce, clientNonce)).flip();
+        channel.writeFully(reply);
+
+        byte[] proof = new byte[PROOF_SIZE];
+        channel.readFully(PROOF_SIZE).get(proof);
+        if (!MessageDigest.isEqual(proof, hmac(secret, "server", header, serverNonce, clientNonce)))
+            throw new IOException("bulk server " + channel.host + " failed authentication");
+
+        channel.setKeys(hmac(secret, "client to server", header, serverNonce, clientNonce),
+                hmac(secret, "server to client", header, serverNonce, clientNonce));
+        return channel;
+    }
+
+    /**
+     * Close the connection
+     */
+    public void close()
+    {
+        try
+        {
+            socket.close();
+        }
+        catch (IOException e)
+        {
+            // ignore any exception
+        }
+    }
+
+    /**
+     * Get the address of the other end
+     *
+     * @return String IP address
+     */
+    public String getHost()
+    {
+        return host;
+    }
+
+    /**
+     * Get the protection of this connection
+     *
+     * @return String aes-gcm or none
+     */
+    public String getProtection()
+    {
+        return sealed ? AES_GCM : NONE;
+    }
+
+    private static byte[] hmac(byte[] secret, String label, byte[] header, byte[] serverNonce, byte[] clientNonce) throws IOException
+    {
+        try
+        {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(label.getBytes(StandardCharsets.UTF_8));
+            mac.update(header);
+            mac.update(serverNonce);
+            mac.update(clientNonce);
+            return mac.doFinal();
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException("HmacSHA256 is not available: " + e.getMessage());
+        }
+    }
+
+    private GCMParameterSpec nonce(long count)
+    {
+        byte[] iv = new byte[12];
+        for (int i = 0; i < 8; ++i)
+            iv[4 + i] = (byte) (count >>> (56 - (i * 8)));
+        return new GCMParameterSpec(TAG_SIZE * 8, iv);
+    }
+
+    private static byte[] random()
+    {
+        byte[] nonce = new byte[NONCE_SIZE];
+        new SecureRandom().nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * Read one frame
+     *
+     * @return byte[] the opened frame, or null at end of stream
+     */
+    private byte[] readFrame() throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        while (header.hasRemaining())
+        {
+            if (socket.read(header) < 0)
+            {
+                if (header.position() == 0)
+                    return null;
+                throw new EOFException("bulk connection to " + host + " closed");
+            }
+        }
+        header.flip();
+        int length = header.getInt();
+        if (length < 0 || length > CHUNK_SIZE + TAG_SIZE)
+            throw new IOException("bulk frame of " + length + " bytes from " + host + " is not valid");
+
+        byte[] data = readFully(length).array();
+        if (!sealed)
+            return data;
+        try
+        {
+            cipher.init(Cipher.DECRYPT_MODE, readKey, nonce(reads++));
+            return cipher.doFinal(data);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException("bulk frame from " + host + " failed authentication");
+        }
+    }
+
+    private ByteBuffer readFully(int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining())
+        {
+            if (socket.read(buffer) < 0)
+                throw new EOFException("bulk connection to " + host + " closed");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Read a text message
+     *
+     * @return String message, or null at end of stream
+     * @throws IOException
+     */
+    public String readMessage() throws IOException
+    {
+        byte[] data = readFrame();
+        return (data == null) ? null : new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Receive file data sent by sendFile()
+     *
+     * @param file   The open destination file
+     * @param length The number of bytes sent
+     * @param path   The destination path for the I/O Governor
+     * @throws IOException
+     */
+    public void receiveFile(FileChannel file, long length, String path) throws IOException
+    {
+        Governor governor = Governor.getInstance();
+        long position = 0L;
+        while (position < length)
+        {
+            if (sealed)
+            {
+                byte[] data = readFrame();
+                if (data == null || data.length == 0 || position + data.length > length)
+                    throw new IOException("bulk file data from " + host + " is not valid");
+                if (governor.isActive())
+                {
+                    governor.acquireBytes(path, data.length);
+                    governor.acquireLink(host, data.length);
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining())
+                    file.write(buffer, position + buffer.position());
+                position += data.length;
+            }
+            else
+            {
+                long size = length - position;
+                if (governor.isActive())
+                {
+                    size = Math.min(size, Governor.CHUNK_SIZE);
+                    governor.acquireBytes(path, size);
+                    governor.acquireLink(host, size);
+                }
+                long end = position + size;
+                while (position < end)
+                {
+                    // a blocking socket only transfers nothing at end of stream
+                    long count = file.transferFrom(socket, position, end - position);
+                    if (count <= 0)
+                        throw new EOFException("bulk connection to " + host + " closed");
+                    position += count;
+                }
+            }
+        }
+    }
+
+    /**
+     * Send file data
+     *
+     * @param file   The open source file
+     * @param length The number of bytes to send from the start of the file
+     * @param path   The source path for the I/O Governor
+     * @throws IOException
+     */
+    public void sendFile(FileChannel file, long length, String path) throws IOException
+    {
+        Governor governor = Governor.getInstance();
+        byte[] chunk = sealed ? new byte[CHUNK_SIZE] : null;
+        long position = 0L;
+        while (position < length)
+        {
+            long size = Math.min(length - position, sealed ? CHUNK_SIZE : Long.MAX_VALUE);
+            if (governor.isActive())
+            {
+                size = Math.min(size, Governor.CHUNK_SIZE);
+                governor.acquireBytes(path, size);
+                governor.acquireLink(host, size);
+            }
+            long end = position + size;
+            if (sealed)
+            {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, (int) size);
+                while (buffer.hasRemaining())
+                {
+                    if (file.read(buffer, position + buffer.position()) < 0)
+                        throw new EOFException(path + " is shorter than " + length + " bytes");
+                }
+                writeFrame(chunk, (int) size);
+                position = end;
+            }
+            else
+            {
+                while (position < end)
+                {
+                    long count = file.transferTo(position, end - position, socket);
+                    if (count <= 0 && position >= file.size())
+                        throw new EOFException(path + " is shorter than " + length + " bytes");
+                    position += count;
+                }
+            }
+        }
+    }
+
+    private void setKeys(byte[] write, byte[] read) throws IOException
+    {
+        if (!sealed)
+            return;
+        try
+        {
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException("AES/GCM is not available: " + e.getMessage());
+        }
+        // AES-128 works without the unlimited strength policy of older Java 8
+        writeKey = new SecretKeySpec(Arrays.copyOf(write, 16), "AES");
+        readKey = new SecretKeySpec(Arrays.copyOf(read, 16), "AES");
+    }
+
+    private void writeFrame(byte[] data, int length) throws IOException
+    {
+        if (sealed)
+        {
+            try
+            {
+                cipher.init(Cipher.ENCRYPT_MODE, writeKey, nonce(writes++));
+                data = cipher.doFinal(data, 0, length);
+                length = data.length;
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IOException("bulk frame could not be sealed: " + e.getMessage());
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(4);
+        header.putInt(length).flip();
+        ByteBuffer[] frame = {header, ByteBuffer.wrap(data, 0, length)};
+        while (frame[1].hasRemaining())
+            socket.write(frame);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+            socket.write(buffer);
+    }
+
+    /**
+     * Write a text message
+     *
+     * @param message The message
+     * @throws IOException
+     */
+    public void writeMessage(String message) throws IOException
+    {
+        byte[] data = message.getBytes(StandardCharsets.UTF_8);
+        writeFrame(data, data.length);
+    }
+
+}
@@ -0,0 +1,247 @@
+package com.groksoft.els.bulk;
+
+import com.groksoft.els.Configuration;
+import com.groksoft.els.Utils;
+import com.groksoft.els.repository.Libraries;
+import com.groksoft.els.repository.Library;
+import com.groksoft.els.repository.Repository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * ClientBulk -to- ServeBulk
+ * <br/>
+ * Sends files over bulk connections instead of sftp for the libraries whose
+ * transport is bulk. Connections are opened as needed, one per concurrent
+ * transfer, and reused.
+ */
+public class ClientBulk
+{
+    private List<BulkChannel> all = new ArrayList<>();
+    private Configuration cfg;
+    private String hostname;
+    private int hostport;
+    private LinkedBlockingQueue<BulkChannel> idle = new LinkedBlockingQueue<>();
+    private transient Logger logger = LogManager.getLogger("applog");
+    private Repository myRepo;
+    private Map<String, Boolean> sources = new LinkedHashMap<>();
+    private boolean selected;
+    private Repository theirRepo;
+
+    private ClientBulk()
+    {
+        // hide default constructor
+    }
+
+    /**
+     * Instantiate this class.
+     *
+     * @param config The Configuration object
+     * @param mine   Repository of local system
+     * @param theirs Repository of remote system
+     */
+    public ClientBulk(Configuration config, Repository mine, Repository theirs, boolean primaryServers)
+    {
+        cfg = config;
+        myRepo = mine;
+        theirRepo = theirs;
+
+        hostname = Utils.parseHost(theirRepo.getLibraryData().libraries.host);
+        hostport = Utils.getPort(theirRepo.getLibraryData().libraries.host) + ((primaryServers) ? 4 : 5);
+
+        // the libraries transport is the default of each library
+        Libraries libraries = myRepo.getLibraryData().libraries;
+        selected = Library.BULK.equalsIgnoreCase(libraries.transport);
+        for (Library lib : libraries.bibliography)
+        {
+            boolean bulk = (lib.transport != null) ? Library.BULK.equalsIgnoreCase(lib.transport) : selected;
+            for (String source : lib.sources)
+                sources.put(source, bulk);
+        }
+    }
+
+    /**
+     * Is the bulk transport selected for any library to this remote system
+     *
+     * @param mine   Repository of local system
+     * @param theirs Repository of remote system
+     * @return true if the remote system has a bulk server and a library uses it
+     */
+    public static boolean isEnabled(Repository mine, Repository theirs)
+    {
+        if (theirs.getLibraryData().libraries.bulk == null)
+            return false;
+        Libraries libraries = mine.getLibraryData().libraries;
+        if (Library.BULK.equalsIgnoreCase(libraries.transport))
+            return true;
+        for (Library lib : libraries.bibliography)
+        {
+            if (Library.BULK.equalsIgnoreCase(lib.transport))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Is a file sent with the bulk transport
+     *
+     * @param src Source file path with local separators
+     * @return true if the file is in a library whose transport is bulk
+     */
+    public boolean isSelected(String src)
+    {
+        for (Map.Entry<String, Boolean> entry : sources.entrySet())
+        {
+            if (src.startsWith(entry.getKey()))
+                return entry.getValue();
+        }
+        return selected;
+    }
+
+    private BulkChannel borrow() throws IOException
+    {
+        BulkChannel channel = idle.poll();
+        return (channel != null) ? channel : open();
+    }
+
+    private BulkChannel open() throws IOException
+    {
+        SocketChannel socket = SocketChannel.open();
+        try
+        {
+            socket.socket().setSendBufferSize(ServeBulk.SOCKET_BUFFER_SIZE);
+            socket.socket().setReceiveBufferSize(ServeBulk.SOCKET_BUFFER_SIZE);
+            socket.socket().connect((hostname == null) ? new InetSocketAddress(hostport) : new InetSocketAddress(hostname, hostport), 30000);
+            BulkChannel channel = BulkChannel.connect(socket, myRepo.getLibraryData().libraries.key, theirRepo.getLibraryData().libraries.key,
+                    myRepo.getLibraryData().libraries.bulk);
+            synchronized (all)
+            {
+                all.add(channel);
+            }
+            return channel;
+        }
+        catch (IOException e)
+        {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void close(BulkChannel channel)
+    {
+        synchronized (all)
+        {
+            all.remove(channel);
+        }
+        channel.close();
+    }
+
+    /**
+     * Start this bulk client
+     *
+     * @return true if the first connection authenticated
+     */
+    public boolean startClient()
+    {
+        try
+        {
+            logger.info("Opening bulk connection to: " + (hostname == null ? "localhost" : hostname) + ":" + hostport);
+            BulkChannel channel = open();
+            logger.info("Bulk connection uses " + channel.getProtection());
+            idle.add(channel);
+        }
+        catch (IOException e)
+        {
+            logger.error("Bulk connection failed, using sftp: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stop this bulk client
+     */
+    public void stopClient()
+    {
+        synchronized (all)
+        {
+            for (BulkChannel channel : all)
+                channel.close();
+            all.clear();
+        }
+        idle.clear();
+    }
+
+    /**
+     * Transmit a file from local to remote system
+     * <p>
+     * A connection lost during the transfer is reopened and the whole file
+     * sent again once.
+     *
+     * @param src  Source file path with local separators
+     * @param dest Destination file path with remote separators
+     * @return true if successful
+     */
+    public boolean transmitFile(String src, String dest)
+    {
+        BulkChannel channel = null;
+        try
+        {
+            for (int attempt = 0; ; ++attempt)
+            {
+                try
+                {
+                    channel = borrow();
+                    transmitFile(channel, src, dest);
+                    idle.add(channel);
+                    return true;
+                }
+                catch (IOException e)
+                {
+                    if (channel != null)
+                        close(channel);
+                    channel = null;
+                    if (attempt > 0)
+                        throw e;
+                    logger.warn("Bulk transfer of " + src + " failed, reconnecting to retry: " + e.getMessage());
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            logger.error(e.getMessage() + "\r\n" + Utils.getStackTrace(e));
+        }
+        return false;
+    }
+
+    private void transmitFile(BulkChannel channel, String src, String dest) throws IOException
+    {
+        try (FileChannel file = FileChannel.open(Paths.get(src), StandardOpenOption.READ))
+        {
+            long size = file.size();
+            channel.writeMessage("file " + size + " " + dest);
+            String reply = channel.readMessage();
+            if (!"ready".equals(reply))
+                throw new IOException("Subscriber cannot write " + dest + ": " + reply);
+
+            channel.sendFile(file, size, src);
+
+            reply = channel.readMessage();
+            if (!"ok".equals(reply))
+                throw new IOException("Subscriber did not receive " + dest + ": " + reply);
+        }
+    }
+
+}
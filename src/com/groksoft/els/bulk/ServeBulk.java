@@ -0,0 +1,260 @@
+package com.groksoft.els.bulk;
+
+import com.groksoft.els.Configuration;
+import com.groksoft.els.DirectFileChannel;
+import com.groksoft.els.PreallocatedFileChannel;
+import com.groksoft.els.Utils;
+import com.groksoft.els.repository.Repository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Bulk data server
+ * <p>
+ * Receives files over plain TCP connections on the listen port + 4, or + 5
+ * for secondary servers. Enabled by the "bulk" element of the libraries file
+ * of this system. Each connection is served by its own thread.
+ * <p>
+ * A file is requested with "file [size] [path]" and answered "ready", then the
+ * data is written to path.els-part and renamed when complete, answered "ok".
+ */
+public class ServeBulk
+{
+    public static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private transient Logger logger = LogManager.getLogger("applog");
+
+    private Set<BulkChannel> active = ConcurrentHashMap.newKeySet();
+    private Thread acceptor = null;
+    private Configuration cfg;
+    private ExecutorService executor = null;
+    private String hostname;
+    private int listenport;
+    private Repository myRepo;
+    private ServerSocketChannel server = null;
+    private volatile boolean stopping = false;
+    private Repository theirRepo;
+
+    private ServeBulk()
+    {
+        // hide default constructor
+    }
+
+    /**
+     * Instantiate this class.
+     *
+     * @param config The Configuration object
+     * @param mine   Repository of local system
+     * @param theirs Repository of remote system
+     */
+    public ServeBulk(Configuration config, Repository mine, Repository theirs, boolean primaryServers)
+    {
+        cfg = config;
+        myRepo = mine;
+        theirRepo = theirs;
+
+        hostname = Utils.parseHost(myRepo.getLibraryData().libraries.listen);
+        listenport = Utils.getPort(myRepo.getLibraryData().libraries.listen) + ((primaryServers) ? 4 : 5);
+    }
+
+    /**
+     * Is the bulk server enabled for this system
+     *
+     * @param mine Repository of local system
+     * @return true if the libraries file has a bulk element
+     */
+    public static boolean isEnabled(Repository mine)
+    {
+        return mine.getLibraryData().libraries.bulk != null;
+    }
+
+    /**
+     * Receive one file
+     */
+    private void receive(BulkChannel channel, String request) throws IOException
+    {
+        String[] parts = request.split(" ", 3);
+        long size;
+        try
+        {
+            size = Long.parseLong(parts[1]);
+        }
+        catch (Exception e)
+        {
+            channel.writeMessage("error bad request");
+            return;
+        }
+        if (parts.length < 3 || size < 0)
+        {
+            channel.writeMessage("error bad request");
+            return;
+        }
+
+        Path dest = Paths.get(parts[2]);
+        Path part = Paths.get(parts[2] + ".els-part");
+        FileChannel file;
+        try
+        {
+            if (part.getParent() != null)
+                Files.createDirectories(part.getParent());
+            Set<OpenOption> options = new HashSet<>();
+            options.add(StandardOpenOption.CREATE);
+            options.add(StandardOpenOption.TRUNCATE_EXISTING);
+            options.add(StandardOpenOption.WRITE);
+            if (cfg.isDirectIO())
+                file = DirectFileChannel.open(part, options);
+            else
+                file = FileChannel.open(part, options);
+            if (cfg.isPreallocate() && size >= PreallocatedFileChannel.MINIMUM_SIZE)
+                file = PreallocatedFileChannel.preallocate(file, part, size);
+        }
+        catch (IOException e)
+        {
+            logger.error("ServeBulk cannot write " + part + ": " + e.toString());
+            channel.writeMessage("error " + e.toString());
+            return;
+        }
+
+        channel.writeMessage("ready");
+        try
+        {
+            channel.receiveFile(file, size, part.toString());
+        }
+        finally
+        {
+            file.close();
+        }
+        Files.move(part, dest, StandardCopyOption.REPLACE_EXISTING);
+        logger.debug("ServeBulk received " + Utils.formatLong(size) + " " + dest);
+        channel.writeMessage("ok");
+    }
+
+    /**
+     * Serve one connection until the client closes it
+     */
+    private void serve(SocketChannel socket)
+    {
+        BulkChannel channel = null;
+        try
+        {
+            channel = BulkChannel.accept(socket, theirRepo.getLibraryData().libraries.key, myRepo.getLibraryData().libraries.key,
+                    myRepo.getLibraryData().libraries.bulk);
+            active.add(channel);
+            logger.info("ServeBulk server connected to " + channel.getHost() + " using " + channel.getProtection());
+
+            String request;
+            while (!stopping && (request = channel.readMessage()) != null)
+            {
+                if (request.startsWith("file "))
+                    receive(channel, request);
+                else
+                    channel.writeMessage("error unknown request");
+            }
+        }
+        catch (IOException e)
+        {
+            if (!stopping)
+                logger.error("ServeBulk " + e.getMessage());
+        }
+        finally
+        {
+            if (channel != null)
+            {
+                active.remove(channel);
+                channel.close();
+            }
+            else
+            {
+                try
+                {
+                    socket.close();
+                }
+                catch (IOException e)
+                {
+                    // ignore any exception
+                }
+            }
+        }
+    }
+
+    /**
+     * Start listening for bulk connections
+     */
+    public void startServer()
+    {
+        try
+        {
+            server = ServerSocketChannel.open();
+            server.socket().setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+            server.bind((hostname == null) ? new InetSocketAddress(listenport) : new InetSocketAddress(hostname, listenport));
+            executor = Executors.newCachedThreadPool();
+
+            acceptor = new Thread(() ->
+            {
+                while (!stopping)
+                {
+                    try
+                    {
+                        SocketChannel socket = server.accept();
+                        socket.socket().setSendBufferSize(SOCKET_BUFFER_SIZE);
+                        executor.execute(() -> serve(socket));
+                    }
+                    catch (IOException e)
+                    {
+                        if (!stopping)
+                            logger.error("ServeBulk accept failed: " + e.getMessage());
+                        break;
+                    }
+                }
+            }, "ServeBulk");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            logger.info("ServeBulk server is listening on: " + server.getLocalAddress() + " using " + myRepo.getLibraryData().libraries.bulk);
+        }
+        catch (IOException e)
+        {
+            logger.error("ServeBulk server cannot start: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stop the server and close all connections
+     */
+    public void stopServer()
+    {
+        logger.info("ServeBulk server listener stopping");
+        stopping = true;
+        try
+        {
+            if (server != null)
+                server.close();
+        }
+        catch (IOException e)
+        {
+            // ignore any exception
+        }
+        for (BulkChannel channel : active)
+            channel.close();
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,461 @@
+package com.groksoft.els.repository;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.groksoft.els.MungerException;
+import com.groksoft.els.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.Vector;
+
+/**
+ * Versioned collection with a change log
+ * <p>
+ * Each scan of the subscriber is compared to the previous one. When items were
+ * added, removed or changed size the generation is incremented and the changes
+ * are logged, so a publisher with a cached collection of an earlier generation
+ * can be sent only what changed since.
+ * <p>
+ * The state is kept in a file beside the libraries file so it lasts from one
+ * run of the daemon to the next. Each new generation is appended to a journal
+ * beside it, and the state is only rewritten whole when the journal grows
+ * large. If either file is lost or damaged a new random epoch is started, so a
+ * publisher's cache from before is never taken for this one.
+ */
+public class CollectionLog
+{
+    public static final String ADD = "add";
+    public static final String CHANGE = "change";
+    public static final int COMPACT_CHANGES = 10000; // minimum journal size before the state is rewritten
+    public static final String JOURNAL = ".journal";
+    public static final int MAXIMUM_CHANGES = 100000; // oldest generations are dropped beyond this
+    public static final String REMOVE = "remove";
+    public static final String SUFFIX = "_collection-log.json";
+
+    private static CollectionLog instance = null;
+
+    private String epoch = UUID.randomUUID().toString();
+    private String filename = null;
+    private long generation = 0L;
+    private int journaled = 0;
+    private LinkedList<Generation> log = new LinkedList<>();
+    private int logged = 0;
+    private transient Logger logger = LogManager.getLogger("applog");
+    private Map<String, Item> snapshot = null;
+
+    /**
+     * One added, removed or changed item
+     */
+    public static class Change
+    {
+        public String op;
+        public String library;
+        public String fullPath;
+        public Item item;             // null for a remove
+
+        Change(String op, String library, String fullPath, Item item)
+        {
+            this.op = op;
+            this.library = library;
+            this.fullPath = fullPath;
+            this.item = item;
+        }
+    }
+
+    /**
+     * The changes from one generation to another, as sent to a publisher
+     */
+    public static class Delta
+    {
+        public String epoch;
+        public long generation;
+        public List<Change> changes = new ArrayList<>();
+    }
+
+    /**
+     * The saved state
+     */
+    private static class State
+    {
+        String epoch;
+        long generation;
+        List<Item> items;
+        List<Generation> log;
+    }
+
+    /**
+     * The changes of one generation
+     */
+    private static class Generation
+    {
+        long generation;
+        List<Change> changes;
+
+        Generation(long generation, List<Change> changes)
+        {
+            this.generation = generation;
+            this.changes = changes;
+        }
+    }
+
+    private CollectionLog()
+    {
+        // hide default constructor
+    }
+
+    /**
+     * Get this instance
+     *
+     * @return CollectionLog singleton
+     */
+    public static synchronized CollectionLog getInstance()
+    {
+        if (instance == null)
+            instance = new CollectionLog();
+        return instance;
+    }
+
+    /**
+     * Apply changes to a collection
+     *
+     * @param data    The collection
+     * @param changes The changes in the order they were logged
+     */
+    public static void apply(LibraryData data, List<Change> changes)
+    {
+        Map<String, Library> libraries = new HashMap<>();
+        Map<String, Map<String, Integer>> indexes = new HashMap<>();
+        for (Library lib : data.libraries.bibliography)
+            libraries.put(lib.name, lib);
+
+        for (Change change : changes)
+        {
+            Library lib = libraries.get(change.library);
+            if (lib == null)
+                continue; // a new library starts a new epoch, so it is not in a delta
+            if (lib.items == null)
+                lib.items = new Vector<>();
+            Map<String, Integer> index = indexes.get(lib.name);
+            if (index == null)
+            {
+                index = new HashMap<>();
+                for (int i = 0; i < lib.items.size(); ++i)
+                    index.put(lib.items.get(i).getFullPath(), i);
+                indexes.put(lib.name, index);
+            }
+
+            Integer position = index.get(change.fullPath);
+            if (change.op.equals(REMOVE))
+            {
+                if (position != null)
+                {
+                    lib.items.set(position, null);
+                    index.remove(change.fullPath);
+                }
+            }
+            else if (position != null)
+            {
+                lib.items.set(position, change.item);
+            }
+            else
+            {
+                index.put(change.fullPath, lib.items.size());
+                lib.items.add(change.item);
+            }
+        }
+
+        for (String name : indexes.keySet())
+        {
+            Library lib = libraries.get(name);
+            lib.items.removeIf(item -> item == null);
+            lib.items.sort((item1, item2) -> item1.getItemPath().compareToIgnoreCase(item2.getItemPath()));
+        }
+    }
+
+    /**
+     * Get the changes since a generation
+     *
+     * @param epoch The epoch of the publisher's cached collection
+     * @param since The generation of the publisher's cached collection
+     * @return Delta, or null if the changes are not available and a full collection is needed
+     */
+    public synchronized Delta getDelta(String epoch, long since)
+    {
+        if (snapshot == null || !this.epoch.equals(epoch) || since > generation)
+            return null;
+        if (since < generation && (log.isEmpty() || log.getFirst().generation > since + 1))
+            return null;
+
+        Delta delta = new Delta();
+        delta.epoch = this.epoch;
+        delta.generation = generation;
+        for (Generation entry : log)
+        {
+            if (entry.generation > since)
+                delta.changes.addAll(entry.changes);
+        }
+        return delta;
+    }
+
+    /**
+     * Get the epoch of this run
+     *
+     * @return String UUID
+     */
+    public String getEpoch()
+    {
+        return epoch;
+    }
+
+    /**
+     * Get the current generation
+     *
+     * @return long generation, 0 before the first scan
+     */
+    public synchronized long getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * Merge a received delta into a cached collection
+     *
+     * @param cacheFile The cached collection JSON file
+     * @param deltaFile The received delta JSON file, replaced by the merged collection
+     * @return int number of changes applied
+     * @throws MungerException
+     */
+    public static int merge(String cacheFile, String deltaFile) throws MungerException
+    {
+        try
+        {
+            Gson gson = new Gson();
+            LibraryData data = gson.fromJson(new String(Files.readAllBytes(Paths.get(cacheFile))), LibraryData.class);
+            Delta delta = gson.fromJson(new String(Files.readAllBytes(Paths.get(deltaFile))), Delta.class);
+            if (data == null || data.libraries == null || data.libraries.bibliography == null || delta == null || delta.changes == null)
+                throw new MungerException("cached collection " + cacheFile + " or delta " + deltaFile + " is not valid");
+            apply(data, delta.changes);
+
+            try (PrintWriter outputStream = new PrintWriter(deltaFile))
+            {
+                new GsonBuilder().setPrettyPrinting().create().toJson(data, outputStream);
+                outputStream.println();
+            }
+            return delta.changes.size();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            throw new MungerException("Exception while merging collection " + deltaFile + " trace: " + Utils.getStackTrace(e));
+        }
+    }
+
+    /**
+     * Compare a new scan to the previous one and log any changes
+     *
+     * @param repo The freshly scanned repository
+     * @return long the generation of the scan
+     */
+    public synchronized long update(Repository repo)
+    {
+        String file = repo.getJsonFilename() + SUFFIX;
+        if (!file.equals(filename))
+            load(file);
+
+        Map<String, Item> current = new HashMap<>();
+        List<Change> changes = new ArrayList<>();
+        for (Library lib : repo.getLibraryData().libraries.bibliography)
+        {
+            if (lib.items == null)
+                continue;
+            for (Item item : lib.items)
+            {
+                current.put(item.getFullPath(), item);
+                if (snapshot != null)
+                {
+                    Item previous = snapshot.get(item.getFullPath());
+                    if (previous == null)
+                        changes.add(new Change(ADD, lib.name, item.getFullPath(), item));
+                    else if (previous.getSize() != item.getSize() || previous.isDirectory() != item.isDirectory())
+                        changes.add(new Change(CHANGE, lib.name, item.getFullPath(), item));
+                }
+            }
+        }
+
+        if (snapshot == null)
+        {
+            generation = 1L;
+        }
+        else
+        {
+            for (Map.Entry<String, Item> entry : snapshot.entrySet())
+            {
+                if (!current.containsKey(entry.getKey()))
+                    changes.add(new Change(REMOVE, entry.getValue().getLibrary(), entry.getKey(), null));
+            }
+            if (changes.isEmpty())
+                return generation;
+            Generation entry = new Generation(++generation, changes);
+            log.add(entry);
+            logged += changes.size();
+            while (logged > MAXIMUM_CHANGES && !log.isEmpty())
+                logged -= log.removeFirst().changes.size();
+            snapshot = current;
+            if (journaled + changes.size() < Math.max(COMPACT_CHANGES, snapshot.size() / 4) && append(entry))
+                return generation;
+        }
+        snapshot = current;
+        save();
+        return generation;
+    }
+
+    /**
+     * Append a generation to the journal
+     *
+     * @return true if it was written, otherwise the state must be saved whole
+     */
+    private boolean append(Generation entry)
+    {
+        try (Writer writer = Files.newBufferedWriter(Paths.get(filename + JOURNAL), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND))
+        {
+            writer.write(new Gson().toJson(entry));
+            writer.write("\n");
+            journaled += entry.changes.size();
+            return true;
+        }
+        catch (Exception e)
+        {
+            logger.warn("Collection log journal " + filename + JOURNAL + " cannot be written: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Load the saved state, or start a new epoch
+     */
+    private void load(String file)
+    {
+        filename = file;
+        epoch = UUID.randomUUID().toString();
+        generation = 0L;
+        log.clear();
+        logged = 0;
+        journaled = 0;
+        snapshot = null;
+        if (Files.notExists(Paths.get(file)))
+            return;
+        try
+        {
+            State state = new Gson().fromJson(new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8), State.class);
+            if (state == null || state.epoch == null || state.items == null || state.log == null)
+                throw new MungerException("missing elements");
+            epoch = state.epoch;
+            generation = state.generation;
+            log.addAll(state.log);
+            for (Generation entry : log)
+                logged += entry.changes.size();
+            snapshot = new HashMap<>();
+            for (Item item : state.items)
+                snapshot.put(item.getFullPath(), item);
+            replay(Paths.get(file + JOURNAL));
+            logger.info("Read collection log " + file + ", generation " + generation);
+        }
+        catch (Exception e)
+        {
+            logger.warn("Collection log " + file + " cannot be read, starting a new epoch: " + e.getMessage());
+            epoch = UUID.randomUUID().toString();
+            generation = 0L;
+            log.clear();
+            logged = 0;
+            journaled = 0;
+            snapshot = null;
+        }
+    }
+
+    /**
+     * Apply the generations appended to the journal since the state was saved
+     * <p>
+     * Generations already in the state, left if the daemon stopped while
+     * compacting, are skipped. A line that cannot be read fails the load.
+     */
+    private void replay(Path journal) throws Exception
+    {
+        if (Files.notExists(journal))
+            return;
+        try (BufferedReader reader = Files.newBufferedReader(journal, StandardCharsets.UTF_8))
+        {
+            Gson gson = new Gson();
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                Generation entry = gson.fromJson(line, Generation.class);
+                if (entry == null || entry.changes == null)
+                    throw new MungerException("journal " + journal + " is damaged");
+                if (entry.generation <= generation)
+                    continue;
+                if (entry.generation != generation + 1)
+                    throw new MungerException("journal " + journal + " skips from generation " + generation + " to " + entry.generation);
+                for (Change change : entry.changes)
+                {
+                    if (change.op.equals(REMOVE))
+                        snapshot.remove(change.fullPath);
+                    else
+                        snapshot.put(change.fullPath, change.item);
+                }
+                generation = entry.generation;
+                log.add(entry);
+                logged += entry.changes.size();
+                journaled += entry.changes.size();
+            }
+        }
+        while (logged > MAXIMUM_CHANGES && !log.isEmpty())
+            logged -= log.removeFirst().changes.size();
+    }
+
+    /**
+     * Save the whole state, written beside and then moved over the old one,
+     * and empty the journal
+     */
+    private void save()
+    {
+        State state = new State();
+        state.epoch = epoch;
+        state.generation = generation;
+        state.items = new ArrayList<>(snapshot.values());
+        state.log = log;
+        Path path = Paths.get(filename);
+        Path temp = Paths.get(filename + ".tmp");
+        try
+        {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8))
+            {
+                new Gson().toJson(state, writer);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            Files.deleteIfExists(Paths.get(filename + JOURNAL));
+            journaled = 0;
+        }
+        catch (Exception e)
+        {
+            logger.warn("Collection log " + filename + " cannot be written: " + e.getMessage());
+        }
+    }
+
+}
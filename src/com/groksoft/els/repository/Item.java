@@ -14,6 +14,7 @@ public class Item implements Serializable
     private transient List<Item> hasList = null;
     private String itemPath;
     private String library;
+    private transient long modified = -1L;
     private transient boolean reported = false;
     private long size = -1L;
     private boolean symLink = false;
@@ -134,6 +135,29 @@ public class Item implements Serializable
         this.size = size;
     }
 
+    /**
+     * Gets modified time.
+     * <p>
+     * The last modified time of a file when it was scanned, in milliseconds,
+     * -1 if unknown. It is not part of a collection file.
+     *
+     * @return the modified time
+     */
+    public long getModified()
+    {
+        return modified;
+    }
+
+    /**
+     * Sets modified time.
+     *
+     * @param modified the modified time in milliseconds
+     */
+    public void setModified(long modified)
+    {
+        this.modified = modified;
+    }
+
     /**
      * Is directory boolean.
      *
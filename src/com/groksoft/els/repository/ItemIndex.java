@@ -0,0 +1,274 @@
+package com.groksoft.els.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+
+/**
+ * Trigram index of the item paths of one library
+ * <p>
+ * Each run of three characters of an item path, not case sensitive, maps to
+ * the positions of the items that contain it. A search intersects the lists of
+ * the rarest trigrams of the text then confirms each candidate, so only a small
+ * fraction of the items are compared. Positions are stored as variable-length
+ * deltas, usually one byte each.
+ * <p>
+ * The index is not changed once built. A library that is read or rescanned
+ * is a new copy without one. Changes made by a Watcher are carried
+ * beside the trigrams, added items searched one by one and removed ones
+ * skipped, until there are enough of them that rebuilding is cheaper.
+ */
+public class ItemIndex
+{
+    public static final int GRAM = 3;
+    public static final int MINIMUM_CHANGES = 10000; // carried before a rebuild, or 10% of the items if more
+
+    private List<Item> added = new ArrayList<>();
+    private Map<Long, Postings> grams = new HashMap<>();
+    private Vector<Item> items;
+    private Set<Item> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * The sorted positions of items containing one trigram
+     */
+    private static class Postings
+    {
+        int count = 0;
+        byte[] data = new byte[8];
+        int last = -1;
+        int size = 0;
+
+        void add(int position)
+        {
+            if (position == last)
+                return;
+            if (size + 5 > data.length)
+                data = Arrays.copyOf(data, data.length * 2);
+            int delta = position - last;
+            last = position;
+            ++count;
+            while ((delta & ~0x7F) != 0)
+            {
+                data[size++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[size++] = (byte) delta;
+        }
+
+        int[] decode()
+        {
+            int[] positions = new int[count];
+            int position = -1;
+            int index = 0;
+            for (int i = 0; i < count; ++i)
+            {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do
+                {
+                    b = data[index++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                position += delta;
+                positions[i] = position;
+            }
+            return positions;
+        }
+    }
+
+    private ItemIndex()
+    {
+        // hide default constructor
+    }
+
+    /**
+     * Build the index of a library's items
+     *
+     * @param items The items of the library, may be null
+     */
+    public ItemIndex(Vector<Item> items)
+    {
+        this.items = (items != null) ? items : new Vector<>();
+        for (int i = 0; i < this.items.size(); ++i)
+        {
+            String path = this.items.get(i).getItemPath();
+            for (int j = 0; j + GRAM <= path.length(); ++j)
+            {
+                Long key = key(path, j);
+                Postings postings = grams.get(key);
+                if (postings == null)
+                {
+                    postings = new Postings();
+                    grams.put(key, postings);
+                }
+                postings.add(i);
+            }
+        }
+        for (Postings postings : grams.values())
+            postings.data = Arrays.copyOf(postings.data, postings.size);
+    }
+
+    /**
+     * Find the items whose path contains text, not case sensitive
+     *
+     * @param text The text to find
+     * @return List of matching items in library order
+     */
+    public List<Item> find(String text)
+    {
+        List<Item> matches = match(text);
+        if (added.isEmpty())
+            return matches;
+
+        // merge any matching added items into library order
+        List<Item> merged = new ArrayList<>(matches.size() + 16);
+        int i = 0;
+        for (Item item : added)
+        {
+            if (!contains(item.getItemPath(), text))
+                continue;
+            while (i < matches.size() && matches.get(i).getItemPath().compareToIgnoreCase(item.getItemPath()) <= 0)
+                merged.add(matches.get(i++));
+            merged.add(item);
+        }
+        while (i < matches.size())
+            merged.add(matches.get(i++));
+        return merged;
+    }
+
+    /**
+     * Get the number of distinct trigrams
+     *
+     * @return int count
+     */
+    public int getSize()
+    {
+        return grams.size();
+    }
+
+    /**
+     * Carry changes made by a Watcher
+     *
+     * @param addedItems   Items added, sorted
+     * @param removedItems Items removed
+     * @return ItemIndex with the changes, or null if it should be rebuilt
+     */
+    public ItemIndex update(List<Item> addedItems, Collection<Item> removedItems)
+    {
+        ItemIndex changed = new ItemIndex();
+        changed.grams = grams;
+        changed.items = items;
+        changed.removed.addAll(removed);
+
+        Set<Item> gone = Collections.newSetFromMap(new IdentityHashMap<>());
+        gone.addAll(removedItems);
+        for (Item item : added)
+        {
+            if (!gone.remove(item))
+                changed.added.add(item); // still present
+        }
+        changed.removed.addAll(gone);
+        changed.added.addAll(addedItems);
+        changed.added.sort((item1, item2) -> item1.getItemPath().compareToIgnoreCase(item2.getItemPath()));
+
+        if (changed.added.size() + changed.removed.size() > Math.max(MINIMUM_CHANGES, items.size() / 10))
+            return null;
+        return changed;
+    }
+
+    /**
+     * Find the indexed items whose path contains text
+     */
+    private List<Item> match(String text)
+    {
+        List<Item> matches = new ArrayList<>();
+        if (text.length() < GRAM)
+        {
+            // too short to index, and matches much of the library anyway
+            for (Item item : items)
+            {
+                if (contains(item.getItemPath(), text) && !removed.contains(item))
+                    matches.add(item);
+            }
+            return matches;
+        }
+
+        List<Postings> lists = new ArrayList<>();
+        for (int j = 0; j + GRAM <= text.length(); ++j)
+        {
+            Postings postings = grams.get(key(text, j));
+            if (postings == null)
+                return matches;
+            if (!lists.contains(postings))
+                lists.add(postings);
+        }
+        lists.sort((list1, list2) -> Integer.compare(list1.count, list2.count));
+
+        int[] candidates = lists.get(0).decode();
+        for (int i = 1; i < lists.size() && i < 3; ++i)
+            candidates = intersect(candidates, lists.get(i).decode());
+
+        for (int position : candidates)
+        {
+            Item item = items.get(position);
+            if (contains(item.getItemPath(), text) && !removed.contains(item))
+                matches.add(item);
+        }
+        return matches;
+    }
+
+    private static boolean contains(String path, String text)
+    {
+        if (text.isEmpty())
+            return true;
+        char lower = Character.toLowerCase(text.charAt(0));
+        char upper = Character.toUpperCase(lower);
+        for (int i = 0; i + text.length() <= path.length(); ++i)
+        {
+            char c = path.charAt(i);
+            if ((c == lower || c == upper || Character.toLowerCase(c) == lower) && path.regionMatches(true, i, text, 0, text.length()))
+                return true;
+        }
+        return false;
+    }
+
+    private static int[] intersect(int[] first, int[] second)
+    {
+        int[] both = new int[Math.min(first.length, second.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < first.length && j < second.length)
+        {
+            if (first[i] < second[j])
+                ++i;
+            else if (first[i] > second[j])
+                ++j;
+            else
+            {
+                both[count++] = first[i];
+                ++i;
+                ++j;
+            }
+        }
+        return Arrays.copyOf(both, count);
+    }
+
+    private static Long key(String path, int offset)
+    {
+        long key = 0L;
+        for (int i = 0; i < GRAM; ++i)
+            key = (key << 16) | Character.toLowerCase(path.charAt(offset + i));
+        return key;
+    }
+
+}
@@ -50,6 +50,16 @@ public class Libraries
      */
     public String key;
 
+    /**
+     * Optional bulk server protection of this system: aes-gcm or none
+     */
+    public String bulk;
+
+    /**
+     * Optional default transport of the libraries: sftp or bulk
+     */
+    public String transport;
+
     /**
      * If case-sensitive true/false.
      */
@@ -70,4 +80,28 @@ public class Libraries
      */
     public Library[] bibliography;
 
+    /**
+     * Copy with a bibliography that may be changed without changing this one.
+     *
+     * @return Libraries sharing everything else
+     */
+    public Libraries copy()
+    {
+        Libraries copy = new Libraries();
+        copy.compiledPatterns = compiledPatterns;
+        copy.description = description;
+        copy.host = host;
+        copy.listen = listen;
+        copy.flavor = flavor;
+        copy.terminal_allowed = terminal_allowed;
+        copy.key = key;
+        copy.bulk = bulk;
+        copy.transport = transport;
+        copy.case_sensitive = case_sensitive;
+        copy.ignore_patterns = ignore_patterns;
+        copy.renaming = renaming;
+        copy.bibliography = (bibliography != null) ? bibliography.clone() : null;
+        return copy;
+    }
+
 }
@@ -9,10 +9,17 @@ import java.util.Vector;
  */
 public class Library
 {
+    public static final String BULK = "bulk";
+    public static final String SFTP = "sftp";
+
     /**
      * Transient hash map for item look-ups
      */
     public transient Multimap<String, Integer> itemMap;
+    /**
+     * Transient trigram index for find and get, built on first search
+     */
+    public transient ItemIndex itemIndex;
     /**
      * One or more Items.
      */
@@ -25,5 +32,9 @@ public class Library
      * One or more Sources.
      */
     public String[] sources;
+    /**
+     * Optional transport, sftp or bulk, overrides the libraries transport.
+     */
+    public String transport;
 
 }
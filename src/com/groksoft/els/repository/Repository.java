@@ -1,11 +1,15 @@
 package com.groksoft.els.repository;
 
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
 import com.groksoft.els.Configuration;
 import com.groksoft.els.MungerException;
 import com.groksoft.els.Utils;
+import com.groksoft.els.bulk.BulkChannel;
+import com.groksoft.els.throttle.Governor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -13,13 +17,20 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -34,8 +45,11 @@ public class Repository
     public static final boolean VALIDATE = true;
     private transient Configuration cfg = null;
     private String jsonFilename = "";
-    private LibraryData libraryData = null;
+    private final AtomicReference<LibraryData> libraryData = new AtomicReference<>();
     private transient Logger logger = LogManager.getLogger("applog");
+    private transient volatile int changes = 0;
+    private transient boolean watched = false;
+    private final transient Object writer = new Object(); // one rescan or Watcher update at a time
 
     /**
      * Instantiates a new Collection.
@@ -47,6 +61,44 @@ public class Repository
         cfg = config;
     }
 
+    /**
+     * Copy a library without its items
+     *
+     * @param lib The library
+     * @return Library with the same name, sources and transport
+     */
+    private Library copy(Library lib)
+    {
+        Library copy = new Library();
+        copy.name = lib.name;
+        copy.sources = (lib.sources != null) ? lib.sources.clone() : null;
+        copy.transport = lib.transport;
+        return copy;
+    }
+
+    /**
+     * Copy an item with new paths
+     * <p>
+     * Items are not changed once made, they may be in a published generation.
+     *
+     * @param item     The item
+     * @param itemPath The new item path
+     * @param fullPath The new full path
+     * @return Item copy
+     */
+    private Item copy(Item item, String itemPath, String fullPath)
+    {
+        Item copy = new Item();
+        copy.setDirectory(item.isDirectory());
+        copy.setFullPath(fullPath);
+        copy.setItemPath(itemPath);
+        copy.setLibrary(item.getLibrary());
+        copy.setModified(item.getModified());
+        copy.setSize(item.getSize());
+        copy.setSymLink(item.isSymLink());
+        return copy;
+    }
+
     /**
      * Export library items to JSON collection file.
      *
@@ -54,15 +106,12 @@ public class Repository
      */
     public void exportItems() throws MungerException
     {
-        String json;
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-
         logger.info("Writing collection file " + cfg.getExportCollectionFilename());
-        json = gson.toJson(libraryData);
         try
         {
             PrintWriter outputStream = new PrintWriter(cfg.getExportCollectionFilename());
-            outputStream.println(json);
+            exportItems(outputStream);
+            outputStream.println();
             outputStream.close();
         }
         catch (FileNotFoundException fnf)
@@ -71,6 +120,28 @@ public class Repository
         }
     }
 
+    /**
+     * Export library items as JSON to a writer
+     * <p>
+     * The JSON is serialized straight to the writer without building it in memory.
+     *
+     * @param writer Destination, it is flushed but not closed
+     * @throws MungerException the els exception
+     */
+    public void exportItems(Writer writer) throws MungerException
+    {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        try
+        {
+            gson.toJson(getLibraryData(), writer);
+            writer.flush();
+        }
+        catch (JsonIOException | IOException e)
+        {
+            throw new MungerException("Exception while writing collection trace: " + Utils.getStackTrace(e));
+        }
+    }
+
     /**
      * Export library items to text file.
      *
@@ -83,7 +154,7 @@ public class Repository
         try
         {
             PrintWriter outputStream = new PrintWriter(cfg.getExportTextFilename());
-            for (Library lib : libraryData.libraries.bibliography)
+            for (Library lib : getLibraryData().libraries.bibliography)
             {
                 if (!cfg.isSpecificLibrary() || cfg.isSelectedLibrary(lib.name))
                 {
@@ -148,7 +219,7 @@ public class Repository
     {
         boolean has = false;
         Library retLib = null;
-        for (Library lib : libraryData.libraries.bibliography)
+        for (Library lib : getLibraryData().libraries.bibliography)
         {
             if (lib.name.equalsIgnoreCase(libraryName))
             {
@@ -170,7 +241,40 @@ public class Repository
      */
     public LibraryData getLibraryData()
     {
-        return libraryData;
+        return libraryData.get();
+    }
+
+    /**
+     * Gets the number of times items were rescanned or updated by a Watcher
+     *
+     * @return int count, changes whenever the items change
+     */
+    public int getChanges()
+    {
+        return changes;
+    }
+
+    /**
+     * Gets the trigram index of a library, built if needed
+     * <p>
+     * Searches of other libraries, and rescans, are not held up while it is built.
+     *
+     * @param lib The library
+     * @return ItemIndex of the library's items
+     */
+    public ItemIndex getItemIndex(Library lib)
+    {
+        synchronized (lib)
+        {
+            if (lib.itemIndex == null)
+            {
+                long start = System.currentTimeMillis();
+                lib.itemIndex = new ItemIndex(lib.items);
+                logger.info("Indexed " + lib.name + ", " + (lib.items != null ? lib.items.size() : 0) + " items, " +
+                        lib.itemIndex.getSize() + " trigrams in " + (System.currentTimeMillis() - start) + " ms");
+            }
+            return lib.itemIndex;
+        }
     }
 
     /**
@@ -182,7 +286,7 @@ public class Repository
         try
         {
             String key = itemPath;
-            if (!libraryData.libraries.case_sensitive)
+            if (!getLibraryData().libraries.case_sensitive)
             {
                 key = key.toLowerCase();
             }
@@ -217,7 +321,7 @@ public class Repository
      */
     public String getWriteSeparator() throws MungerException
     {
-        return Utils.getFileSeparator(libraryData.libraries.flavor);
+        return Utils.getFileSeparator(getLibraryData().libraries.flavor);
     }
 
     /**
@@ -245,7 +349,8 @@ public class Repository
         }
         match = path;
         path = null;
-        for (Library lib : libraryData.libraries.bibliography)
+        Libraries libraries = getLibraryData().libraries;
+        for (Library lib : libraries.bibliography)
         {
             if (lib.name.equalsIgnoreCase(libraryName))
             {
@@ -255,7 +360,7 @@ public class Repository
                     // has to be a linear search because directories are not placed in the itemMap hash map
                     for (Item item : lib.items)
                     {
-                        if (libraryData.libraries.case_sensitive)
+                        if (libraries.case_sensitive)
                         {
                             if (Utils.pipe(this, item.getItemPath()).equals(match))
                             {
@@ -303,7 +408,7 @@ public class Repository
 
         if (!pubItem.isDirectory())
         {
-            for (Library lib : libraryData.libraries.bibliography)
+            for (Library lib : getLibraryData().libraries.bibliography)
             {
                 if (cfg.isCrossCheck() || lib.name.equalsIgnoreCase(pubItem.getLibrary()))
                 {
@@ -346,7 +451,7 @@ public class Repository
                 {
                     if (!item.isDirectory())
                     {
-                        boolean match = (libraryData.libraries.case_sensitive) ?
+                        boolean match = (getLibraryData().libraries.case_sensitive) ?
                                 Utils.pipe(this, item.getItemPath()).equals(itemPath) :
                                 Utils.pipe(this, item.getItemPath()).equalsIgnoreCase(itemPath);
 
@@ -386,7 +491,7 @@ public class Repository
     public void hasPublisherDuplicate(Item pubItem, String itemPath) throws MungerException
     {
         String key;
-        for (Library lib : libraryData.libraries.bibliography)
+        for (Library lib : getLibraryData().libraries.bibliography)
         {
             if (cfg.isCrossCheck() || lib.name.equalsIgnoreCase(pubItem.getLibrary()))
             {
@@ -421,7 +526,7 @@ public class Repository
                     // do not match self or directories
                     if (item != pubItem && !item.isDirectory())
                     {
-                        boolean match = (libraryData.libraries.case_sensitive) ?
+                        boolean match = (getLibraryData().libraries.case_sensitive) ?
                                 Utils.pipe(this, item.getItemPath()).equals(itemPath) :
                                 Utils.pipe(this, item.getItemPath()).equalsIgnoreCase(itemPath);
 
@@ -470,76 +575,119 @@ public class Repository
      */
     public boolean isInitialized()
     {
-        if (this.libraryData != null && (this.jsonFilename != null && this.jsonFilename.length() > 0))
+        if (getLibraryData() != null && (this.jsonFilename != null && this.jsonFilename.length() > 0))
             return true;
         else
             return false;
     }
 
+    /**
+     * Is a transport element valid
+     *
+     * @param transport The transport, may be null
+     * @return true if null, sftp or bulk
+     */
+    private boolean isTransport(String transport)
+    {
+        return transport == null || transport.equalsIgnoreCase(Library.SFTP) || transport.equalsIgnoreCase(Library.BULK);
+    }
+
+    /**
+     * Map the item paths of a library to their positions
+     *
+     * @param libraries The Libraries of the items
+     * @param items     The items
+     * @return Multimap of pipe-separated item path to position
+     */
+    private Multimap<String, Integer> map(Libraries libraries, Vector<Item> items) throws MungerException
+    {
+        Multimap<String, Integer> itemMap = ArrayListMultimap.create();
+        String separator = Utils.getFileSeparator(libraries.flavor);
+        for (int i = 0; i < items.size(); ++i)
+        {
+            // add itemPath & the item's index in the Vector to the hash map
+            String key = items.elementAt(i).getItemPath();
+            if (!libraries.case_sensitive)
+            {
+                key = key.toLowerCase();
+            }
+            itemMap.put(key.replaceAll(separator, "|"), i);
+        }
+        return itemMap;
+    }
+
     /**
      * Normalize all JSON paths based on "flavor"
+     * <p>
+     * Only for data that is not yet published to readers.
+     *
+     * @param data The LibraryData read
      */
-    public void normalize() throws MungerException
+    private void normalize(LibraryData data) throws MungerException
     {
-        if (libraryData != null)
+        if (data != null)
         {
             // if listen is empty use host
-            if (libraryData.libraries.listen == null ||
-                    libraryData.libraries.listen.length() < 1)
+            if (data.libraries.listen == null ||
+                    data.libraries.listen.length() < 1)
             {
-                libraryData.libraries.listen = libraryData.libraries.host;
+                data.libraries.listen = data.libraries.host;
             }
 
-            String flavor = libraryData.libraries.flavor.toLowerCase();
-            String from = "";
-            String to = "";
-            switch (flavor)
+            for (Library lib : data.libraries.bibliography)
             {
-                case Libraries.LINUX:
-                    from = "\\\\";
-                    to = "/";
-                    break;
-
-                case Libraries.WINDOWS:
-                    from = "/";
-                    to = "\\\\";
-                    break;
+                normalize(data.libraries, lib);
             }
+        }
+    }
 
-            for (Library lib : libraryData.libraries.bibliography)
-            {
-                if (lib.sources != null)
-                {
-                    for (int i = 0; i < lib.sources.length; ++i)
-                    {
-                        lib.sources[i] = normalizeSubst(lib.sources[i], from, to);
-                    }
-                }
-                if (lib.items != null)
-                {
-                    // setup the hash map for this library
-                    if (lib.itemMap == null)
-                        lib.itemMap = ArrayListMultimap.create();
-                    else
-                        lib.itemMap.clear();
+    /**
+     * Normalize the paths of one library based on "flavor" and map its items
+     * <p>
+     * Only for a library that is not yet published to readers.
+     *
+     * @param libraries The Libraries of the library
+     * @param lib       The library
+     */
+    private void normalize(Libraries libraries, Library lib) throws MungerException
+    {
+        String flavor = libraries.flavor.toLowerCase();
+        String from = "";
+        String to = "";
+        switch (flavor)
+        {
+            case Libraries.LINUX:
+                from = "\\\\";
+                to = "/";
+                break;
 
-                    for (int i = 0; i < lib.items.size(); ++i)
-                    {
-                        Item item = lib.items.elementAt(i);
-                        item.setItemPath(normalizeSubst(item.getItemPath(), from, to));
-                        item.setFullPath(normalizeSubst(item.getFullPath(), from, to));
+            case Libraries.WINDOWS:
+                from = "/";
+                to = "\\\\";
+                break;
+        }
 
-                        // add itemPath & the item's index in the Vector to the hash map
-                        String key = item.getItemPath();
-                        if (!libraryData.libraries.case_sensitive)
-                        {
-                            key = key.toLowerCase();
-                        }
-                        lib.itemMap.put(Utils.pipe(this, key), i);
-                    }
-                }
+        if (lib.sources != null)
+        {
+            for (int i = 0; i < lib.sources.length; ++i)
+            {
+                lib.sources[i] = normalizeSubst(lib.sources[i], from, to);
             }
         }
+        lib.itemIndex = null; // built on the first search
+        lib.itemMap = null;
+        if (lib.items != null)
+        {
+            for (int i = 0; i < lib.items.size(); ++i)
+            {
+                Item item = lib.items.get(i);
+                String itemPath = normalizeSubst(item.getItemPath(), from, to);
+                String fullPath = normalizeSubst(item.getFullPath(), from, to);
+                if (!itemPath.equals(item.getItemPath()) || !fullPath.equals(item.getFullPath()))
+                    lib.items.set(i, copy(item, itemPath, fullPath));
+            }
+            lib.itemMap = map(libraries, lib.items);
+        }
     }
 
     /**
@@ -553,10 +701,10 @@ public class Repository
      */
     public String normalize(String toFlavor, String path) throws MungerException
     {
-        if (!toFlavor.equalsIgnoreCase(libraryData.libraries.flavor))
+        if (!toFlavor.equalsIgnoreCase(getLibraryData().libraries.flavor))
         {
             String to = Utils.getFileSeparator(toFlavor);
-            path = normalizeSubst(path, Utils.getFileSeparator(libraryData.libraries.flavor), to);
+            path = normalizeSubst(path, Utils.getFileSeparator(getLibraryData().libraries.flavor), to);
         }
         return path;
     }
@@ -566,6 +714,32 @@ public class Repository
         return path.replaceAll(from, to);
     }
 
+    /**
+     * Publish a new generation of the LibraryData
+     * <p>
+     * The Libraries are copied with the replaced libraries in a new
+     * bibliography and swapped in at once. Sessions that are reading the
+     * previous generation go on without locks and see all of it.
+     *
+     * @param replaced Each library replaced, and its replacement
+     */
+    private void publish(Map<Library, Library> replaced)
+    {
+        if (replaced.isEmpty())
+            return;
+        LibraryData current = libraryData.get();
+        LibraryData next = new LibraryData();
+        next.libraries = current.libraries.copy();
+        for (int i = 0; i < next.libraries.bibliography.length; ++i)
+        {
+            Library lib = replaced.get(next.libraries.bibliography[i]);
+            if (lib != null)
+                next.libraries.bibliography[i] = lib;
+        }
+        libraryData.set(next);
+        ++changes;
+    }
+
     /**
      * Read library.
      *
@@ -577,15 +751,15 @@ public class Repository
         try
         {
             String json;
-            if (libraryData != null)
-                libraryData = null;
+            libraryData.set(null);
             Gson gson = new Gson();
             logger.info("Reading Libraries file " + filename);
             setJsonFilename(filename);
             json = new String(Files.readAllBytes(Paths.get(filename)));
-            libraryData = gson.fromJson(json, LibraryData.class);
-            normalize();
-            logger.info("Read \"" + libraryData.libraries.description + "\" successfully");
+            LibraryData data = gson.fromJson(json, LibraryData.class);
+            normalize(data);
+            libraryData.set(data);
+            logger.info("Read \"" + data.libraries.description + "\" successfully");
         }
         catch (IOException ioe)
         {
@@ -593,6 +767,16 @@ public class Repository
         }
     }
 
+    /**
+     * Is this repository kept current by a Watcher
+     *
+     * @return true if the items follow the filesystem without a rescan
+     */
+    public boolean isWatched()
+    {
+        return watched;
+    }
+
     /**
      * Perform renaming on entire repository
      */
@@ -618,6 +802,9 @@ public class Repository
 
     /**
      * Perform renaming on either files or directories
+     * <p>
+     * Renamed items are copies in a new copy of their library, published as a
+     * new generation as a scan is.
      */
     private boolean renameItems(boolean directories) throws Exception
     {
@@ -627,64 +814,80 @@ public class Repository
         String old = "";
         boolean renameDone = false;
 
-        for (Library pubLib : getLibraryData().libraries.bibliography)
+        synchronized (writer)
         {
-            if (!cfg.isSpecificLibrary() || cfg.isSelectedLibrary(pubLib.name))
+            Map<Library, Library> renamed = new IdentityHashMap<>();
+            for (Library pubLib : getLibraryData().libraries.bibliography)
             {
-                for (Item item : pubLib.items)
+                if (!cfg.isSpecificLibrary() || cfg.isSelectedLibrary(pubLib.name))
                 {
-                    if ((!directories && !item.isDirectory()) || (directories && item.isDirectory()))
+                    Vector<Item> items = null; // copied at the first rename
+                    for (int i = 0; i < pubLib.items.size(); ++i)
                     {
-                        old = getItemName(item);
-                        name = old;
-
-                        // run through all the substitution patterns
-                        for (Renaming subst : libraryData.libraries.renaming)
+                        Item item = pubLib.items.get(i);
+                        if ((!directories && !item.isDirectory()) || (directories && item.isDirectory()))
                         {
-                            if (subst.from.length() > 0 && subst.compiledPattern != null)
-                            {
-                                from = subst.compiledPattern.toString(); // precompiled 'from' during validate()
-                                fromFixed = from; //.replace("?", ".?").replace("*", ".*?");
-                                name = name.replaceAll(fromFixed, subst.to);
-                            }
-                        }
+                            old = getItemName(item);
+                            name = old;
 
-                        // did the name change?
-                        if (!old.equals(name))
-                        {
-                            if (cfg.isDryRun())
+                            // run through all the substitution patterns
+                            for (Renaming subst : getLibraryData().libraries.renaming)
                             {
-                                logger.info("Would rename " + (item.isDirectory() ? "directory" : "file") +
-                                        ": '" + old + "' to '" + name + "'");
+                                if (subst.from.length() > 0 && subst.compiledPattern != null)
+                                {
+                                    from = subst.compiledPattern.toString(); // precompiled 'from' during validate()
+                                    fromFixed = from; //.replace("?", ".?").replace("*", ".*?");
+                                    name = name.replaceAll(fromFixed, subst.to);
+                                }
                             }
-                            else
+
+                            // did the name change?
+                            if (!old.equals(name))
                             {
-                                // replace the name on the end of the item and fullpath
-                                String path = item.getItemPath();
-                                path = path.substring(0, path.length() - old.length());
-                                path = path + name;
-
-                                String full = item.getFullPath();
-                                full = full.substring(0, full.length() - old.length());
-                                full = full + name;
-
-                                // do rename
-                                File existing = new File(item.getFullPath());
-                                File newFile = new File(full);
-                                existing.renameTo(newFile);
-
-                                // update data
-                                item.setItemPath(path);
-                                item.setFullPath(full);
-
-                                logger.info("Renamed " + (item.isDirectory() ? "directory" : "file") +
-                                        ": '" + old + "' to '" + name + "'");
+                                if (cfg.isDryRun())
+                                {
+                                    logger.info("Would rename " + (item.isDirectory() ? "directory" : "file") +
+                                            ": '" + old + "' to '" + name + "'");
+                                }
+                                else
+                                {
+                                    // replace the name on the end of the item and fullpath
+                                    String path = item.getItemPath();
+                                    path = path.substring(0, path.length() - old.length());
+                                    path = path + name;
+
+                                    String full = item.getFullPath();
+                                    full = full.substring(0, full.length() - old.length());
+                                    full = full + name;
+
+                                    // do rename
+                                    File existing = new File(item.getFullPath());
+                                    File newFile = new File(full);
+                                    existing.renameTo(newFile);
+
+                                    // update data, the published item is replaced, not changed
+                                    if (items == null)
+                                        items = new Vector<>(pubLib.items);
+                                    items.set(i, copy(item, path, full));
+
+                                    logger.info("Renamed " + (item.isDirectory() ? "directory" : "file") +
+                                            ": '" + old + "' to '" + name + "'");
+                                }
+                                renameDone = true;
                             }
-                            renameDone = true;
                         }
                     }
+                    if (items != null)
+                    {
+                        Library changed = copy(pubLib);
+                        changed.items = items;
+                        sort(changed);
+                        changed.itemMap = map(getLibraryData().libraries, items);
+                        renamed.put(pubLib, changed);
+                    }
                 }
             }
+            publish(renamed);
         }
         return renameDone;
     }
@@ -696,33 +899,44 @@ public class Repository
      */
     public void scan() throws Exception
     {
-        for (Library lib : getLibraryData().libraries.bibliography)
+        synchronized (writer)
         {
-            if (!cfg.isSpecificLibrary() || cfg.isSelectedLibrary(lib.name))
+            Map<Library, Library> scanned = new IdentityHashMap<>();
+            for (Library lib : getLibraryData().libraries.bibliography)
             {
-                scanSources(lib);
-                sort(lib);
+                if (!cfg.isSpecificLibrary() || cfg.isSelectedLibrary(lib.name))
+                {
+                    scanned.put(lib, scanSources(lib));
+                }
             }
+            publish(scanned);
         }
-        normalize();
     }
 
     /**
      * Scan a specific library name.
      *
+     * @param libraryName the library name
+     * @return the scanned Library, null if not found
      * @throws MungerException the els exception
      */
-    public void scan(String libraryName) throws MungerException
+    public Library scan(String libraryName) throws MungerException
     {
-        for (Library lib : libraryData.libraries.bibliography)
+        synchronized (writer)
         {
-            if (libraryName.length() > 0 && libraryName.equalsIgnoreCase(lib.name))
+            Library found = null;
+            Map<Library, Library> scanned = new IdentityHashMap<>();
+            for (Library lib : getLibraryData().libraries.bibliography)
             {
-                scanSources(lib);
-                sort(lib);
+                if (libraryName.length() > 0 && libraryName.equalsIgnoreCase(lib.name))
+                {
+                    found = scanSources(lib);
+                    scanned.put(lib, found);
+                }
             }
+            publish(scanned);
+            return found;
         }
-        normalize();
     }
 
     /**
@@ -735,44 +949,34 @@ public class Repository
      */
     private int scanDirectory(Library library, String base, String directory) throws MungerException
     {
-        int count = 0;
-        Item item = null;
-        String fullPath = "";
-        String itemPath = "";
-        long size = 0;
-        boolean isDir = false;
-        boolean isSym = false;
-        Path path = Paths.get(directory);
-
         if (library.items == null)
         {
             library.items = new Vector<>();
         }
+        return scanDirectory(library, base, directory, library.items);
+    }
+
+    /**
+     * Scan a directory into a list, recursively.
+     *
+     * @param library   the library of the directory
+     * @param base      the library source containing the directory
+     * @param directory the directory
+     * @param items     receives the items found
+     * @return int count of entries in the directory
+     * @throws MungerException the els exception
+     */
+    int scanDirectory(Library library, String base, String directory, List<Item> items) throws MungerException
+    {
+        int count = 0;
+        Path path = Paths.get(directory);
 
         try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(path))
         {
             for (Path entry : directoryStream)
             {
                 ++count;
-                item = new Item();
-                fullPath = entry.toString();                            // full path
-                item.setFullPath(fullPath);
-                path = Paths.get(fullPath);
-                isDir = Files.isDirectory(path);                        // is directory check
-                item.setDirectory(isDir);
-                size = (isDir ? 0L : Files.size(path));                 // size
-                item.setSize(size);
-                itemPath = fullPath.substring(base.length() + 1);       // item path
-                item.setItemPath(itemPath);
-                isSym = Files.isSymbolicLink(path);                     // is symbolic link check
-                item.setSymLink(isSym);
-                item.setLibrary(library.name);                          // the library name
-                library.items.add(item);
-                if (isDir)
-                {
-                    // track item count in a directory item's size
-                    item.setSize(scanDirectory(library, base, item.getFullPath()));
-                }
+                scanItem(library, base, entry, items);
             }
         }
         catch (IOException ioe)
@@ -782,23 +986,106 @@ public class Repository
         return count;
     }
 
+    /**
+     * Scan one directory entry, recursively if it is a directory.
+     *
+     * @param library the library of the entry
+     * @param base    the library source containing the entry
+     * @param entry   the file or directory
+     * @param items   receives the item and any below it
+     * @return Item of the entry
+     * @throws MungerException the els exception
+     */
+    Item scanItem(Library library, String base, Path entry, List<Item> items) throws MungerException
+    {
+        Item item = new Item();
+        String fullPath = entry.toString();                             // full path
+        Governor.getInstance().acquireOperation(fullPath);              // throttle stats
+        item.setFullPath(fullPath);
+        try
+        {
+            BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+            boolean isDir = attrs.isDirectory();                        // is directory check
+            item.setDirectory(isDir);
+            item.setSize(isDir ? 0L : attrs.size());                    // size
+            item.setModified(attrs.lastModifiedTime().toMillis());      // modified time, not serialized
+            item.setItemPath(fullPath.substring(base.length() + 1));   // item path
+            item.setSymLink(Files.isSymbolicLink(entry));               // is symbolic link check
+            item.setLibrary(library.name);                              // the library name
+            items.add(item);
+            if (isDir)
+            {
+                // track item count in a directory item's size
+                item.setSize(scanDirectory(library, base, fullPath, items));
+            }
+        }
+        catch (IOException ioe)
+        {
+            throw new MungerException("Exception reading " + fullPath + " trace: " + Utils.getStackTrace(ioe));
+        }
+        return item;
+    }
+
     /**
      * Scan the sources of a library.
      * <p>
-     * Used by the public scan methods.
+     * Used by the public scan methods. The items are scanned into a new copy
+     * of the library that is sorted and mapped before it is published.
      *
      * @param lib
+     * @return the new Library
      * @throws MungerException
      */
-    private void scanSources(Library lib) throws MungerException
+    private Library scanSources(Library lib) throws MungerException
     {
-        logger.info("Scanning " + getLibraryData().libraries.description + ": " + lib.name);
-        lib.items = null;
-        for (String src : lib.sources)
+        Libraries libraries = getLibraryData().libraries;
+        logger.info("Scanning " + libraries.description + ": " + lib.name);
+        Library scanned = copy(lib);
+        for (String src : scanned.sources)
         {
             logger.info("  " + src);
-            scanDirectory(lib, src, src);
+            scanDirectory(scanned, src, src);
         }
+        if (scanned.items != null)
+            sort(scanned);
+        normalize(libraries, scanned);
+        return scanned;
+    }
+
+    /**
+     * Replace the items of a library with a changed copy.
+     * <p>
+     * Used by a Watcher. A new copy of the library is mapped and the trigram
+     * index is given the changes, then published. If the library was rescanned
+     * since the Watcher read its items the rescan is kept, it is newer.
+     *
+     * @param lib     the library the items were read from
+     * @param items   the new items, sorted
+     * @param added   the items not in the previous Vector
+     * @param removed the items of the previous Vector not in the new one
+     * @throws MungerException the els exception
+     */
+    public void setItems(Library lib, Vector<Item> items, List<Item> added, Collection<Item> removed) throws MungerException
+    {
+        synchronized (writer)
+        {
+            Library changed = copy(lib);
+            changed.items = items;
+            changed.itemMap = map(getLibraryData().libraries, items);
+            ItemIndex index = lib.itemIndex;
+            changed.itemIndex = (index != null) ? index.update(added, removed) : null;
+            publish(Collections.singletonMap(lib, changed));
+        }
+    }
+
+    /**
+     * Set whether a Watcher keeps this repository current
+     *
+     * @param watched true if watched
+     */
+    public void setWatched(boolean watched)
+    {
+        this.watched = watched;
     }
 
     /**
@@ -817,12 +1104,13 @@ public class Repository
      */
     public void validate() throws MungerException, Exception
     {
-        if (libraryData == null)
+        LibraryData data = getLibraryData();
+        if (data == null)
         {
             throw new MungerException("Libraries are null");
         }
 
-        Libraries lbs = libraryData.libraries;
+        Libraries lbs = data.libraries;
         if (lbs == null)
         {
             throw new MungerException("libraries must be defined");
@@ -837,6 +1125,15 @@ public class Repository
             throw new MungerException("libraries.case_sensitive true/false must be defined");
         }
 
+        if (lbs.bulk != null && !lbs.bulk.equalsIgnoreCase(BulkChannel.AES_GCM) && !lbs.bulk.equalsIgnoreCase(BulkChannel.NONE))
+        {
+            throw new MungerException("libraries.bulk must be " + BulkChannel.AES_GCM + " or " + BulkChannel.NONE);
+        }
+        if (!isTransport(lbs.transport))
+        {
+            throw new MungerException("libraries.transport must be " + Library.SFTP + " or " + Library.BULK);
+        }
+
         if (lbs.ignore_patterns != null && lbs.ignore_patterns.length > 0)
         {
             Pattern patt = null;
@@ -896,6 +1193,10 @@ public class Repository
             {
                 throw new MungerException("bibliography.name " + i + " must be defined");
             }
+            if (!isTransport(lib.transport))
+            {
+                throw new MungerException("bibliography[" + i + "].transport must be " + Library.SFTP + " or " + Library.BULK);
+            }
             if (lib.sources == null || lib.sources.length == 0)
             {
                 throw new MungerException("bibliography.sources " + i + " must be defined");
@@ -0,0 +1,551 @@
+package com.groksoft.els.repository;
+
+import com.groksoft.els.MungerException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep a listener's repository current as files change
+ * <p>
+ * After one scan every directory of the libraries is registered with a
+ * WatchService. When events arrive for a directory it is listed again and
+ * compared to its items: new entries are scanned, missing ones are removed with
+ * everything below them, and files with a new size or modified time are
+ * replaced. The changes of a library are made to a copy of its items,
+ * published by the Repository as a new generation, so find, get and
+ * collection see a whole collection without a rescan.
+ * <p>
+ * Directories that cannot be watched, such as on a network share or past the
+ * system's limit of watches, are polled for a new modified time instead.
+ * <p>
+ * A continuous publish is also handed each new or changed file as it is
+ * applied, see setLanded().
+ */
+public class Watcher extends Thread
+{
+    public static final long POLL_INTERVAL = 10000L; // ms between checks of polled directories
+    public static final long SETTLE = 1000L;         // ms to gather more events before applying them
+
+    private static final Comparator<Item> ORDER = (item1, item2) -> item1.getItemPath().compareToIgnoreCase(item2.getItemPath());
+
+    private transient Logger logger = LogManager.getLogger("applog");
+    private Map<String, Source> directories = new HashMap<>();
+    private Map<WatchKey, String> keys = new HashMap<>();
+    private BlockingQueue<Item> landed = null;
+    private Map<String, Long> polled = new HashMap<>();
+    private Repository repo;
+    private String separator;
+    private WatchService service = null;
+    private volatile boolean stop = false;
+    private boolean warned = false;
+    private Map<String, WatchKey> watches = new HashMap<>();
+
+    /**
+     * The library name and source of a directory
+     */
+    private static class Source
+    {
+        String base;
+        String library;
+
+        Source(String library, String base)
+        {
+            this.library = library;
+            this.base = base;
+        }
+    }
+
+    private Watcher()
+    {
+        // hide default constructor
+    }
+
+    /**
+     * Instantiate a Watcher
+     *
+     * @param repo The repository of a listener daemon
+     */
+    public Watcher(Repository repo)
+    {
+        super("Watcher");
+        this.repo = repo;
+        setDaemon(true);
+    }
+
+    /**
+     * Hand each new or changed file to a queue after it is applied
+     *
+     * @param landed The queue, null for none
+     */
+    public void setLanded(BlockingQueue<Item> landed)
+    {
+        this.landed = landed;
+    }
+
+    /**
+     * Scan the libraries and start watching them
+     *
+     * @throws MungerException
+     */
+    public void startWatching() throws MungerException
+    {
+        separator = repo.getSeparator();
+        try
+        {
+            service = FileSystems.getDefault().newWatchService();
+        }
+        catch (IOException | UnsupportedOperationException e)
+        {
+            logger.warn("File events are not available, polling directories every " + (POLL_INTERVAL / 1000) + " seconds: " + e.getMessage());
+        }
+        scanAll();
+        repo.setWatched(true);
+        start();
+    }
+
+    /**
+     * Politely request the watcher to stop
+     */
+    public void requestStop()
+    {
+        stop = true;
+        this.interrupt();
+        if (service != null)
+        {
+            try
+            {
+                service.close();
+            }
+            catch (IOException e)
+            {
+                logger.info(e);
+            }
+        }
+    }
+
+    /**
+     * Gather events, poll directories without them, and apply the changes
+     */
+    public void run()
+    {
+        long nextPoll = System.currentTimeMillis() + POLL_INTERVAL;
+        while (!stop)
+        {
+            Set<String> dirty = new HashSet<>();
+            boolean overflow = false;
+            try
+            {
+                long wait = Math.max(1L, nextPoll - System.currentTimeMillis());
+                if (service != null)
+                {
+                    WatchKey key = service.poll(wait, TimeUnit.MILLISECONDS);
+                    long settle = System.currentTimeMillis() + SETTLE;
+                    while (key != null)
+                    {
+                        overflow |= take(key, dirty);
+                        long remaining = settle - System.currentTimeMillis();
+                        key = (remaining > 0) ? service.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                    }
+                }
+                else
+                {
+                    Thread.sleep(wait);
+                }
+            }
+            catch (InterruptedException | ClosedWatchServiceException e)
+            {
+                break;
+            }
+
+            if (System.currentTimeMillis() >= nextPoll)
+            {
+                poll(dirty);
+                nextPoll = System.currentTimeMillis() + POLL_INTERVAL;
+            }
+
+            try
+            {
+                if (overflow)
+                {
+                    logger.warn("Watcher missed file events, rescanning");
+                    scanAll();
+                }
+                else if (!dirty.isEmpty())
+                {
+                    apply(dirty);
+                }
+            }
+            catch (Exception e)
+            {
+                logger.error("Watcher could not update the collection: " + e.getMessage());
+            }
+        }
+        logger.info("Stopped watcher");
+    }
+
+    /**
+     * Apply the changes of directories, one copy of each library's items
+     */
+    private void apply(Set<String> dirty) throws MungerException
+    {
+        Map<String, List<String>> byLibrary = new HashMap<>();
+        for (String directory : dirty)
+        {
+            Source source = directories.get(directory);
+            if (source != null)
+                byLibrary.computeIfAbsent(source.library, name -> new ArrayList<>()).add(directory);
+        }
+
+        for (Map.Entry<String, List<String>> entry : byLibrary.entrySet())
+        {
+            Library lib = repo.getLibrary(entry.getKey()); // the current generation
+            if (lib == null)
+                continue;
+            Vector<Item> old = (lib.items != null) ? lib.items : new Vector<>();
+            Set<Item> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+            List<Item> added = new ArrayList<>();
+            for (String directory : entry.getValue())
+            {
+                Source source = directories.get(directory);
+                if (source != null) // not removed with an earlier directory
+                    resync(lib, source, directory, old, removed, added);
+            }
+            if (removed.isEmpty() && added.isEmpty())
+                continue;
+
+            added.sort(ORDER);
+            Vector<Item> items = new Vector<>(old.size() - removed.size() + added.size());
+            int j = 0;
+            for (Item item : old)
+            {
+                if (removed.contains(item))
+                    continue;
+                while (j < added.size() && ORDER.compare(added.get(j), item) < 0)
+                    items.add(added.get(j++));
+                items.add(item);
+            }
+            while (j < added.size())
+                items.add(added.get(j++));
+
+            repo.setItems(lib, items, added, removed);
+            logger.info("Watcher updated " + lib.name + ", " + added.size() + " new or changed, " + removed.size() + " removed or changed");
+            if (landed != null)
+            {
+                for (Item item : added)
+                {
+                    if (!item.isDirectory())
+                        landed.offer(item);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy an item with a new size and modified time
+     */
+    private Item copy(Item item, long size, long modified)
+    {
+        Item copy = new Item();
+        copy.setDirectory(item.isDirectory());
+        copy.setFullPath(item.getFullPath());
+        copy.setItemPath(item.getItemPath());
+        copy.setLibrary(item.getLibrary());
+        copy.setModified(modified);
+        copy.setSize(size);
+        copy.setSymLink(item.isSymLink());
+        return copy;
+    }
+
+    /**
+     * Find the position of the first item at or after an item path
+     */
+    private int first(Vector<Item> items, String itemPath)
+    {
+        int low = 0;
+        int high = items.size();
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (items.get(middle).getItemPath().compareToIgnoreCase(itemPath) < 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    private long modified(String directory)
+    {
+        try
+        {
+            return Files.getLastModifiedTime(Paths.get(directory)).toMillis();
+        }
+        catch (IOException e)
+        {
+            return -1L;
+        }
+    }
+
+    /**
+     * Check the polled directories for a new modified time
+     */
+    private void poll(Set<String> dirty)
+    {
+        for (Map.Entry<String, Long> entry : polled.entrySet())
+        {
+            long time = modified(entry.getKey());
+            if (time != entry.getValue())
+            {
+                entry.setValue(time);
+                dirty.add(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Watch a directory, or poll it if it cannot be watched
+     */
+    private void register(String directory, Source source)
+    {
+        directories.put(directory, source);
+        if (service != null)
+        {
+            try
+            {
+                WatchKey key = Paths.get(directory).register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                keys.put(key, directory);
+                watches.put(directory, key);
+                return;
+            }
+            catch (IOException e)
+            {
+                if (!warned)
+                {
+                    logger.warn("Cannot watch " + directory + ", it and any others that fail are polled: " + e.getMessage());
+                    warned = true;
+                }
+            }
+        }
+        polled.put(directory, modified(directory));
+    }
+
+    /**
+     * Remove an item and everything below it
+     */
+    private void remove(Item item, Vector<Item> old, Set<Item> removed, List<Item> added)
+    {
+        removed.add(item);
+        String below = item.getFullPath() + separator;
+        added.removeIf(change -> change.getFullPath().equals(item.getFullPath()) || change.getFullPath().startsWith(below));
+        if (!item.isDirectory())
+            return;
+
+        unregister(item.getFullPath());
+        String prefix = item.getItemPath() + separator;
+        for (int i = first(old, prefix); i < old.size(); ++i)
+        {
+            Item child = old.get(i);
+            if (!child.getItemPath().regionMatches(true, 0, prefix, 0, prefix.length()))
+                break;
+            if (child.getFullPath().startsWith(below))
+            {
+                removed.add(child);
+                if (child.isDirectory())
+                    unregister(child.getFullPath());
+            }
+        }
+    }
+
+    /**
+     * List a directory again and compare it to its items
+     */
+    private void resync(Library lib, Source source, String directory, Vector<Item> old, Set<Item> removed, List<Item> added) throws MungerException
+    {
+        Path path = Paths.get(directory);
+        if (!Files.isDirectory(path))
+            return; // removed, it is removed with its parent's changes
+
+        boolean root = directory.equals(source.base);
+        String prefix = root ? "" : directory.substring(source.base.length() + 1) + separator;
+        String parent = directory + separator;
+
+        // the item of this directory
+        Item self = null;
+        if (!root)
+        {
+            String itemPath = prefix.substring(0, prefix.length() - 1);
+            for (int i = first(old, itemPath); i < old.size() && old.get(i).getItemPath().equalsIgnoreCase(itemPath); ++i)
+            {
+                if (old.get(i).getFullPath().equals(directory))
+                    self = old.get(i);
+            }
+        }
+
+        // the current items directly in this directory
+        Map<String, Item> children = new HashMap<>();
+        for (int i = first(old, prefix); i < old.size(); ++i)
+        {
+            Item item = old.get(i);
+            if (!item.getItemPath().regionMatches(true, 0, prefix, 0, prefix.length()))
+                break;
+            if (!removed.contains(item) && item.getFullPath().startsWith(parent) && item.getFullPath().indexOf(separator, parent.length()) < 0)
+                children.put(item.getFullPath(), item);
+        }
+
+        int count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path))
+        {
+            for (Path entry : stream)
+            {
+                ++count;
+                Item item = children.remove(entry.toString());
+                boolean isDir = Files.isDirectory(entry);
+                if (item != null && item.isDirectory() == isDir)
+                {
+                    if (!isDir)
+                    {
+                        // a file rewritten in place may keep its size
+                        BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+                        long modified = attrs.lastModifiedTime().toMillis();
+                        if (attrs.size() != item.getSize() || modified != item.getModified())
+                        {
+                            removed.add(item);
+                            added.add(copy(item, attrs.size(), modified));
+                        }
+                    }
+                    continue;
+                }
+                if (item != null)
+                    remove(item, old, removed, added); // a file became a directory or the reverse
+
+                List<Item> scanned = new ArrayList<>();
+                repo.scanItem(lib, source.base, entry, scanned);
+                added.addAll(scanned);
+                for (Item found : scanned)
+                {
+                    if (found.isDirectory())
+                        register(found.getFullPath(), source);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Watcher cannot read " + directory + ": " + e.getMessage());
+            return;
+        }
+
+        for (Item item : children.values())
+            remove(item, old, removed, added);
+
+        // a directory item counts its entries
+        if (self != null && self.getSize() != count && !removed.contains(self))
+        {
+            removed.add(self);
+            added.add(copy(self, count, self.getModified()));
+        }
+    }
+
+    /**
+     * Scan all libraries and watch every directory
+     */
+    private void scanAll() throws MungerException
+    {
+        for (WatchKey key : keys.keySet())
+            key.cancel();
+        directories.clear();
+        keys.clear();
+        polled.clear();
+        watches.clear();
+        warned = false;
+
+        for (Library lib : repo.getLibraryData().libraries.bibliography)
+        {
+            repo.scan(lib.name);
+        }
+        for (Library lib : repo.getLibraryData().libraries.bibliography)
+        {
+            if (lib.sources == null)
+                continue;
+            for (String base : lib.sources)
+            {
+                Source source = new Source(lib.name, base);
+                register(base, source);
+                if (lib.items == null)
+                    continue;
+                for (Item item : lib.items)
+                {
+                    if (item.isDirectory() && item.getFullPath().startsWith(base + separator))
+                        register(item.getFullPath(), source);
+                }
+            }
+        }
+        logger.info("Watching " + (directories.size() - polled.size()) + " directories" +
+                (polled.isEmpty() ? "" : ", polling " + polled.size()));
+    }
+
+    /**
+     * Take the events of a key
+     *
+     * @return true if events were lost
+     */
+    private boolean take(WatchKey key, Set<String> dirty)
+    {
+        boolean overflow = false;
+        String directory = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                overflow = true;
+        }
+        if (directory != null)
+            dirty.add(directory);
+        if (!key.reset() && directory != null)
+        {
+            keys.remove(key);
+            watches.remove(directory);
+        }
+        return overflow;
+    }
+
+    /**
+     * Stop watching or polling a directory
+     */
+    private void unregister(String directory)
+    {
+        directories.remove(directory);
+        polled.remove(directory);
+        WatchKey key = watches.remove(directory);
+        if (key != null)
+        {
+            keys.remove(key);
+            key.cancel();
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+package com.groksoft.els.sftp;
+
+import com.groksoft.els.throttle.Governor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Batch archive of small files
+ * <p>
+ * A simple tar-like stream used to send many small files as one sftp upload
+ * which the subscriber unpacks locally. Each entry is a destination path, size,
+ * last modified time and the file's bytes:
+ * <pre>
+ *   "ELSBATCH1"
+ *   { true, UTF destination, long size, long modified, bytes }...
+ *   false
+ * </pre>
+ */
+public class BatchArchive
+{
+    public static final String MAGIC = "ELSBATCH1";
+    public static final String SUFFIX = ".els-batch";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static Logger logger = LogManager.getLogger("applog");
+
+    private BatchArchive()
+    {
+        // hide default constructor
+    }
+
+    /**
+     * Unpack an archive
+     * <p>
+     * Each file is written as .els-part then renamed over any existing file,
+     * the same as an individual sftp transfer. A file that cannot be written,
+     * or whose destination is not allowed, is skipped and the rest are still
+     * unpacked. A damaged archive stops at the damage. Any partial file and
+     * the archive are always deleted.
+     *
+     * @param archive The archive file
+     * @param allowed Test of each destination, false to skip it
+     * @return List of the positions in the archive of the files unpacked
+     * @throws IOException if the archive cannot be read
+     */
+    public static List<Integer> unpack(Path archive, Predicate<Path> allowed) throws IOException
+    {
+        List<Integer> unpacked = new ArrayList<>();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Path part = null;
+        int index = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(archive), BUFFER_SIZE)))
+        {
+            if (!MAGIC.equals(in.readUTF()))
+                throw new IOException("Not an ELS batch archive: " + archive);
+
+            while (in.readBoolean())
+            {
+                String dest = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+
+                Path to = Paths.get(dest);
+                OutputStream out = null;
+                try
+                {
+                    if (!allowed.test(to))
+                        throw new IOException("destination not allowed");
+                    if (to.getParent() != null)
+                        Files.createDirectories(to.getParent());
+                    part = Paths.get(dest + ".els-part");
+                    out = Files.newOutputStream(part);
+                }
+                catch (IOException e)
+                {
+                    logger.error("Cannot unpack " + dest + ": " + e.getMessage());
+                    part = null;
+                }
+
+                // the bytes are read even if the file is skipped, to reach the next one
+                try
+                {
+                    long remaining = size;
+                    while (remaining > 0)
+                    {
+                        int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (n < 0)
+                            throw new EOFException("Batch archive truncated at " + dest);
+                        if (out != null)
+                        {
+                            try
+                            {
+                                out.write(buffer, 0, n);
+                            }
+                            catch (IOException e)
+                            {
+                                logger.error("Cannot unpack " + dest + ": " + e.getMessage());
+                                out.close();
+                                out = null;
+                            }
+                        }
+                        remaining -= n;
+                    }
+                }
+                finally
+                {
+                    if (out != null)
+                        out.close();
+                }
+
+                if (out != null)
+                {
+                    try
+                    {
+                        Files.setLastModifiedTime(part, FileTime.fromMillis(modified));
+                        Files.move(part, to, StandardCopyOption.REPLACE_EXISTING);
+                        part = null;
+                        unpacked.add(index);
+                    }
+                    catch (IOException e)
+                    {
+                        logger.error("Cannot unpack " + dest + ": " + e.getMessage());
+                    }
+                }
+                if (part != null)
+                {
+                    Files.deleteIfExists(part);
+                    part = null;
+                }
+                ++index;
+            }
+        }
+        catch (EOFException e)
+        {
+            logger.error("Batch " + archive + " is truncated at file " + (index + 1));
+        }
+        finally
+        {
+            if (part != null)
+                Files.deleteIfExists(part);
+            Files.deleteIfExists(archive);
+        }
+        logger.info("Unpacked " + unpacked.size() + " of " + index + " files from batch " + archive);
+        return unpacked;
+    }
+
+    /**
+     * Write an archive
+     *
+     * @param out   Stream to write, e.g. an sftp upload
+     * @param srcs  Local source files
+     * @param dests Remote destination paths, one per source
+     * @param host  Remote host for the I/O Governor
+     * @throws IOException
+     */
+    public static void write(OutputStream out, List<String> srcs, List<String> dests, String host) throws IOException
+    {
+        Governor governor = Governor.getInstance();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        data.writeUTF(MAGIC);
+        for (int i = 0; i < srcs.size(); ++i)
+        {
+            File file = new File(srcs.get(i));
+            data.writeBoolean(true);
+            data.writeUTF(dests.get(i));
+            data.writeLong(file.length());
+            data.writeLong(file.lastModified());
+            try (InputStream in = new FileInputStream(file))
+            {
+                int n;
+                long remaining = file.length();
+                while (remaining > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0)
+                {
+                    governor.acquireBytes(srcs.get(i), n);
+                    governor.acquireLink(host, n);
+                    data.write(buffer, 0, n);
+                    remaining -= n;
+                }
+                if (remaining > 0)
+                    throw new IOException("File changed size while batching: " + srcs.get(i));
+            }
+        }
+        data.writeBoolean(false);
+        data.flush();
+    }
+
+}
@@ -1,35 +1,91 @@
 package com.groksoft.els.sftp;
 
+import com.groksoft.els.Configuration;
+import com.groksoft.els.Main;
+import com.groksoft.els.PreallocatedFileChannel;
 import com.groksoft.els.Utils;
 import com.groksoft.els.repository.Libraries;
 import com.groksoft.els.repository.Repository;
+import com.groksoft.els.throttle.Governor;
 import com.jcraft.jsch.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * ClientSftp -to- ServerSftp
  * <br/>
+ * A pool of sftp channels, each on its own session, so files can be sent in
+ * parallel. A channel that dies is reconnected. Very large files may be split
+ * into byte ranges that are sent in parallel into the same .els-part file.
+ * <br/>
+ * With transfer profiles files whose profile differs from the default use a
+ * separate pool of sessions with that profile's cipher, MAC and compression.
+ * <br/>
+ * Files of libraries whose transport is bulk are handed to ClientBulk.
+ * <br/>
  * This implementation uses the Jsch client library:
  *      http://www.jcraft.com/jsch/
  *      https://epaul.github.io/jsch-documentation/
  */
 public class ClientSftp
 {
+    public static final long MINIMUM_RANGE = 1024L * 1024L;
+    public static final long RANGE_SIZE = 256L * 1024L * 1024L;
+    public static final long VERIFY_SIZE = 4L * 1024L * 1024L;
+    public static final int VERIFY_WINDOWS = 4;
+    public static final long BENCHMARK_SIZE = 64L * 1024L * 1024L;
+
+    private ArrayList<ChannelSftp> all = new ArrayList<>();
+    private Configuration cfg;
+    private int channels = 1;
+    private Main.Context context;
+    private Set<String> directories = ConcurrentHashMap.newKeySet();
+    private ExecutorService executor = null;
     private String hostname;
     private int hostport;
-    private Channel jChannel;
-    private Session jSession;
-    private ChannelSftp jSftp;
+    private Map<ChannelSftp, Pool> owners = new ConcurrentHashMap<>();
     private JSch jsch;
     private transient Logger logger = LogManager.getLogger("applog");
     private Repository myRepo;
     private String password;
+    private Pool pool = null;
+    private Map<String, Pool> pools = new HashMap<>();
+    private ExecutorService rangeExecutor = null;
     private Repository theirRepo;
     private String user;
 
+    static
+    {
+        // Jsch's zlib needs jzlib, use the JDK instead
+        JSch.setConfig("zlib", ZlibCompression.class.getName());
+        JSch.setConfig("zlib@openssh.com", ZlibCompression.class.getName());
+    }
+
     private ClientSftp()
     {
         // hide default constructor
@@ -38,11 +94,15 @@ public class ClientSftp
     /**
      * Instantiate this class.
      *
+     * @param config The Configuration object
+     * @param ctxt   The Main.Context, used for the stty client
      * @param mine   Repository of local system
      * @param theirs Repository of remote system
      */
-    public ClientSftp(Repository mine, Repository theirs, boolean primaryServers)
+    public ClientSftp(Configuration config, Main.Context ctxt, Repository mine, Repository theirs, boolean primaryServers)
     {
+        cfg = config;
+        context = ctxt;
         myRepo = mine;
         theirRepo = theirs;
 
@@ -51,16 +111,348 @@ public class ClientSftp
 
         user = myRepo.getLibraryData().libraries.key;
         password = theirRepo.getLibraryData().libraries.key;
+
+        channels = Math.max(1, cfg.getSftpChannels());
+    }
+
+    /**
+     * Channels opened with one transfer profile
+     */
+    private class Pool
+    {
+        LinkedBlockingQueue<ChannelSftp> idle = new LinkedBlockingQueue<>();
+        TransferProfile profile;
+
+        Pool(TransferProfile profile)
+        {
+            this.profile = profile;
+        }
+    }
+
+    /**
+     * Measure sftp throughput of each transfer profile
+     * <p>
+     * Sends an incompressible sample, like video, and a compressible text sample
+     * once with the Jsch defaults and once with each profile, and logs MB/s.
+     */
+    public void benchmark()
+    {
+        File random = null;
+        File text = null;
+        try
+        {
+            random = File.createTempFile("els-benchmark-random", ".tmp");
+            text = File.createTempFile("els-benchmark-text", ".tmp");
+            writeSamples(random, text);
+
+            List<TransferProfile> list = new ArrayList<>();
+            list.add(null);
+            list.addAll(TransferProfiles.getInstance().getProfiles());
+
+            String dest = "els-benchmark-" + System.currentTimeMillis() + ".tmp";
+            logger.info("Benchmark of " + list.size() + " transfer profile" + (list.size() > 1 ? "s" : "") + " to " +
+                    hostname + ":" + hostport + " using " + Utils.formatLong(BENCHMARK_SIZE) + " samples");
+            for (TransferProfile profile : list)
+            {
+                String name = (profile == null) ? "defaults" : profile.name;
+                ChannelSftp jSftp = null;
+                try
+                {
+                    jSftp = open(profile);
+                    Session session = jSftp.getSession();
+                    String algorithms = session.getConfig("cipher.c2s").split(",")[0] + ", " +
+                            session.getConfig("mac.c2s").split(",")[0] + ", " +
+                            session.getConfig("compression.c2s").split(",")[0];
+                    double randomRate = benchmark(jSftp, random, dest);
+                    double textRate = benchmark(jSftp, text, dest);
+                    jSftp.rm(dest);
+                    logger.info(String.format("  %-12s %-45s video-like %8.1f MB/s, text %8.1f MB/s", name, algorithms, randomRate, textRate));
+                }
+                catch (Exception e)
+                {
+                    logger.error("  " + name + " failed: " + e.getMessage());
+                }
+                finally
+                {
+                    if (jSftp != null)
+                        disconnect(jSftp);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Benchmark samples could not be written: " + e.getMessage());
+        }
+        finally
+        {
+            if (random != null)
+                random.delete();
+            if (text != null)
+                text.delete();
+        }
+    }
+
+    /**
+     * Time one upload
+     *
+     * @return double MB/s
+     */
+    private double benchmark(ChannelSftp jSftp, File sample, String dest) throws SftpException
+    {
+        long start = System.nanoTime();
+        jSftp.put(sample.getPath(), dest, ChannelSftp.OVERWRITE);
+        double seconds = (System.nanoTime() - start) / 1000000000.0;
+        return (sample.length() / (1024.0 * 1024.0)) / seconds;
+    }
+
+    /**
+     * Write the incompressible and text benchmark samples
+     */
+    private void writeSamples(File random, File text) throws IOException
+    {
+        byte[] block = new byte[1024 * 1024];
+        Random generator = new Random();
+        try (OutputStream out = new FileOutputStream(random))
+        {
+            for (long written = 0; written < BENCHMARK_SIZE; written += block.length)
+            {
+                generator.nextBytes(block);
+                out.write(block);
+            }
+        }
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(text), StandardCharsets.UTF_8)))
+        {
+            long written = 0;
+            for (int line = 1; written < BENCHMARK_SIZE; ++line)
+            {
+                String s = line + "\n00:" + (line % 60) + ":" + (line % 60) + ",000 --> 00:" + (line % 60) + ":" + (line % 60) + ",500\n" +
+                        "Subtitle line " + generator.nextInt(1000) + " of the benchmark sample\n\n";
+                out.write(s);
+                written += s.length();
+            }
+        }
+    }
+
+    /**
+     * Take an idle channel from the pool for a file, reconnecting it if it has died
+     *
+     * @param src Source file, selects the transfer profile
+     */
+    private ChannelSftp borrow(String src) throws Exception
+    {
+        ChannelSftp sftp = getPool(src).idle.take();
+        if (!isAlive(sftp))
+        {
+            logger.warn("Sftp channel to " + hostname + ":" + hostport + " lost, reconnecting");
+            sftp = reconnect(sftp);
+        }
+        return sftp;
+    }
+
+    /**
+     * Get the number of channels in the pool
+     *
+     * @return int channels
+     */
+    public int getChannels()
+    {
+        return channels;
+    }
+
+    /**
+     * Is a channel and its session connected?
+     */
+    private boolean isAlive(ChannelSftp sftp)
+    {
+        try
+        {
+            return sftp != null && sftp.isConnected() && sftp.getSession().isConnected();
+        }
+        catch (JSchException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Open a new session and sftp channel
+     *
+     * @param profile Transfer profile, null for the Jsch defaults
+     */
+    private ChannelSftp open(TransferProfile profile) throws JSchException
+    {
+        Session session = jsch.getSession(user, hostname, hostport);
+        session.setConfig("StrictHostKeyChecking", "no");
+        configure(session, profile);
+        session.setPassword(password);
+        // IDEA Could implement strict key checking if more security is needed
+        //jsch.setKnownHosts("known_hosts");
+        //jsch.addIdentity("id_rsa");
+        session.connect(30000);
+
+        Channel channel = session.openChannel("sftp");
+        channel.connect();
+        return (ChannelSftp) channel;
+    }
+
+    /**
+     * Set the algorithms of a transfer profile on a session before it connects
+     *
+     * @param session The Jsch session
+     * @param profile Transfer profile, null for the Jsch defaults
+     */
+    static void configure(Session session, TransferProfile profile)
+    {
+        if (profile != null)
+        {
+            if (profile.cipher != null)
+            {
+                session.setConfig("cipher.c2s", profile.cipher);
+                session.setConfig("cipher.s2c", profile.cipher);
+            }
+            if (profile.mac != null)
+            {
+                session.setConfig("mac.c2s", profile.mac);
+                session.setConfig("mac.s2c", profile.mac);
+            }
+            if (profile.compression != null)
+            {
+                session.setConfig("compression.c2s", profile.compression);
+                session.setConfig("compression.s2c", profile.compression);
+            }
+        }
+    }
+
+    /**
+     * Replace a dead channel with a new one
+     * <p>
+     * Tries 3 times, 2 seconds apart.
+     */
+    private ChannelSftp reconnect(ChannelSftp sftp) throws Exception
+    {
+        Pool owner = owners.get(sftp);
+        disconnect(sftp);
+        Exception last = null;
+        for (int attempt = 0; attempt < 3; ++attempt)
+        {
+            try
+            {
+                ChannelSftp fresh = open(owner.profile);
+                synchronized (all)
+                {
+                    all.remove(sftp);
+                    all.add(fresh);
+                }
+                owners.remove(sftp);
+                owners.put(fresh, owner);
+                return fresh;
+            }
+            catch (JSchException e)
+            {
+                last = e;
+                Thread.sleep(2000);
+            }
+        }
+        // keep the pool the same size, the dead channel is retried next time
+        owner.idle.offer(sftp);
+        throw last;
+    }
+
+    /**
+     * Open the channels of a pool
+     */
+    private Pool fill(Pool fresh) throws JSchException
+    {
+        for (int i = 0; i < channels; ++i)
+        {
+            ChannelSftp sftp = open(fresh.profile);
+            synchronized (all)
+            {
+                all.add(sftp);
+            }
+            owners.put(sftp, fresh);
+            fresh.idle.add(sftp);
+        }
+        return fresh;
+    }
+
+    /**
+     * Get the pool for a file, opening it the first time its profile is used
+     *
+     * @param src Source file, null for the default pool
+     */
+    private Pool getPool(String src) throws JSchException
+    {
+        if (src == null)
+            return pool;
+        TransferProfile profile = TransferProfiles.getInstance().find(src);
+        if (profile == null || profile == pool.profile)
+            return pool;
+        synchronized (pools)
+        {
+            Pool found = pools.get(profile.name);
+            if (found == null)
+            {
+                logger.info("Opening " + channels + " sftp connection" + (channels > 1 ? "s" : "") + " for transfer profile " + profile.name);
+                found = fill(new Pool(profile));
+                pools.put(profile.name, found);
+            }
+            return found;
+        }
+    }
+
+    /**
+     * Return a channel to the pool
+     */
+    private void release(ChannelSftp sftp)
+    {
+        if (sftp != null)
+            owners.get(sftp).idle.offer(sftp);
+    }
+
+    /**
+     * Disconnect a channel and its session
+     */
+    private void disconnect(ChannelSftp sftp)
+    {
+        try
+        {
+            Session session = sftp.getSession();
+            sftp.disconnect();
+            session.disconnect();
+        }
+        catch (Exception e)
+        {
+            // ignore
+        }
+    }
+
+    /**
+     * Can small files be sent as a batch?
+     * <p>
+     * Batches are unpacked by the subscriber using an automated stty session.
+     *
+     * @return true if an automated stty session is connected
+     */
+    public boolean canBatch()
+    {
+        return context != null && context.clientStty != null && !context.clientStty.isTerminal() && context.clientStty.isConnected();
     }
 
     /**
      * Make a remote directory tree
+     * <p>
+     * Directories known to exist are remembered for the session so only the
+     * missing part of a path is created. With an automated stty session the
+     * whole tree is made by one mkdirs command instead of an sftp mkdir per
+     * segment.
      *
+     * @param jSftp    The channel to use
      * @param pathname Path and filename. Note that an ending filename is required but not used
-     * @return True if any directories were created
+     * @return The directory path
      * @throws IOException
      */
-    private String makeRemoteDirectory(String pathname) throws Exception
+    private String makeRemoteDirectory(ChannelSftp jSftp, String pathname) throws Exception
     {
         if (theirRepo.getLibraryData().libraries.flavor.equalsIgnoreCase(Libraries.WINDOWS))
         {
@@ -76,29 +468,57 @@ public class ClientSftp
 
         sep = theirRepo.getSeparator();
         String whole = "";
+        ArrayList<String> segments = new ArrayList<>();
         for (int i = 0; i < parts.length - 1; ++i)
         {
-            try
+            // is it a Windows drive letter: ?
+            if (i == 0 && parts[i].endsWith(":"))
             {
-                // is it a Windows drive letter: ?
-                if (i == 0 && parts[i].endsWith(":"))
+                // don't try to create a Windows root directory, e.g. C:\
+                if (theirRepo.getLibraryData().libraries.flavor.equalsIgnoreCase(Libraries.WINDOWS) &&
+                        parts[i].length() == 2)
                 {
-                    // don't try to create a Windows root directory, e.g. C:\
-                    if (theirRepo.getLibraryData().libraries.flavor.equalsIgnoreCase(Libraries.WINDOWS) &&
-                            parts[i].length() == 2)
-                    {
-                        whole = parts[i];
-                        continue;
-                    }
+                    whole = parts[i];
+                    continue;
                 }
-                whole = whole + ((i > 0) ? sep : "") + parts[i];
+            }
+            whole = whole + ((i > 0) ? sep : "") + parts[i];
 
-                // protect the root of drives
-                if (whole.length() < 1 || whole.equals(sep))
-                    continue;
+            // protect the root of drives
+            if (whole.length() < 1 || whole.equals(sep))
+                continue;
+
+            segments.add(whole);
+        }
 
+        if (segments.isEmpty() || directories.contains(whole))
+            return whole;
+
+        if (canBatch())
+        {
+            try
+            {
+                if (context.clientStty.mkdirs(whole))
+                {
+                    directories.addAll(segments);
+                    return whole;
+                }
+                logger.warn("Subscriber could not make " + whole + ", trying sftp");
+            }
+            catch (Exception e)
+            {
+                logger.warn("Mkdirs request failed for " + whole + ": " + e.getMessage());
+            }
+        }
+
+        for (String segment : segments)
+        {
+            if (directories.contains(segment))
+                continue;
+            try
+            {
                 // try to create next directory segment
-                jSftp.mkdir(whole);
+                jSftp.mkdir(segment);
             }
             catch (SftpException e)
             {
@@ -106,10 +526,73 @@ public class ClientSftp
                 if (!msg.contains("alreadyexists")) // ignore "already exists" errors
                     throw e;
             }
+            directories.add(segment);
         }
         return whole;
     }
 
+    /**
+     * Ask the subscriber to preallocate a large upload
+     * <p>
+     * Requires an automated stty session to the same subscriber. A manual terminal
+     * session is left alone because its console owns the connection.
+     *
+     * @param src  Source file path with local separators
+     * @param dest Destination file path with remote separators
+     */
+    private void preallocate(String src, String dest)
+    {
+        long size = new File(src).length();
+        if (size < PreallocatedFileChannel.MINIMUM_SIZE)
+            return;
+        if (context == null || context.clientStty == null || context.clientStty.isTerminal() || !context.clientStty.isConnected())
+            return;
+        try
+        {
+            if (!context.clientStty.preallocate(dest, size))
+                logger.warn("Subscriber did not preallocate " + dest);
+        }
+        catch (Exception e)
+        {
+            logger.warn("Preallocate request failed for " + dest + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Progress monitor that throttles a put to the I/O Governor
+     * <p>
+     * Jsch calls count() after each chunk is read from the source, blocking
+     * there holds back the upload.
+     */
+    private class ThrottleMonitor implements SftpProgressMonitor
+    {
+        private String src;
+
+        ThrottleMonitor(String src)
+        {
+            this.src = src;
+        }
+
+        @Override
+        public boolean count(long count)
+        {
+            Governor governor = Governor.getInstance();
+            governor.acquireBytes(src, count);
+            governor.acquireLink(hostname, count);
+            return true;
+        }
+
+        @Override
+        public void end()
+        {
+        }
+
+        @Override
+        public void init(int op, String src, String dest, long max)
+        {
+        }
+    }
+
     /**
      * Start this sftp client
      */
@@ -117,19 +600,16 @@ public class ClientSftp
     {
         try
         {
-            logger.info("Opening sftp connection to: " + (hostname == null ? "localhost" : hostname) + ":" + hostport);
+            logger.info("Opening " + channels + " sftp connection" + (channels > 1 ? "s" : "") + " to: " +
+                    (hostname == null ? "localhost" : hostname) + ":" + hostport);
             jsch = new JSch();
-            jSession = jsch.getSession(user, hostname, hostport);
-            jSession.setConfig("StrictHostKeyChecking", "no");
-            jSession.setPassword(password);
-            // IDEA Could implement strict key checking if more security is needed
-            //jsch.setKnownHosts("known_hosts");
-            //jsch.addIdentity("id_rsa");
-            jSession.connect(30000);
-
-            jChannel = jSession.openChannel("sftp");
-            jChannel.connect();
-            jSftp = (ChannelSftp) jChannel;
+            pool = fill(new Pool(TransferProfiles.getInstance().getDefault()));
+            if (channels > 1)
+            {
+                executor = Executors.newFixedThreadPool(channels);
+                // separate so a file sent in the background can wait on its ranges
+                rangeExecutor = Executors.newFixedThreadPool(channels);
+            }
         }
         catch (Exception e)
         {
@@ -144,67 +624,298 @@ public class ClientSftp
      */
     public void stopClient()
     {
-        if (jChannel != null)
-            jChannel.disconnect();
+        if (executor != null)
+            executor.shutdownNow();
+        if (rangeExecutor != null)
+            rangeExecutor.shutdownNow();
 
-        if (jSession != null)
-            jSession.disconnect();
+        synchronized (all)
+        {
+            for (ChannelSftp sftp : all)
+                disconnect(sftp);
+            all.clear();
+        }
+        owners.clear();
+        synchronized (pools)
+        {
+            pools.clear();
+        }
+        directories.clear();
     }
 
     /**
-     * Transmit a file from local to remote system
+     * Transmit a batch of small files as one archive
+     * <p>
+     * Replaces a stat, mkdirs, put, rm and rename per file with one upload and
+     * one stty unpack command.
      *
-     * @param src  Source file path with local separators
-     * @param dest Destination file path with remove separators
-     * @throws IOException
+     * @param srcs  Source file paths with local separators
+     * @param dests Destination file paths with remote separators, one per source
+     * @return boolean for each file, true if the subscriber unpacked it
      */
-    public void transmitFile(String src, String dest, boolean overwrite) throws IOException
+    public boolean[] transmitBatch(List<String> srcs, List<String> dests)
     {
+        boolean[] sent = new boolean[srcs.size()];
+        String batch = "";
+        ChannelSftp jSftp = null;
         try
         {
-            SftpATTRS destAttr = null;
-            int readOffset = 0;
-            long writeOffset = 0L;
-
-            String copyDest = dest + ".els-part";
+            jSftp = borrow(null);
+            String dir = makeRemoteDirectory(jSftp, dests.get(0));
+            batch = dir + theirRepo.getSeparator() + BatchArchive.SUFFIX + "-" + System.currentTimeMillis() + ".els-part";
 
-            // does the destination already exist?
-            // automatically resume/continue transfer
+            OutputStream out = jSftp.put(batch, ChannelSftp.OVERWRITE);
             try
             {
-                destAttr = jSftp.stat(copyDest);
-                if (destAttr != null)
+                BatchArchive.write(out, srcs, dests, hostname);
+            }
+            finally
+            {
+                out.close();
+            }
+            release(jSftp);
+            jSftp = null;
+
+            // "ok count position,..." of the files unpacked
+            String response = context.clientStty.roundTrip("unpack " + batch);
+            if (response != null && response.startsWith("ok "))
+            {
+                String[] parts = response.substring(3).trim().split(" ");
+                int count = Integer.parseInt(parts[0]);
+                if (parts.length > 1)
                 {
-                    if (destAttr.isReg() && destAttr.getSize() > 0)
+                    for (String position : parts[1].split(","))
                     {
-                        if (!overwrite)
-                        {
-                            readOffset = (int) destAttr.getSize();
-                            writeOffset = readOffset + 1;
-                        }
+                        int i = Integer.parseInt(position);
+                        if (i >= 0 && i < sent.length)
+                            sent[i] = true;
                     }
                 }
+                else if (count == srcs.size())
+                {
+                    Arrays.fill(sent, true);
+                }
+                if (count < srcs.size())
+                    logger.error("Subscriber unpacked " + count + " of " + srcs.size() + " files from " + batch);
             }
-            catch (SftpException e)
+            else
             {
-                String msg = e.toString().trim().toLowerCase();
-                if (!msg.contains("nosuchfileexception"))
-                    throw e;
-                destAttr = null;
+                logger.error("Subscriber could not unpack " + batch + ": " + response);
+            }
+        }
+        catch (Exception e)
+        {
+            logger.error("Batch " + batch + " failed: " + e.getMessage() + "\r\n" + Utils.getStackTrace(e));
+        }
+        finally
+        {
+            release(jSftp);
+        }
+        return sent;
+    }
+
+    /**
+     * Transmit a file from local to remote system
+     * <p>
+     * Uses an idle channel from the pool. If the channel dies during the transfer
+     * it is reconnected and the transfer resumes once.
+     *
+     * @param src       Source file path with local separators
+     * @param dest      Destination file path with remote separators
+     * @param overwrite Overwrite instead of resuming an existing .els-part
+     * @return true if successful
+     */
+    public boolean transmitFile(String src, String dest, boolean overwrite)
+    {
+        if (context != null && context.clientBulk != null && context.clientBulk.isSelected(src))
+            return context.clientBulk.transmitFile(src, dest);
+
+        if (rangeExecutor != null && cfg.getSplitSize() > 0 && new File(src).length() > cfg.getSplitSize())
+            return transmitRanges(src, dest, overwrite);
+
+        ChannelSftp jSftp = null;
+        try
+        {
+            jSftp = borrow(src);
+            for (int attempt = 0; ; ++attempt)
+            {
+                try
+                {
+                    transmitFile(jSftp, src, dest, overwrite);
+                    return true;
+                }
+                catch (Exception e)
+                {
+                    if (attempt > 0 || isAlive(jSftp))
+                        throw e;
+                    logger.warn("Sftp channel lost sending " + src + ", reconnecting to resume");
+                    jSftp = reconnect(jSftp);
+                    overwrite = false;
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            logger.error(e.getMessage() + "\r\n" + Utils.getStackTrace(e));
+        }
+        finally
+        {
+            release(jSftp);
+        }
+        return false;
+    }
+
+    /**
+     * Transmit a file in the background
+     * <p>
+     * With one channel the transfer is done before returning.
+     *
+     * @param src       Source file path with local separators
+     * @param dest      Destination file path with remote separators
+     * @param overwrite Overwrite instead of resuming an existing .els-part
+     * @return Future of true if successful
+     */
+    public Future<Boolean> transmitFileAsync(String src, String dest, boolean overwrite)
+    {
+        if (executor == null)
+        {
+            boolean result = transmitFile(src, dest, overwrite);
+            CompletableFuture<Boolean> done = new CompletableFuture<>();
+            done.complete(result);
+            return done;
+        }
+        return executor.submit(() -> transmitFile(src, dest, overwrite));
+    }
+
+    /**
+     * Transmit one byte range of a file into the .els-part file
+     * <p>
+     * Jsch writes at the given offset past the current remote size, so the
+     * remote size must not change until the range is opened.
+     *
+     * @param size The current size of the .els-part file
+     */
+    private void transmitRange(ChannelSftp jSftp, String src, String copyDest, long size, long start, long length) throws Exception
+    {
+        byte[] buffer = new byte[Governor.CHUNK_SIZE];
+        SftpProgressMonitor monitor = Governor.getInstance().isActive() ? new ThrottleMonitor(src) : null;
+        try (RandomAccessFile in = new RandomAccessFile(src, "r"))
+        {
+            in.seek(start);
+            OutputStream out = jSftp.put(copyDest, monitor, ChannelSftp.APPEND, start - size);
+            try
+            {
+                long remaining = length;
+                while (remaining > 0)
+                {
+                    int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (n < 0)
+                        throw new IOException("File changed size while sending: " + src);
+                    out.write(buffer, 0, n);
+                    remaining -= n;
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Transmit a very large file as byte ranges over all channels
+     * <p>
+     * Each range is written at its offset in the same .els-part file and recorded
+     * as done in a .els-ranges file beside it, so a resume only sends the
+     * missing ranges. When every range is done the .els-part file is renamed.
+     *
+     * @param src       Source file path with local separators
+     * @param dest      Destination file path with remote separators
+     * @param overwrite Overwrite instead of resuming an existing .els-part
+     * @return true if successful
+     */
+    private boolean transmitRanges(String src, String dest, boolean overwrite)
+    {
+        File file = new File(src);
+        long size = file.length();
+        String copyDest = dest + ".els-part";
+        String rangesDest = dest + PartRanges.SUFFIX;
+        long range = Math.min(RANGE_SIZE, Math.max(MINIMUM_RANGE, (size + channels - 1) / channels));
+        PartRanges ranges = new PartRanges(size, range, file.lastModified());
+
+        ChannelSftp jSftp = null;
+        try
+        {
+            jSftp = borrow(src);
+            boolean resume = false;
+            if (!overwrite)
+            {
+                try (InputStream in = jSftp.get(rangesDest))
+                {
+                    resume = ranges.load(in) && jSftp.stat(copyDest).getSize() == size;
+                }
+                catch (SftpException e)
+                {
+                    String msg = e.toString().trim().toLowerCase();
+                    if (!msg.contains("nosuchfileexception"))
+                        throw e;
+                }
             }
 
-            if (destAttr == null) // file does not exist, try making directory tree
+            if (resume)
             {
-                makeRemoteDirectory(copyDest);
+                logger.info("Resuming " + src + " in " + ranges.getCount() + " ranges");
             }
+            else
+            {
+                ranges = new PartRanges(size, range, file.lastModified());
+                makeRemoteDirectory(jSftp, copyDest);
 
-            int mode = jSftp.OVERWRITE;
-            if (writeOffset > 0)
-                mode = jSftp.RESUME;
+                // write the last byte so the .els-part file is full size
+                byte[] last = new byte[1];
+                try (RandomAccessFile in = new RandomAccessFile(file, "r"))
+                {
+                    in.seek(size - 1);
+                    in.readFully(last);
+                }
+                OutputStream out = jSftp.put(copyDest, null, ChannelSftp.OVERWRITE, size - 1);
+                try
+                {
+                    out.write(last);
+                }
+                finally
+                {
+                    out.close();
+                }
+                writeRanges(jSftp, ranges, rangesDest);
+                logger.info("Sending " + src + " in " + ranges.getCount() + " ranges of " + Utils.formatLong(ranges.getLength(0)));
+            }
+            release(jSftp);
+            jSftp = null;
 
-            jSftp.put(src, copyDest, mode);
+            final PartRanges tracked = ranges;
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (int i = 0; i < tracked.getCount(); ++i)
+            {
+                if (tracked.isDone(i))
+                    continue;
+                final int index = i;
+                futures.add(rangeExecutor.submit(() -> transmitRangeTask(src, copyDest, rangesDest, tracked, index)));
+            }
 
-            // delete any old file
+            boolean success = true;
+            for (Future<Boolean> future : futures)
+            {
+                if (!future.get())
+                    success = false;
+            }
+            if (!success)
+            {
+                logger.error("Some ranges of " + src + " failed, they will be resent on the next run");
+                return false;
+            }
+
+            jSftp = borrow(src);
             try
             {
                 jSftp.rm(dest);
@@ -215,14 +926,207 @@ public class ClientSftp
                 if (!msg.contains("nosuchfileexception"))
                     throw e;
             }
-
-            // rename .els-part file
             jSftp.rename(copyDest, dest);
+            jSftp.rm(rangesDest);
+            return true;
         }
         catch (Exception e)
         {
             logger.error(e.getMessage() + "\r\n" + Utils.getStackTrace(e));
         }
+        finally
+        {
+            release(jSftp);
+        }
+        return false;
+    }
+
+    /**
+     * Send one range on a pooled channel and record it, reconnecting once if the channel dies
+     */
+    private boolean transmitRangeTask(String src, String copyDest, String rangesDest, PartRanges ranges, int index)
+    {
+        ChannelSftp jSftp = null;
+        try
+        {
+            jSftp = borrow(src);
+            for (int attempt = 0; ; ++attempt)
+            {
+                try
+                {
+                    transmitRange(jSftp, src, copyDest, new File(src).length(), ranges.getStart(index), ranges.getLength(index));
+                    ranges.setDone(index);
+                    synchronized (ranges)
+                    {
+                        writeRanges(jSftp, ranges, rangesDest);
+                    }
+                    return true;
+                }
+                catch (Exception e)
+                {
+                    if (attempt > 0 || isAlive(jSftp))
+                        throw e;
+                    logger.warn("Sftp channel lost sending range " + index + " of " + src + ", reconnecting");
+                    jSftp = reconnect(jSftp);
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            logger.error("Range " + index + " of " + src + " failed: " + e.getMessage());
+        }
+        finally
+        {
+            release(jSftp);
+        }
+        return false;
+    }
+
+    /**
+     * Find where an existing .els-part file can be resumed
+     * <p>
+     * The last VERIFY_SIZE bytes of the partial file are hashed by the subscriber
+     * and compared with the same range of the source. If they differ the window
+     * before is checked, up to VERIFY_WINDOWS times, and the transfer resumes at
+     * the end of the last window that matches. Without an automated stty session
+     * the partial file cannot be verified and is resumed at its size, as before.
+     *
+     * @return long offset to resume at, 0 to send the whole file
+     */
+    private long verifyPartial(ChannelSftp jSftp, String src, String copyDest, long partSize) throws Exception
+    {
+        long length = new File(src).length();
+        if (partSize > length)
+        {
+            logger.info("Partial " + copyDest + " is larger than " + src + ", sending again");
+            return 0L;
+        }
+
+        // a range-split transfer is full size with holes, it resumes with --split
+        try
+        {
+            jSftp.stat(copyDest.substring(0, copyDest.length() - ".els-part".length()) + PartRanges.SUFFIX);
+            logger.info("Partial " + copyDest + " was sent in ranges, sending again");
+            return 0L;
+        }
+        catch (SftpException e)
+        {
+            String msg = e.toString().trim().toLowerCase();
+            if (!msg.contains("nosuchfileexception"))
+                throw e;
+        }
+
+        if (!canBatch())
+        {
+            logger.warn("Resuming unverified partial " + copyDest + " at " + Utils.formatLong(partSize) + ", no stty session to verify it");
+            return partSize;
+        }
+
+        // ask for every window at once so a distant subscriber costs one round trip
+        int windows = (int) Math.min(VERIFY_WINDOWS, (partSize + VERIFY_SIZE - 1) / VERIFY_SIZE);
+        long[] starts = new long[windows];
+        long[] lengths = new long[windows];
+        long end = partSize;
+        for (int window = 0; window < windows; ++window)
+        {
+            starts[window] = Math.max(0L, end - VERIFY_SIZE);
+            lengths[window] = end - starts[window];
+            end = starts[window];
+        }
+        String[] theirs = context.clientStty.hash(copyDest, starts, lengths);
+        for (int window = 0; window < windows; ++window)
+        {
+            if (theirs[window] == null)
+                return 0L;
+            if (theirs[window].equals(Utils.hashRange(src, starts[window], lengths[window])))
+            {
+                end = starts[window] + lengths[window];
+                if (end < partSize)
+                    logger.warn("Partial " + copyDest + " differs after " + Utils.formatLong(end) + ", rolling back");
+                return end;
+            }
+        }
+        logger.warn("Partial " + copyDest + " does not match " + src + ", sending again");
+        return 0L;
+    }
+
+    /**
+     * Write the .els-ranges file
+     */
+    private void writeRanges(ChannelSftp jSftp, PartRanges ranges, String rangesDest) throws SftpException
+    {
+        byte[] data = ranges.toString().getBytes(StandardCharsets.UTF_8);
+        jSftp.put(new ByteArrayInputStream(data), rangesDest, ChannelSftp.OVERWRITE);
+    }
+
+    /**
+     * Transmit a file using a specific channel
+     * <p>
+     * An existing .els-part file is resumed from the last verified boundary.
+     */
+    private void transmitFile(ChannelSftp jSftp, String src, String dest, boolean overwrite) throws Exception
+    {
+        SftpATTRS destAttr = null;
+        long partSize = 0L;
+        long resumeOffset = 0L;
+
+        String copyDest = dest + ".els-part";
+
+        // does the destination already exist?
+        // automatically resume/continue transfer
+        try
+        {
+            destAttr = jSftp.stat(copyDest);
+            if (destAttr != null && destAttr.isReg())
+                partSize = destAttr.getSize();
+        }
+        catch (SftpException e)
+        {
+            String msg = e.toString().trim().toLowerCase();
+            if (!msg.contains("nosuchfileexception"))
+                throw e;
+            destAttr = null;
+        }
+
+        if (destAttr == null) // file does not exist, try making directory tree
+        {
+            makeRemoteDirectory(jSftp, copyDest);
+        }
+
+        if (!overwrite && partSize > 0)
+            resumeOffset = verifyPartial(jSftp, src, copyDest, partSize);
+
+        if (resumeOffset > 0)
+        {
+            logger.info("Resuming " + src + " at " + Utils.formatLong(resumeOffset));
+            long length = new File(src).length();
+            transmitRange(jSftp, src, copyDest, partSize, resumeOffset, length - resumeOffset);
+        }
+        else
+        {
+            if (cfg.isPreallocate())
+                preallocate(src, copyDest);
+
+            if (Governor.getInstance().isActive())
+                jSftp.put(src, copyDest, new ThrottleMonitor(src), ChannelSftp.OVERWRITE);
+            else
+                jSftp.put(src, copyDest, ChannelSftp.OVERWRITE);
+        }
+
+        // delete any old file
+        try
+        {
+            jSftp.rm(dest);
+        }
+        catch (SftpException e)
+        {
+            String msg = e.toString().trim().toLowerCase();
+            if (!msg.contains("nosuchfileexception"))
+                throw e;
+        }
+
+        // rename .els-part file
+        jSftp.rename(copyDest, dest);
     }
 
 }
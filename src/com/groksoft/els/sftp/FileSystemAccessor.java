@@ -1,161 +1,124 @@
 package com.groksoft.els.sftp;
 
+import com.groksoft.els.Configuration;
+import com.groksoft.els.DirectFileChannel;
+import com.groksoft.els.PreallocatedFileChannel;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.sshd.server.session.ServerSession;
-import org.apache.sshd.server.subsystem.sftp.DirectoryHandle;
 import org.apache.sshd.server.subsystem.sftp.FileHandle;
 import org.apache.sshd.server.subsystem.sftp.SftpFileSystemAccessor;
 import org.apache.sshd.server.subsystem.sftp.SftpSubsystemProxy;
 
 import java.io.IOException;
-import java.nio.channels.Channel;
-import java.nio.channels.FileLock;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
-import java.security.Principal;
-import java.util.Collection;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Apache Mina sftp file system accessor<br/>
+ * <p>
+ * Only the methods ELS needs to change are overridden, all others use the
+ * SftpFileSystemAccessor defaults.
+ * <p>
+ * See: https://javadoc.io/doc/org.apache.sshd/sshd-sftp/latest/org/apache/sshd/server/subsystem/sftp/SftpFileSystemAccessor.html
+ */
 public class FileSystemAccessor implements SftpFileSystemAccessor
 {
-    private transient Logger logger = LogManager.getLogger("applog");
+    public static final long EXPECT_TIME = 10L * 60L * 1000L; // ms an expected upload is waited for
 
-    @Override
-    public void closeDirectory(ServerSession session, SftpSubsystemProxy subsystem, DirectoryHandle dirHandle, Path dir, String handle, DirectoryStream<Path> ds) throws IOException
-    {
-        logger.info("closeDirectory");
-    }
+    private static Map<Path, Expected> expected = new ConcurrentHashMap<>();
+    private transient Logger logger = LogManager.getLogger("applog");
+    private Configuration cfg;
 
-    @Override
-    public void closeFile(ServerSession session, SftpSubsystemProxy subsystem, FileHandle fileHandle, Path file, String handle, Channel channel, Set<? extends OpenOption> options) throws IOException
+    /**
+     * The size of an upload and when it was registered
+     */
+    private static class Expected
     {
-        logger.info("closeFile");
-    }
+        long size;
+        long time;
 
-    @Override
-    public void copyFile(ServerSession session, SftpSubsystemProxy subsystem, Path src, Path dst, Collection<CopyOption> opts) throws IOException
-    {
-        logger.info("copyFile");
+        Expected(long size)
+        {
+            this.size = size;
+            this.time = System.currentTimeMillis();
+        }
     }
 
-    @Override
-    public void createDirectory(ServerSession session, SftpSubsystemProxy subsystem, Path path) throws IOException
+    private FileSystemAccessor()
     {
-        logger.info("createDirectory");
+        // hide default constructor
     }
 
-    @Override
-    public void createLink(ServerSession session, SftpSubsystemProxy subsystem, Path link, Path existing, boolean symLink) throws IOException
+    /**
+     * Instantiate this class.
+     *
+     * @param config The Configuration object
+     */
+    public FileSystemAccessor(Configuration config)
     {
-        logger.info("createLink");
+        this.cfg = config;
     }
 
-    @Override
-    public DirectoryStream<Path> openDirectory(ServerSession session, SftpSubsystemProxy subsystem, DirectoryHandle dirHandle, Path dir, String handle) throws IOException
+    /**
+     * Register the size of an upload that is about to be opened
+     * <p>
+     * Used by the stty preallocate command. The next open of the file for
+     * writing preallocates it to this size, if within EXPECT_TIME. Sizes of
+     * uploads that never arrive are dropped.
+     *
+     * @param file The file the upload will write
+     * @param size The final size of the file
+     */
+    public static void expect(Path file, long size)
     {
-        logger.info("openDirectory");
-        return null;
+        long stale = System.currentTimeMillis() - EXPECT_TIME;
+        expected.values().removeIf(entry -> entry.time < stale);
+        expected.put(file.toAbsolutePath().normalize(), new Expected(size));
     }
 
     @Override
     public SeekableByteChannel openFile(ServerSession session, SftpSubsystemProxy subsystem, FileHandle fileHandle, Path file, String handle, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException
     {
-        logger.info("openFile");
-        return null;
-    }
-
-    @Override
-    public Map<String, ?> readFileAttributes(ServerSession session, SftpSubsystemProxy subsystem, Path file, String view, LinkOption... options) throws IOException
-    {
-        logger.info("readFileAttributes");
-        return null;
-    }
-
-    @Override
-    public void removeFile(ServerSession session, SftpSubsystemProxy subsystem, Path path, boolean isDirectory) throws IOException
-    {
-        logger.info("removeFile");
-    }
-
-    @Override
-    public void renameFile(ServerSession session, SftpSubsystemProxy subsystem, Path oldPath, Path newPath, Collection<CopyOption> opts) throws IOException
-    {
-        logger.info("renameFile");
-    }
-
-    @Override
-    public UserPrincipal resolveFileOwner(ServerSession session, SftpSubsystemProxy subsystem, Path file, UserPrincipal name) throws IOException
-    {
-        logger.info("resolveFileOwner");
-        return null;
-    }
-
-    @Override
-    public GroupPrincipal resolveGroupOwner(ServerSession session, SftpSubsystemProxy subsystem, Path file, GroupPrincipal name) throws IOException
-    {
-        logger.info("resolveGroupOwner");
-        return null;
-    }
-
-    @Override
-    public String resolveLinkTarget(ServerSession session, SftpSubsystemProxy subsystem, Path link) throws IOException
-    {
-        logger.info("resolveLinkTarget");
-        return null;
-    }
-
-    @Override
-    public Path resolveLocalFilePath(ServerSession session, SftpSubsystemProxy subsystem, Path rootDir, String remotePath) throws IOException, InvalidPathException
-    {
-        logger.info("resolveLocalFilePath");
-        return null;
-    }
-
-    @Override
-    public void setFileAccessControl(ServerSession session, SftpSubsystemProxy subsystem, Path file, List<AclEntry> acl, LinkOption... options) throws IOException
-    {
-        logger.info("setFileAccessControl");
-    }
-
-    @Override
-    public void setFileAttribute(ServerSession session, SftpSubsystemProxy subsystem, Path file, String view, String attribute, Object value, LinkOption... options) throws IOException
-    {
-        logger.info("setFileAttribute");
-    }
-
-    @Override
-    public void setFileOwner(ServerSession session, SftpSubsystemProxy subsystem, Path file, Principal value, LinkOption... options) throws IOException
-    {
-        logger.info("setFileOwner");
-    }
-
-    @Override
-    public void setFilePermissions(ServerSession session, SftpSubsystemProxy subsystem, Path file, Set<PosixFilePermission> perms, LinkOption... options) throws IOException
-    {
-        logger.info("setFilePermissions");
-    }
-
-    @Override
-    public void setGroupOwner(ServerSession session, SftpSubsystemProxy subsystem, Path file, Principal value, LinkOption... options) throws IOException
-    {
-        logger.info("setGroupOwner");
-    }
-
-    @Override
-    public void syncFileData(ServerSession session, SftpSubsystemProxy subsystem, FileHandle fileHandle, Path file, String handle, Channel channel) throws IOException
-    {
-        logger.info("syncFileData");
-    }
-
-    @Override
-    public FileLock tryLock(ServerSession session, SftpSubsystemProxy subsystem, FileHandle fileHandle, Path file, String handle, Channel channel, long position, long size, boolean shared) throws IOException
-    {
-        logger.info("tryLock");
-        return null;
+        // taken before opening so a failed open does not leave it behind
+        Expected expect = null;
+        if (options.contains(StandardOpenOption.WRITE) && !expected.isEmpty())
+        {
+            expect = expected.remove(file.toAbsolutePath().normalize());
+            if (expect != null && expect.time < System.currentTimeMillis() - EXPECT_TIME)
+                expect = null;
+        }
+
+        SeekableByteChannel channel;
+        if (cfg.isDirectIO())
+        {
+            // bypass the page cache, falls back to a normal FileChannel if not supported
+            channel = DirectFileChannel.open(file, options, attrs);
+        }
+        else
+        {
+            channel = SftpFileSystemAccessor.super.openFile(session, subsystem, fileHandle, file, handle, options, attrs);
+        }
+
+        if (expect != null && channel instanceof FileChannel)
+        {
+            try
+            {
+                channel = PreallocatedFileChannel.preallocate((FileChannel) channel, file, expect.size);
+                logger.debug("Preallocated " + expect.size + " bytes for " + file);
+            }
+            catch (IOException e)
+            {
+                channel.close();
+                throw e;
+            }
+        }
+        return channel;
     }
 
 }
@@ -0,0 +1,89 @@
+package com.groksoft.els.sftp;
+
+/**
+ * Latency histogram with power-of-two microsecond buckets
+ * <p>
+ * Bucket i counts operations that took from 2^i up to 2^(i+1) microseconds,
+ * so percentiles are reported as the upper bound of their bucket.
+ */
+public class LatencyHistogram
+{
+    private static final int BUCKETS = 32;
+
+    private long[] counts = new long[BUCKETS];
+    private long max = 0L;
+    private long total = 0L;
+
+    /**
+     * Add the counts of another histogram
+     *
+     * @param other The histogram to add
+     */
+    public synchronized void add(LatencyHistogram other)
+    {
+        synchronized (other)
+        {
+            for (int i = 0; i < BUCKETS; ++i)
+                counts[i] += other.counts[i];
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+    }
+
+    /**
+     * Get the number of operations recorded
+     *
+     * @return long count
+     */
+    public synchronized long getCount()
+    {
+        return total;
+    }
+
+    /**
+     * Get a percentile
+     *
+     * @param percent 0 to 100
+     * @return long microseconds, the upper bound of the bucket
+     */
+    public synchronized long getPercentile(double percent)
+    {
+        if (total == 0)
+            return 0L;
+        long rank = (long) Math.ceil(total * percent / 100.0);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; ++i)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(1L << (i + 1), max);
+        }
+        return max;
+    }
+
+    /**
+     * Record one operation
+     *
+     * @param nanos Elapsed nanoseconds
+     */
+    public synchronized void record(long nanos)
+    {
+        long micros = Math.max(1L, nanos / 1000L);
+        int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+        ++counts[bucket];
+        ++total;
+        max = Math.max(max, micros);
+    }
+
+    /**
+     * Get a one-line summary
+     *
+     * @return String e.g. p50 64 us, p99 512 us, max 900 us
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return "p50 " + getPercentile(50) + " us, p99 " + getPercentile(99) + " us, max " + max + " us";
+    }
+
+}
@@ -0,0 +1,157 @@
+package com.groksoft.els.sftp;
+
+import com.groksoft.els.Configuration;
+import com.groksoft.els.Utils;
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.Session;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Loopback sftp benchmark
+ * <p>
+ * Starts an sftp server on this system with the sshd defaults and then with
+ * each sftp tuning, sends an incompressible sample to it a few times, and logs
+ * the best MB/s of each after an unmeasured warm-up. Run it on the subscriber
+ * to see what its CPU and disk can receive.
+ */
+public class LoopbackBenchmark
+{
+    public static final int PASSES = 3;
+    public static final long SAMPLE_SIZE = 128L * 1024L * 1024L;
+
+    private transient Logger logger = LogManager.getLogger("applog");
+    private Configuration cfg;
+
+    private LoopbackBenchmark()
+    {
+        // hide default constructor
+    }
+
+    /**
+     * Instantiate this class
+     *
+     * @param config The Configuration object
+     */
+    public LoopbackBenchmark(Configuration config)
+    {
+        cfg = config;
+    }
+
+    /**
+     * Run the benchmark
+     */
+    public void run()
+    {
+        File sample = null;
+        try
+        {
+            sample = File.createTempFile("els-loopback", ".tmp");
+            byte[] block = new byte[1024 * 1024];
+            Random generator = new Random();
+            try (OutputStream out = new FileOutputStream(sample))
+            {
+                for (long written = 0; written < SAMPLE_SIZE; written += block.length)
+                {
+                    generator.nextBytes(block);
+                    out.write(block);
+                }
+            }
+
+            List<SftpTuning> list = new ArrayList<>();
+            list.add(null);
+            list.addAll(SftpTunings.getInstance().getTunings());
+            logger.info("Loopback benchmark of " + list.size() + " sftp tuning" + (list.size() > 1 ? "s" : "") +
+                    " using a " + Utils.formatLong(SAMPLE_SIZE) + " sample in " + sample.getParent());
+
+            // warm up the JIT so the first tuning is not penalized
+            measure(null, sample);
+
+            List<String> results = new ArrayList<>();
+            for (SftpTuning tuning : list)
+            {
+                String name = (tuning == null) ? "defaults" : tuning.toString();
+                try
+                {
+                    results.add(String.format("  %8.1f MB/s  %s", measure(tuning, sample), name));
+                }
+                catch (Exception e)
+                {
+                    results.add("  failed: " + e.getMessage() + "  " + name);
+                }
+            }
+            for (String result : results)
+                logger.info(result);
+        }
+        catch (Exception e)
+        {
+            logger.error("Loopback benchmark failed: " + e.getMessage());
+        }
+        finally
+        {
+            if (sample != null)
+                sample.delete();
+        }
+    }
+
+    /**
+     * Measure one tuning
+     *
+     * @return double best MB/s of the passes
+     */
+    private double measure(SftpTuning tuning, File sample) throws Exception
+    {
+        String key = UUID.randomUUID().toString();
+        String dest = sample.getPath() + ".copy";
+        ServeSftp server = new ServeSftp(cfg, tuning, key);
+        Session session = null;
+        try
+        {
+            server.startServer();
+            int port = server.getPort();
+            if (port < 0)
+                throw new IOException("sftp server did not start");
+
+            JSch jsch = new JSch();
+            session = jsch.getSession(key, "localhost", port);
+            session.setConfig("StrictHostKeyChecking", "no");
+            ClientSftp.configure(session, TransferProfiles.getInstance().getDefault());
+            session.setPassword(key);
+            session.connect(30000);
+            Channel channel = session.openChannel("sftp");
+            channel.connect();
+            ChannelSftp jSftp = (ChannelSftp) channel;
+
+            double best = 0.0;
+            for (int pass = 0; pass < PASSES; ++pass)
+            {
+                long start = System.nanoTime();
+                jSftp.put(sample.getPath(), dest, ChannelSftp.OVERWRITE);
+                double seconds = (System.nanoTime() - start) / 1000000000.0;
+                best = Math.max(best, (sample.length() / (1024.0 * 1024.0)) / seconds);
+            }
+            jSftp.rm(dest);
+            jSftp.disconnect();
+            return best;
+        }
+        finally
+        {
+            if (session != null)
+                session.disconnect();
+            server.stopServer();
+            new File(dest).delete();
+        }
+    }
+
+}
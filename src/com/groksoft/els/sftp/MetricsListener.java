@@ -0,0 +1,301 @@
+package com.groksoft.els.sftp;
+
+import com.groksoft.els.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.subsystem.sftp.FileHandle;
+import org.apache.sshd.server.subsystem.sftp.Handle;
+import org.apache.sshd.server.subsystem.sftp.SftpEventListener;
+
+import java.io.IOException;
+import java.nio.file.CopyOption;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Apache Mina sftp event listener that keeps transfer metrics<br/>
+ * <p>
+ * Counts bytes, operations and errors and records read and write latency per
+ * session and per file. A file is summarized at debug level when it is closed
+ * and a session at info level when it ends. Live and total numbers are shown by
+ * the subscriber's status command.
+ * <p>
+ * See: https://mina.apache.org/sshd-project/apidocs/org/apache/sshd/server/subsystem/sftp/SftpEventListener.html
+ */
+public class MetricsListener implements SftpEventListener
+{
+    private static final int RECENT_FILES = 10;
+
+    private transient Logger logger = LogManager.getLogger("applog");
+    private LinkedList<String> recent = new LinkedList<>();
+    private Map<ServerSession, Metrics> sessions = new ConcurrentHashMap<>();
+    private Metrics totals = new Metrics("all sessions");
+
+    /**
+     * Counters for a session, a file, or the totals
+     */
+    private static class Metrics
+    {
+        String name;
+        long started = System.currentTimeMillis();
+        long bytesRead = 0L;
+        long bytesWritten = 0L;
+        long errors = 0L;
+        long files = 0L;
+        long operations = 0L;
+        long pending = 0L;     // System.nanoTime() when the current read or write started
+        LatencyHistogram readLatency = new LatencyHistogram();
+        LatencyHistogram writeLatency = new LatencyHistogram();
+        Map<Handle, Metrics> handles = new IdentityHashMap<>();
+
+        Metrics(String name)
+        {
+            this.name = name;
+        }
+
+        synchronized void add(Metrics other)
+        {
+            synchronized (other)
+            {
+                bytesRead += other.bytesRead;
+                bytesWritten += other.bytesWritten;
+                errors += other.errors;
+                files += other.files;
+                operations += other.operations;
+                readLatency.add(other.readLatency);
+                writeLatency.add(other.writeLatency);
+            }
+        }
+
+        synchronized String summary()
+        {
+            long millis = Math.max(1L, System.currentTimeMillis() - started);
+            long bytes = bytesRead + bytesWritten;
+            String data = name + ": " + (files > 0 ? files + " files, " : "") +
+                    (bytesWritten > 0 ? Utils.formatLong(bytesWritten) + " written, " : "") +
+                    (bytesRead > 0 ? Utils.formatLong(bytesRead) + " read, " : "") +
+                    operations + " operations, " + errors + " errors in " + String.format("%.1f", millis / 1000.0) + " s, " +
+                    String.format("%.1f", (bytes / (1024.0 * 1024.0)) / (millis / 1000.0)) + " MB/s";
+            if (writeLatency.getCount() > 0)
+                data += ", write " + writeLatency;
+            if (readLatency.getCount() > 0)
+                data += ", read " + readLatency;
+            return data;
+        }
+    }
+
+    /**
+     * Get the metrics of a session
+     */
+    private Metrics getSession(ServerSession session)
+    {
+        return sessions.computeIfAbsent(session, s -> new Metrics("Sftp session from " + s.getClientAddress()));
+    }
+
+    /**
+     * Get the metrics of an open file
+     */
+    private Metrics getFile(ServerSession session, Handle handle)
+    {
+        Metrics metrics = getSession(session);
+        synchronized (metrics)
+        {
+            return metrics.handles.computeIfAbsent(handle, h -> new Metrics(h.getFile().toString()));
+        }
+    }
+
+    /**
+     * Count an error of a session
+     * <p>
+     * A missing file or existing directory is not an error, the client probes
+     * with rm and mkdir.
+     */
+    private void error(ServerSession session, Throwable thrown)
+    {
+        if (thrown != null && !(thrown instanceof NoSuchFileException) && !(thrown instanceof FileAlreadyExistsException))
+        {
+            Metrics metrics = getSession(session);
+            synchronized (metrics)
+            {
+                ++metrics.errors;
+            }
+        }
+    }
+
+    /**
+     * Dump statistics of the sftp server
+     *
+     * @return String of current sessions, totals and recent files
+     */
+    public String dumpStatistics()
+    {
+        String data = "\r\nSftp sessions: " + sessions.size() + "\r\n";
+        for (Metrics metrics : new ArrayList<>(sessions.values()))
+            data += "  " + metrics.summary() + "\r\n";
+        data += "  Total of ended " + totals.summary() + "\r\n";
+        List<String> files;
+        synchronized (recent)
+        {
+            files = new ArrayList<>(recent);
+        }
+        if (!files.isEmpty())
+        {
+            data += "  Recent files:\r\n";
+            for (String file : files)
+                data += "    " + file + "\r\n";
+        }
+        return data;
+    }
+
+    @Override
+    public void closed(ServerSession session, String remoteHandle, Handle localHandle, Throwable thrown) throws IOException
+    {
+        error(session, thrown);
+        if (!(localHandle instanceof FileHandle))
+            return;
+
+        Metrics metrics = getSession(session);
+        Metrics file;
+        synchronized (metrics)
+        {
+            file = metrics.handles.remove(localHandle);
+            if (file == null)
+                return;
+            ++metrics.files;
+            metrics.readLatency.add(file.readLatency);
+            metrics.writeLatency.add(file.writeLatency);
+        }
+
+        String summary = file.summary();
+        logger.debug(summary);
+        synchronized (recent)
+        {
+            recent.addFirst(summary);
+            if (recent.size() > RECENT_FILES)
+                recent.removeLast();
+        }
+    }
+
+    @Override
+    public void created(ServerSession session, Path path, Map<String, ?> attrs, Throwable thrown) throws IOException
+    {
+        error(session, thrown);
+    }
+
+    @Override
+    public void destroying(ServerSession session) throws IOException
+    {
+        Metrics metrics = sessions.remove(session);
+        if (metrics != null)
+        {
+            logger.info(metrics.summary());
+            totals.add(metrics);
+        }
+    }
+
+    @Override
+    public void moved(ServerSession session, Path srcPath, Path dstPath, Collection<CopyOption> opts, Throwable thrown) throws IOException
+    {
+        error(session, thrown);
+    }
+
+    @Override
+    public void open(ServerSession session, String remoteHandle, Handle localHandle) throws IOException
+    {
+        Metrics metrics = getSession(session);
+        synchronized (metrics)
+        {
+            ++metrics.operations;
+        }
+    }
+
+    @Override
+    public void openFailed(ServerSession session, String remotePath, Path localPath, boolean isDirectory, Throwable thrown) throws IOException
+    {
+        error(session, thrown);
+    }
+
+    @Override
+    public void read(ServerSession session, String remoteHandle, FileHandle localHandle, long offset, byte[] data, int dataOffset, int dataLen, int readLen, Throwable thrown) throws IOException
+    {
+        long end = System.nanoTime();
+        Metrics file = getFile(session, localHandle);
+        Metrics metrics = getSession(session);
+        synchronized (file)
+        {
+            file.readLatency.record(end - file.pending);
+            ++file.operations;
+            if (readLen > 0)
+                file.bytesRead += readLen;
+            if (thrown != null)
+                ++file.errors;
+        }
+        synchronized (metrics)
+        {
+            ++metrics.operations;
+            if (readLen > 0)
+                metrics.bytesRead += readLen;
+        }
+        error(session, thrown);
+    }
+
+    @Override
+    public void reading(ServerSession session, String remoteHandle, FileHandle localHandle, long offset, byte[] data, int dataOffset, int dataLen) throws IOException
+    {
+        Metrics file = getFile(session, localHandle);
+        synchronized (file)
+        {
+            file.pending = System.nanoTime();
+        }
+    }
+
+    @Override
+    public void removed(ServerSession session, Path path, boolean isDirectory, Throwable thrown) throws IOException
+    {
+        error(session, thrown);
+    }
+
+    @Override
+    public void writing(ServerSession session, String remoteHandle, FileHandle localHandle, long offset, byte[] data, int dataOffset, int dataLen) throws IOException
+    {
+        Metrics file = getFile(session, localHandle);
+        synchronized (file)
+        {
+            file.pending = System.nanoTime();
+        }
+    }
+
+    @Override
+    public void written(ServerSession session, String remoteHandle, FileHandle localHandle, long offset, byte[] data, int dataOffset, int dataLen, Throwable thrown) throws IOException
+    {
+        long end = System.nanoTime();
+        Metrics file = getFile(session, localHandle);
+        Metrics metrics = getSession(session);
+        synchronized (file)
+        {
+            file.writeLatency.record(end - file.pending);
+            ++file.operations;
+            if (thrown == null)
+                file.bytesWritten += dataLen;
+            else
+                ++file.errors;
+        }
+        synchronized (metrics)
+        {
+            ++metrics.operations;
+            if (thrown == null)
+                metrics.bytesWritten += dataLen;
+        }
+        error(session, thrown);
+    }
+
+}
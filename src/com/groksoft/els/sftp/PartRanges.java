@@ -0,0 +1,171 @@
+package com.groksoft.els.sftp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.StringTokenizer;
+
+/**
+ * Completed byte ranges of a range-split .els-part file
+ * <p>
+ * Kept on the subscriber next to the .els-part file as a small .els-ranges
+ * text file so an interrupted transfer only resends the missing ranges:
+ * <pre>
+ *   size 64424509440
+ *   range 268435456
+ *   modified 1603126800000
+ *   done 0 1 2 5
+ * </pre>
+ * If the source size or modified time no longer match the ranges are discarded.
+ * The range size of the earlier transfer is kept so the indexes stay valid.
+ */
+public class PartRanges
+{
+    public static final String SUFFIX = ".els-ranges";
+
+    private BitSet done = new BitSet();
+    private long modified;
+    private long range;
+    private long size;
+
+    /**
+     * Instantiate for a source file
+     *
+     * @param size     Source size
+     * @param range    Bytes per range
+     * @param modified Source last modified time
+     */
+    public PartRanges(long size, long range, long modified)
+    {
+        this.size = size;
+        this.range = range;
+        this.modified = modified;
+    }
+
+    /**
+     * Get the number of ranges
+     *
+     * @return int count
+     */
+    public int getCount()
+    {
+        return (int) ((size + range - 1) / range);
+    }
+
+    /**
+     * Get the length of a range, the last may be short
+     *
+     * @param index The range
+     * @return long bytes
+     */
+    public long getLength(int index)
+    {
+        return Math.min(range, size - getStart(index));
+    }
+
+    /**
+     * Get the offset of a range
+     *
+     * @param index The range
+     * @return long byte offset
+     */
+    public long getStart(int index)
+    {
+        return index * range;
+    }
+
+    /**
+     * Is a range complete?
+     *
+     * @param index The range
+     * @return true if done
+     */
+    public synchronized boolean isDone(int index)
+    {
+        return done.get(index);
+    }
+
+    /**
+     * Load completed ranges written by an earlier transfer of the same source
+     *
+     * @param in The .els-ranges content
+     * @return true if it matched this source and was loaded
+     */
+    public synchronized boolean load(InputStream in) throws IOException
+    {
+        long size = -1L;
+        long range = -1L;
+        long modified = -1L;
+        BitSet loaded = new BitSet();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            StringTokenizer t = new StringTokenizer(line);
+            if (!t.hasMoreTokens())
+                continue;
+            String key = t.nextToken();
+            try
+            {
+                switch (key)
+                {
+                    case "size":
+                        size = Long.parseLong(t.nextToken());
+                        break;
+                    case "range":
+                        range = Long.parseLong(t.nextToken());
+                        break;
+                    case "modified":
+                        modified = Long.parseLong(t.nextToken());
+                        break;
+                    case "done":
+                        while (t.hasMoreTokens())
+                            loaded.set(Integer.parseInt(t.nextToken()));
+                        break;
+                }
+            }
+            catch (RuntimeException e)
+            {
+                return false; // damaged, start over
+            }
+        }
+        if (size != this.size || modified != this.modified || range <= 0)
+            return false;
+        this.range = range;
+        done = loaded;
+        return true;
+    }
+
+    /**
+     * Mark a range complete
+     *
+     * @param index The range
+     */
+    public synchronized void setDone(int index)
+    {
+        done.set(index);
+    }
+
+    /**
+     * Get the .els-ranges content
+     *
+     * @return String text
+     */
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("size ").append(size).append("\n");
+        sb.append("range ").append(range).append("\n");
+        sb.append("modified ").append(modified).append("\n");
+        sb.append("done");
+        for (int i = done.nextSetBit(0); i >= 0; i = done.nextSetBit(i + 1))
+            sb.append(" ").append(i);
+        sb.append("\n");
+        return sb.toString();
+    }
+
+}
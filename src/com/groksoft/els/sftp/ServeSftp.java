@@ -1,9 +1,12 @@
 package com.groksoft.els.sftp;
 
+import com.groksoft.els.Configuration;
 import com.groksoft.els.Utils;
 import com.groksoft.els.repository.Repository;
+import com.groksoft.els.throttle.Governor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.sshd.common.kex.KexProposalOption;
 import org.apache.sshd.server.SshServer;
 import org.apache.sshd.server.auth.AsyncAuthException;
 import org.apache.sshd.server.auth.password.PasswordAuthenticator;
@@ -16,6 +19,7 @@ import org.apache.sshd.server.subsystem.sftp.SftpSubsystemEnvironment;
 import org.apache.sshd.server.subsystem.sftp.SftpSubsystemFactory;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.security.PublicKey;
 import java.util.Collections;
@@ -36,14 +40,17 @@ public class ServeSftp implements SftpErrorStatusDataHandler
 {
     private transient Logger logger = LogManager.getLogger("applog");
 
+    private Configuration cfg;
     private String hostname;
     private int listenport;
     private int loginAttempts = 1;
+    private MetricsListener metrics = new MetricsListener();
     private String loginAttemptAddress = "";
     private Repository myRepo;
     private String password;
     private SshServer sshd;
     private Repository theirRepo;
+    private SftpTuning tuning = SftpTunings.getInstance().getServer();
     private String user;
 
     private ServeSftp()
@@ -54,11 +61,13 @@ public class ServeSftp implements SftpErrorStatusDataHandler
     /**
      * Instantiate this class.
      *
+     * @param config The Configuration object
      * @param mine   Repository of local system
      * @param theirs Repository of remote system
      */
-    public ServeSftp(Repository mine, Repository theirs, boolean primaryServers)
+    public ServeSftp(Configuration config, Repository mine, Repository theirs, boolean primaryServers)
     {
+        cfg = config;
         myRepo = mine;
         theirRepo = theirs;
 
@@ -69,6 +78,46 @@ public class ServeSftp implements SftpErrorStatusDataHandler
         password = myRepo.getLibraryData().libraries.key;
     }
 
+    /**
+     * Instantiate a loopback server on any free port for benchmarks
+     *
+     * @param config The Configuration object
+     * @param tuning Server tuning, null for the sshd defaults
+     * @param key    User and password
+     */
+    ServeSftp(Configuration config, SftpTuning tuning, String key)
+    {
+        cfg = config;
+        this.tuning = tuning;
+        hostname = "localhost";
+        listenport = 0;
+        user = key;
+        password = key;
+    }
+
+    /**
+     * Get the port the server is listening on
+     *
+     * @return int port, or -1 if not listening
+     */
+    public int getPort()
+    {
+        for (SocketAddress address : sshd.getBoundAddresses())
+        {
+            if (address instanceof InetSocketAddress)
+                return ((InetSocketAddress) address).getPort();
+        }
+        return -1;
+    }
+
+    /**
+     * Dump statistics of sftp sessions and transfers
+     */
+    public String dumpStatistics()
+    {
+        return metrics.dumpStatistics();
+    }
+
     @Override
     public String resolveErrorMessage(SftpSubsystemEnvironment sftpSubsystem, int id, Throwable e, int subStatus, int cmd, Object... args)
     {
@@ -90,6 +139,11 @@ public class ServeSftp implements SftpErrorStatusDataHandler
             sshd = SshServer.setUpDefaultServer();
             sshd.setHost(hostname);
             sshd.setPort(listenport);
+            if (tuning != null)
+            {
+                tuning.apply(sshd);
+                logger.info("ServeSftp server tuning " + tuning);
+            }
             try
             {
                 sshd.setPublickeyAuthenticator(new PublickeyAuthenticator()
@@ -111,9 +165,12 @@ public class ServeSftp implements SftpErrorStatusDataHandler
 
             SftpSubsystemFactory factory = new SftpSubsystemFactory.Builder()
                     .withSftpErrorStatusDataHandler(this)
+                    .withFileSystemAccessor(new FileSystemAccessor(cfg))
                     .build();
 
-            //factory.addSftpEventListener(new EventListener());
+            factory.addSftpEventListener(metrics);
+            if (Governor.getInstance().isActive())
+                factory.addSftpEventListener(new ThrottleListener());
 
             sshd.setSubsystemFactories(Collections.singletonList(factory));
 
@@ -129,7 +186,10 @@ public class ServeSftp implements SftpErrorStatusDataHandler
                         authenticated = true;
                         loginAttempts = 1;
                         loginAttemptAddress = "";
-                        logger.info("ServeSftp server connected to " + serverSession.getClientAddress().toString());
+                        logger.info("ServeSftp server connected to " + serverSession.getClientAddress().toString() + " using " +
+                                serverSession.getNegotiatedKexParameter(KexProposalOption.C2SENC) + ", " +
+                                serverSession.getNegotiatedKexParameter(KexProposalOption.C2SMAC) + ", " +
+                                serverSession.getNegotiatedKexParameter(KexProposalOption.C2SCOMP));
                     }
                     else
                     {
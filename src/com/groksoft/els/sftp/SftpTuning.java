@@ -0,0 +1,89 @@
+package com.groksoft.els.sftp;
+
+import com.groksoft.els.MungerException;
+import com.groksoft.els.Utils;
+import org.apache.sshd.common.FactoryManager;
+import org.apache.sshd.common.PropertyResolverUtils;
+import org.apache.sshd.common.io.mina.MinaServiceFactoryFactory;
+import org.apache.sshd.common.io.nio2.Nio2ServiceFactoryFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.subsystem.sftp.AbstractSftpSubsystemHelper;
+
+/**
+ * Sftp server tuning, the sshd I/O service, threads and buffer sizes
+ * <p>
+ * Sizes are scaled values, e.g. 256KB. An omitted element uses the sshd default.
+ */
+public class SftpTuning
+{
+    public static final String MINA = "mina";
+    public static final String NIO2 = "nio2";
+
+    public String name;
+    public String io;                   // mina or nio2
+    public Integer workers;             // I/O worker threads
+    public String window;               // channel window size
+    public String packet;               // maximum packet size
+    public String readData;             // sftp read reply data size
+    public String readBuffer;           // nio2 socket read buffer size
+
+    /**
+     * Apply to an sshd server before it is started
+     *
+     * @param sshd The server
+     */
+    public void apply(SshServer sshd)
+    {
+        if (io != null)
+            sshd.setIoServiceFactoryFactory(io.equalsIgnoreCase(MINA) ? new MinaServiceFactoryFactory() : new Nio2ServiceFactoryFactory());
+        if (workers != null)
+            PropertyResolverUtils.updateProperty(sshd, FactoryManager.NIO_WORKERS, workers.intValue());
+        if (window != null)
+            PropertyResolverUtils.updateProperty(sshd, FactoryManager.WINDOW_SIZE, Utils.getScaledValue(window));
+        if (packet != null)
+            PropertyResolverUtils.updateProperty(sshd, FactoryManager.MAX_PACKET_SIZE, Utils.getScaledValue(packet));
+        if (readData != null)
+            PropertyResolverUtils.updateProperty(sshd, AbstractSftpSubsystemHelper.MAX_READDATA_PACKET_LENGTH_PROP, (int) Utils.getScaledValue(readData));
+        if (readBuffer != null)
+            PropertyResolverUtils.updateProperty(sshd, FactoryManager.NIO2_READ_BUFFER_SIZE, (int) Utils.getScaledValue(readBuffer));
+    }
+
+    /**
+     * Validate the values
+     *
+     * @throws MungerException
+     */
+    public void validate() throws MungerException
+    {
+        if (name == null || name.length() == 0)
+            throw new MungerException("sftp tuning name must be defined");
+        if (io != null && !io.equalsIgnoreCase(MINA) && !io.equalsIgnoreCase(NIO2))
+            throw new MungerException("sftp tuning " + name + " io must be " + MINA + " or " + NIO2);
+        if (workers != null && workers < 1)
+            throw new MungerException("sftp tuning " + name + " workers must be 1 or more");
+        String[] sizes = {window, packet, readData, readBuffer};
+        for (String size : sizes)
+        {
+            if (size != null && Utils.getScaledValue(size) <= 0)
+                throw new MungerException("sftp tuning " + name + " size '" + size + "' requires a scale, e.g. 256KB");
+        }
+    }
+
+    /**
+     * Get the settings as text
+     *
+     * @return String of the name and each setting
+     */
+    @Override
+    public String toString()
+    {
+        return name + " (" +
+                "io " + (io != null ? io : "default") +
+                ", workers " + (workers != null ? workers : "default") +
+                ", window " + (window != null ? window : "default") +
+                ", packet " + (packet != null ? packet : "default") +
+                ", read data " + (readData != null ? readData : "default") +
+                ", read buffer " + (readBuffer != null ? readBuffer : "default") + ")";
+    }
+
+}
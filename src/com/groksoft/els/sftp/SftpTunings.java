@@ -0,0 +1,117 @@
+package com.groksoft.els.sftp;
+
+import com.google.gson.Gson;
+import com.groksoft.els.MungerException;
+import com.groksoft.els.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sftp server tunings
+ * <p>
+ * The first tuning in a JSON sftp tuning file is used by the sftp server, all
+ * of them are compared by the loopback benchmark.
+ */
+public class SftpTunings
+{
+    private static SftpTunings instance = null;
+
+    private transient Logger logger = LogManager.getLogger("applog");
+    private String jsonFilename = "";
+    private List<SftpTuning> tunings = new ArrayList<>();
+
+    /**
+     * The sftp tuning file
+     */
+    private static class Data
+    {
+        String description;
+        SftpTuning[] tunings;
+    }
+
+    private SftpTunings()
+    {
+        // hide default constructor
+    }
+
+    /**
+     * Get this instance
+     *
+     * @return SftpTunings singleton
+     */
+    public static synchronized SftpTunings getInstance()
+    {
+        if (instance == null)
+            instance = new SftpTunings();
+        return instance;
+    }
+
+    /**
+     * Gets JSON filename
+     *
+     * @return the JSON filename
+     */
+    public String getJsonFilename()
+    {
+        return jsonFilename;
+    }
+
+    /**
+     * Get the tuning used by the sftp server
+     *
+     * @return SftpTuning, or null for the sshd defaults
+     */
+    public SftpTuning getServer()
+    {
+        return tunings.isEmpty() ? null : tunings.get(0);
+    }
+
+    /**
+     * Get all tunings
+     *
+     * @return List of SftpTuning in file order
+     */
+    public List<SftpTuning> getTunings()
+    {
+        return tunings;
+    }
+
+    /**
+     * Read and validate an sftp tuning file
+     *
+     * @param filename The JSON sftp tuning filename
+     * @throws MungerException
+     */
+    public synchronized void read(String filename) throws MungerException
+    {
+        Data data;
+        try
+        {
+            Gson gson = new Gson();
+            logger.info("Reading Sftp Tuning file " + filename);
+            jsonFilename = filename;
+            String json = new String(Files.readAllBytes(Paths.get(filename)));
+            data = gson.fromJson(json, Data.class);
+        }
+        catch (IOException ioe)
+        {
+            throw new MungerException("Exception while reading sftp tuning: " + filename + " trace: " + Utils.getStackTrace(ioe));
+        }
+
+        if (data == null || data.tunings == null || data.tunings.length == 0)
+            throw new MungerException("tunings must be defined in " + filename);
+        for (SftpTuning tuning : data.tunings)
+            tuning.validate();
+
+        tunings.clear();
+        tunings.addAll(Arrays.asList(data.tunings));
+    }
+
+}
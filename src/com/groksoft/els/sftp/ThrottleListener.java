@@ -0,0 +1,50 @@
+package com.groksoft.els.sftp;
+
+import com.groksoft.els.throttle.Governor;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.subsystem.sftp.FileHandle;
+import org.apache.sshd.server.subsystem.sftp.SftpEventListener;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * Apache Mina sftp event listener that throttles reads and writes<br/>
+ * <p>
+ * The reading and writing events are called before the file I/O, so waiting
+ * for the I/O Governor there holds back the sftp server.
+ */
+public class ThrottleListener implements SftpEventListener
+{
+    private Governor governor = Governor.getInstance();
+
+    /**
+     * Get the host of the other end of a session without a DNS lookup
+     */
+    private String getHost(ServerSession session)
+    {
+        SocketAddress address = session.getClientAddress();
+        if (address instanceof InetSocketAddress)
+        {
+            InetSocketAddress inet = (InetSocketAddress) address;
+            return (inet.getAddress() != null) ? inet.getAddress().getHostAddress() : inet.getHostString();
+        }
+        return null;
+    }
+
+    @Override
+    public void reading(ServerSession session, String remoteHandle, FileHandle localHandle, long offset, byte[] data, int dataOffset, int dataLen) throws IOException
+    {
+        governor.acquireBytes(localHandle.getFile().toString(), dataLen);
+        governor.acquireLink(getHost(session), dataLen);
+    }
+
+    @Override
+    public void writing(ServerSession session, String remoteHandle, FileHandle localHandle, long offset, byte[] data, int dataOffset, int dataLen) throws IOException
+    {
+        governor.acquireBytes(localHandle.getFile().toString(), dataLen);
+        governor.acquireLink(getHost(session), dataLen);
+    }
+
+}
@@ -0,0 +1,16 @@
+package com.groksoft.els.sftp;
+
+/**
+ * Transfer profile, the ssh algorithms for a class of files
+ * <p>
+ * Each value is an ssh algorithm name or a comma-separated preference list,
+ * null uses the Jsch default.
+ */
+public class TransferProfile
+{
+    public String name;
+    public String cipher;
+    public String mac;
+    public String compression;
+    public String[] extensions;      // file extensions without the dot, empty for the default profile
+}
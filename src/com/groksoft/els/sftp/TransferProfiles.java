@@ -0,0 +1,183 @@
+package com.groksoft.els.sftp;
+
+import com.google.gson.Gson;
+import com.groksoft.els.MungerException;
+import com.groksoft.els.Utils;
+import com.jcraft.jsch.JSch;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sftp transfer profiles
+ * <p>
+ * Chooses the ssh cipher, MAC and compression by file extension from a JSON
+ * transfer profiles file, e.g. no compression for video and zlib for subtitles
+ * and text. Files that match no profile use the default profile, the one
+ * without extensions, or the Jsch defaults.
+ * <p>
+ * When no profiles file is used every call returns null.
+ */
+public class TransferProfiles
+{
+    public static final List<String> COMPRESSIONS = Arrays.asList("none", "zlib", "zlib@openssh.com");
+
+    private static TransferProfiles instance = null;
+
+    private transient Logger logger = LogManager.getLogger("applog");
+    private TransferProfile defaultProfile = null;
+    private String jsonFilename = "";
+    private List<TransferProfile> profiles = new ArrayList<>();
+
+    /**
+     * The transfer profiles file
+     */
+    private static class Data
+    {
+        String description;
+        TransferProfile[] profiles;
+    }
+
+    private TransferProfiles()
+    {
+        // hide default constructor
+    }
+
+    /**
+     * Get this instance
+     *
+     * @return TransferProfiles singleton
+     */
+    public static synchronized TransferProfiles getInstance()
+    {
+        if (instance == null)
+            instance = new TransferProfiles();
+        return instance;
+    }
+
+    /**
+     * Find the profile for a file
+     *
+     * @param path File path or name
+     * @return TransferProfile, or null for the Jsch defaults
+     */
+    public TransferProfile find(String path)
+    {
+        int dot = path.lastIndexOf('.');
+        if (dot >= 0 && dot > Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')))
+        {
+            String extension = path.substring(dot + 1);
+            for (TransferProfile profile : profiles)
+            {
+                if (profile.extensions == null)
+                    continue;
+                for (String match : profile.extensions)
+                {
+                    if (match.equalsIgnoreCase(extension))
+                        return profile;
+                }
+            }
+        }
+        return defaultProfile;
+    }
+
+    /**
+     * Get the default profile
+     *
+     * @return TransferProfile, or null for the Jsch defaults
+     */
+    public TransferProfile getDefault()
+    {
+        return defaultProfile;
+    }
+
+    /**
+     * Gets JSON filename
+     *
+     * @return the JSON filename
+     */
+    public String getJsonFilename()
+    {
+        return jsonFilename;
+    }
+
+    /**
+     * Get all profiles
+     *
+     * @return List of TransferProfile in file order
+     */
+    public List<TransferProfile> getProfiles()
+    {
+        return profiles;
+    }
+
+    /**
+     * Read and validate a transfer profiles file
+     *
+     * @param filename The JSON transfer profiles filename
+     * @throws MungerException
+     */
+    public synchronized void read(String filename) throws MungerException
+    {
+        Data data;
+        try
+        {
+            Gson gson = new Gson();
+            logger.info("Reading Transfer Profiles file " + filename);
+            jsonFilename = filename;
+            String json = new String(Files.readAllBytes(Paths.get(filename)));
+            data = gson.fromJson(json, Data.class);
+        }
+        catch (IOException ioe)
+        {
+            throw new MungerException("Exception while reading transfer profiles: " + filename + " trace: " + Utils.getStackTrace(ioe));
+        }
+
+        if (data == null || data.profiles == null || data.profiles.length == 0)
+            throw new MungerException("profiles must be defined in " + filename);
+
+        profiles.clear();
+        defaultProfile = null;
+        for (int i = 0; i < data.profiles.length; ++i)
+        {
+            TransferProfile profile = data.profiles[i];
+            if (profile.name == null || profile.name.length() == 0)
+                throw new MungerException("transfer profile [" + i + "] name must be defined");
+            validate(profile.name, "cipher", profile.cipher, null);
+            validate(profile.name, "mac", profile.mac, null);
+            validate(profile.name, "compression", profile.compression, COMPRESSIONS);
+            if (profile.extensions == null || profile.extensions.length == 0)
+            {
+                if (defaultProfile != null)
+                    throw new MungerException("transfer profiles " + defaultProfile.name + " and " + profile.name + " both have no extensions, only one default is allowed");
+                defaultProfile = profile;
+            }
+            profiles.add(profile);
+        }
+    }
+
+    /**
+     * Validate an algorithm list against those Jsch supports
+     *
+     * @throws MungerException
+     */
+    private void validate(String name, String kind, String value, List<String> allowed) throws MungerException
+    {
+        if (value == null)
+            return;
+        for (String algorithm : value.split(","))
+        {
+            algorithm = algorithm.trim();
+            boolean known = (allowed != null) ? allowed.contains(algorithm) : (JSch.getConfig(algorithm) != null);
+            if (!known || algorithm.equals("none") && !kind.equals("compression"))
+                throw new MungerException("transfer profile " + name + " " + kind + " '" + algorithm + "' is not supported");
+        }
+    }
+
+}
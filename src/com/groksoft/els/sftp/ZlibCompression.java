@@ -0,0 +1,99 @@
+package com.groksoft.els.sftp;
+
+import com.jcraft.jsch.Compression;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Jsch zlib compression using the JDK
+ * <p>
+ * Jsch's own zlib support needs the separate jzlib library. This does the same
+ * with java.util.zip, flushing after each packet as ssh requires.
+ */
+public class ZlibCompression implements Compression
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] tmp = new byte[BUFFER_SIZE];
+    private byte[] inflated = new byte[BUFFER_SIZE];
+
+    @Override
+    public void init(int type, int level)
+    {
+        if (type == DEFLATER)
+            deflater = new Deflater(level);
+        else
+            inflater = new Inflater();
+    }
+
+    /**
+     * Compress buf[start, len[0]) in place after the packet header
+     */
+    @Override
+    public byte[] compress(byte[] buf, int start, int[] len)
+    {
+        deflater.setInput(buf, start, len[0] - start);
+        byte[] out = buf;
+        int end = start;
+        int n;
+        do
+        {
+            n = deflater.deflate(tmp, 0, tmp.length, Deflater.SYNC_FLUSH);
+            if (out.length < end + n + 32)
+            {
+                byte[] bigger = new byte[(end + n + 32) * 2];
+                System.arraycopy(out, 0, bigger, 0, end);
+                out = bigger;
+            }
+            System.arraycopy(tmp, 0, out, end, n);
+            end += n;
+        }
+        while (n == tmp.length);
+        len[0] = end;
+        return out;
+    }
+
+    /**
+     * Uncompress buffer[start, start + length[0]) in place
+     */
+    @Override
+    public byte[] uncompress(byte[] buffer, int start, int[] length)
+    {
+        inflater.setInput(buffer, start, length[0]);
+        int end = 0;
+        try
+        {
+            int n;
+            while ((n = inflater.inflate(tmp, 0, tmp.length)) > 0)
+            {
+                if (inflated.length < end + n)
+                {
+                    byte[] bigger = new byte[Math.max(inflated.length * 2, end + n)];
+                    System.arraycopy(inflated, 0, bigger, 0, end);
+                    inflated = bigger;
+                }
+                System.arraycopy(tmp, 0, inflated, end, n);
+                end += n;
+            }
+        }
+        catch (DataFormatException e)
+        {
+            return null;
+        }
+
+        if (buffer.length < start + end)
+        {
+            byte[] bigger = new byte[start + end];
+            System.arraycopy(buffer, 0, bigger, 0, start);
+            buffer = bigger;
+        }
+        System.arraycopy(inflated, 0, buffer, start, end);
+        length[0] = end;
+        return buffer;
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.groksoft.els.stty;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Read a stream written by ChunkedOutputStream from an stty connection
+ * <p>
+ * One chunk is opened and inflated at a time. The end of stream marker is
+ * consumed so the connection is ready for the next message.
+ */
+public class ChunkedInputStream extends InputStream
+{
+    private byte[] buffer = new byte[ChunkedOutputStream.CHUNK_SIZE];
+    private SttyCipher cipher;
+    private boolean ended = false;
+    private DataInputStream in;
+    private Inflater inflater = new Inflater();
+    private int length = 0;
+    private int position = 0;
+
+    private ChunkedInputStream()
+    {
+        // hide default constructor
+    }
+
+    /**
+     * Instantiate this class
+     *
+     * @param in     The stty connection
+     * @param cipher SttyCipher of the connection
+     */
+    public ChunkedInputStream(DataInputStream in, SttyCipher cipher)
+    {
+        this.in = in;
+        this.cipher = cipher;
+    }
+
+    /**
+     * Read the rest of the stream, leaves the stty connection open
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException
+    {
+        while (!ended)
+            readChunk();
+        inflater.end();
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (position == length && !readChunk())
+            return -1;
+        return buffer[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int count) throws IOException
+    {
+        if (count == 0)
+            return 0;
+        if (position == length && !readChunk())
+            return -1;
+        int size = Math.min(count, length - position);
+        System.arraycopy(buffer, position, data, offset, size);
+        position += size;
+        return size;
+    }
+
+    /**
+     * Read the next chunk
+     *
+     * @return true if a chunk was read, false at the end of the stream
+     */
+    private boolean readChunk() throws IOException
+    {
+        if (ended)
+            return false;
+        int original = in.readInt();
+        if (original == 0)
+        {
+            ended = true;
+            return false;
+        }
+        if (original < 0 || original > buffer.length)
+            throw new IOException("chunk of " + original + " bytes is not valid");
+
+        ByteBuffer compressed = cipher.read(in, in.readInt());
+        try
+        {
+            inflater.reset();
+            inflater.setInput(compressed.array(), 0, compressed.limit());
+            length = 0;
+            while (length < original && !inflater.finished())
+            {
+                int count = inflater.inflate(buffer, length, original - length);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                length += count;
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("chunk could not be read: " + e.getMessage());
+        }
+        if (length != original)
+            throw new IOException("chunk inflated to " + length + " bytes, expected " + original);
+        position = 0;
+        return true;
+    }
+
+}
@@ -0,0 +1,179 @@
+package com.groksoft.els.stty;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Stream large data over an stty connection in compressed, encrypted chunks
+ * <p>
+ * Each chunk of up to CHUNK_SIZE bytes is deflated on its own and written as
+ * an int of its original length then a frame sealed by the connection's
+ * SttyCipher. An original length of 0 ends the stream. Memory use is a few chunks whatever the total size.
+ * <p>
+ * Read with ChunkedInputStream.
+ * <p>
+ * A stream may instead record its chunks, still compressed but not sealed, to
+ * be sent any number of times with replay().
+ */
+public class ChunkedOutputStream extends OutputStream
+{
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    private byte[] buffer = new byte[CHUNK_SIZE];
+    private SttyCipher cipher;
+    private byte[] compressed = new byte[CHUNK_SIZE + (CHUNK_SIZE / 100) + 64];
+    private Deflater deflater = new Deflater();
+    private boolean finished = false;
+    private DataOutputStream out;
+    private int pending = 0;
+    private List<byte[]> record = null;
+    private long total = 0L;
+
+    private ChunkedOutputStream()
+    {
+        // hide default constructor
+    }
+
+    /**
+     * Instantiate this class
+     *
+     * @param out    The stty connection
+     * @param cipher SttyCipher of the connection
+     */
+    public ChunkedOutputStream(DataOutputStream out, SttyCipher cipher)
+    {
+        this.out = out;
+        this.cipher = cipher;
+    }
+
+    /**
+     * Instantiate this class to record chunks instead of writing them
+     *
+     * @param record Receives each compressed chunk prefixed by its original length
+     */
+    public ChunkedOutputStream(List<byte[]> record)
+    {
+        this.record = record;
+    }
+
+    /**
+     * Send recorded chunks and the end of stream marker
+     *
+     * @param chunks The recorded chunks
+     * @param out    The stty connection
+     * @param cipher SttyCipher of the connection
+     * @throws IOException
+     */
+    public static void replay(List<byte[]> chunks, DataOutputStream out, SttyCipher cipher) throws IOException
+    {
+        for (byte[] chunk : chunks)
+        {
+            out.write(chunk, 0, 4);
+            cipher.write(out, chunk, 4, chunk.length - 4);
+        }
+        out.writeInt(0);
+        out.flush();
+    }
+
+    /**
+     * Write any pending chunk and the end of stream marker
+     * <p>
+     * The stty connection is left open.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException
+    {
+        if (finished)
+            return;
+        finished = true;
+        writeChunk();
+        if (record == null)
+        {
+            out.writeInt(0);
+            out.flush();
+        }
+        deflater.end();
+    }
+
+    /**
+     * Get the number of bytes written before compression
+     *
+     * @return long total
+     */
+    public long getTotal()
+    {
+        return total;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        finish();
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        if (pending == CHUNK_SIZE)
+            writeChunk();
+        buffer[pending++] = (byte) b;
+        ++total;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        if (finished)
+            throw new IOException("chunked stream is finished");
+        while (length > 0)
+        {
+            if (pending == CHUNK_SIZE)
+                writeChunk();
+            int count = Math.min(length, CHUNK_SIZE - pending);
+            System.arraycopy(data, offset, buffer, pending, count);
+            pending += count;
+            offset += count;
+            length -= count;
+            total += count;
+        }
+    }
+
+    private void writeChunk() throws IOException
+    {
+        if (pending == 0)
+            return;
+        deflater.reset();
+        deflater.setInput(buffer, 0, pending);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished())
+        {
+            if (size == compressed.length)
+            {
+                byte[] bigger = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, bigger, 0, size);
+                compressed = bigger;
+            }
+            size += deflater.deflate(compressed, size, compressed.length - size);
+        }
+        if (record != null)
+        {
+            byte[] chunk = new byte[size + 4];
+            ByteBuffer.wrap(chunk).putInt(pending);
+            System.arraycopy(compressed, 0, chunk, 4, size);
+            record.add(chunk);
+        }
+        else
+        {
+            out.writeInt(pending);
+            cipher.write(out, compressed, 0, size);
+        }
+        pending = 0;
+    }
+
+}
@@ -3,29 +3,56 @@ package com.groksoft.els.stty;
 import com.groksoft.els.Configuration;
 import com.groksoft.els.MungerException;
 import com.groksoft.els.Utils;
+import com.groksoft.els.repository.CollectionLog;
 import com.groksoft.els.stty.gui.TerminalGui;
 import com.groksoft.els.repository.Repository;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * ClientStty -to- ServeStty, used for both manual (interactive) and automated sessions
+ * <p>
+ * When the subscriber's banner offers Pipeline the stateless commands are sent
+ * as "#id command" without waiting, answered "#id reply" in any order, and
+ * matched by whichever waiting thread is reading. Other commands, and every
+ * command to an older subscriber, hold the connection for a plain round trip.
  */
 public class ClientStty
 {
+    public static final String[] PIPELINED_COMMANDS = {"hash", "mkdirs", "preallocate", "space", "targets", "unpack"};
+
     private transient Logger logger = LogManager.getLogger("applog");
 
     private Configuration cfg;
+    private SttyCipher cipher = null;
+    private boolean holding = false;
     private boolean isConnected = false;
     private boolean isTerminal = false;
+    private int nextId = 0;
+    private int outstanding = 0;
+    private boolean pipelined = false;
+    private boolean reading = false;
+    private Map<Integer, String> replies = new HashMap<>();
     private Socket socket;
 
     DataInputStream in = null;
@@ -62,6 +89,96 @@ public class ClientStty
         return space;
     }
 
+    /**
+     * Ask the remote for the free space of several locations
+     * <p>
+     * A pipelined subscriber answers them all in one request.
+     *
+     * @param locations The remote locations
+     * @return Map of location to free space in bytes
+     */
+    public Map<String, Long> availableSpace(List<String> locations) throws Exception
+    {
+        Map<String, Long> spaces = new HashMap<>();
+        if (!pipelined)
+        {
+            for (String location : locations)
+                spaces.put(location, availableSpace(location));
+            return spaces;
+        }
+        if (locations.isEmpty())
+            return spaces;
+
+        String response = roundTrip("space " + String.join("|", locations));
+        String[] values = (response != null) ? response.trim().split(" ") : new String[0];
+        for (int i = 0; i < locations.size(); ++i)
+            spaces.put(locations.get(i), (i < values.length && values[i].length() > 0) ? Long.parseLong(values[i]) : 0L);
+        return spaces;
+    }
+
+    /**
+     * Wait for the reply to a submitted command
+     *
+     * @param id The id returned by submit()
+     * @return String reply
+     */
+    public String await(int id) throws Exception
+    {
+        while (true)
+        {
+            synchronized (replies)
+            {
+                while (!replies.containsKey(id) && reading)
+                    replies.wait();
+                if (replies.containsKey(id))
+                    return replies.remove(id);
+                reading = true;
+            }
+            try
+            {
+                readReply();
+            }
+            finally
+            {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Hold the connection for a command that is not pipelined
+     * <p>
+     * Any pipelined replies still on the way are read first, and none are
+     * submitted until it is released.
+     */
+    private void acquire() throws Exception
+    {
+        synchronized (replies)
+        {
+            while (reading)
+                replies.wait();
+            reading = true;
+            holding = true;
+        }
+        try
+        {
+            while (true)
+            {
+                synchronized (replies)
+                {
+                    if (outstanding == 0)
+                        break;
+                }
+                readReply();
+            }
+        }
+        catch (Exception e)
+        {
+            release();
+            throw e;
+        }
+    }
+
     public boolean checkBannerCommands() throws Exception
     {
         boolean hasCommands = false;
@@ -94,6 +211,11 @@ public class ClientStty
                             hasCommands = true;
                             cfg.setRequestTargets(true);
                         }
+                        else if (cmdSplit[i].equals("Pipeline"))
+                        {
+                            pipelined = true;
+                            logger.info("Subscriber accepts pipelined commands");
+                        }
                     }
                 }
             }
@@ -176,7 +298,7 @@ public class ClientStty
     public int guiSession() throws Exception
     {
         int returnValue = 0;
-        gui = new TerminalGui(this, cfg, in, out);
+        gui = new TerminalGui(this, cfg, in, out, cipher);
         returnValue = gui.run(myRepo, theirRepo);
         return returnValue;
     }
@@ -184,18 +306,19 @@ public class ClientStty
     private boolean handshake() throws Exception
     {
         boolean valid = false;
-        String input = Utils.read(in, theirKey);
+        cipher = SttyCipher.connect(in, out, theirKey);
+        String input = Utils.read(in, cipher);
         if (input.equals("HELO"))
         {
-            Utils.write(out, theirKey, (isTerminal ? "DribNit" : "DribNlt"));
+            Utils.write(out, cipher, (isTerminal ? "DribNit" : "DribNlt"));
 
-            input = Utils.read(in, theirKey);
+            input = Utils.read(in, cipher);
             if (input.equals(theirKey))
             {
-                Utils.write(out, theirKey, myKey);
+                Utils.write(out, cipher, myKey);
 
                 // get the subscriber's flavor
-                input = Utils.read(in, theirKey);
+                input = Utils.read(in, cipher);
                 try
                 {
                     // if Utils.getFileSeparator() does not throw an exception
@@ -222,17 +345,158 @@ public class ClientStty
         return isConnected;
     }
 
-    public String receive() throws Exception
+    public boolean isTerminal()
+    {
+        return isTerminal;
+    }
+
+    /**
+     * Does the subscriber accept pipelined commands
+     *
+     * @return true if commands may be sent without waiting for each reply
+     */
+    public boolean isPipelined()
+    {
+        return pipelined;
+    }
+
+    private boolean isPipelined(String command)
+    {
+        String name = command.trim().split(" ", 2)[0];
+        for (String pipelinedCommand : PIPELINED_COMMANDS)
+        {
+            if (pipelinedCommand.equalsIgnoreCase(name))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Ask the remote for the hash of a range of a file
+     *
+     * @param location The remote file
+     * @param offset   Start of the range
+     * @param length   Bytes in the range
+     * @return String SHA-256 in hex, or null if the remote could not read it
+     */
+    public String hash(String location, long offset, long length) throws Exception
+    {
+        String response = roundTrip("hash " + offset + " " + length + " " + location);
+        if (response != null && response.startsWith("ok "))
+            return response.substring(3).trim();
+        return null;
+    }
+
+    /**
+     * Ask the remote for the hashes of several ranges of a file
+     * <p>
+     * All are submitted before any reply is awaited.
+     *
+     * @param location The remote file
+     * @param offsets  Start of each range
+     * @param lengths  Bytes in each range
+     * @return String[] SHA-256 in hex of each range, null where the remote could not read it
+     */
+    public String[] hash(String location, long[] offsets, long[] lengths) throws Exception
     {
-        String response = Utils.read(in, theirRepo.getLibraryData().libraries.key);
+        int[] ids = new int[offsets.length];
+        for (int i = 0; i < offsets.length; ++i)
+            ids[i] = submit("hash " + offsets[i] + " " + lengths[i] + " " + location);
+        String[] hashes = new String[offsets.length];
+        for (int i = 0; i < offsets.length; ++i)
+        {
+            String response = await(ids[i]);
+            hashes[i] = (response != null && response.startsWith("ok ")) ? response.substring(3).trim() : null;
+        }
+        return hashes;
+    }
+
+    /**
+     * Ask the remote to make a directory and any missing parents
+     *
+     * @param location The remote directory
+     * @return true if the directory exists afterwards
+     */
+    public boolean mkdirs(String location) throws Exception
+    {
+        String response = roundTrip("mkdirs " + location);
+        return (response != null && response.equals("ok"));
+    }
+
+    /**
+     * Keep an idle session from timing out on the remote
+     *
+     * @return true if the remote answered
+     */
+    public boolean ping() throws Exception
+    {
+        String response = roundTrip("ping");
+        return (response != null);
+    }
+
+    /**
+     * Ask the remote to preallocate the next sftp upload of a file
+     *
+     * @param location The remote path the sftp upload will be written to
+     * @param size     The final size of the file
+     * @return true if the remote reserved the space
+     */
+    public boolean preallocate(String location, long size) throws Exception
+    {
+        String response = roundTrip("preallocate " + size + " " + location);
+        return (response != null && response.equals("ok"));
+    }
+
+    /**
+     * Read one pipelined reply and hand it to its waiting thread
+     */
+    private void readReply() throws Exception
+    {
+        String line = receive();
+        if (line == null)
+            throw new MungerException("Connection closed with " + outstanding + " pipelined commands unanswered");
+        int space = line.indexOf(' ');
+        if (!line.startsWith("#") || space < 2)
+            throw new MungerException("Reply to a pipelined command is not tagged: " + line);
+        int id = Integer.parseInt(line.substring(1, space));
+        synchronized (replies)
+        {
+            --outstanding;
+            replies.put(id, line.substring(space + 1));
+            replies.notifyAll();
+        }
+    }
+
+    /**
+     * Read one response
+     * <p>
+     * Only called while the connection is held by acquire() or read by
+     * await(), so the response cannot be taken by another thread.
+     */
+    private String receive() throws Exception
+    {
+        String response = Utils.read(in, cipher);
         return response;
     }
 
+    private void release()
+    {
+        synchronized (replies)
+        {
+            holding = false;
+            reading = false;
+            replies.notifyAll();
+        }
+    }
+
     public String retrieveRemoteData(String filename, String command) throws Exception
     {
         String location = "";
         String response = "";
 
+        if (command.equals("collection"))
+            return retrieveStream(filename, command);
+
         response = roundTrip(command);
         if (response != null && response.length() > 0)
         {
@@ -254,16 +518,161 @@ public class ClientStty
         return location;
     }
 
-    public String roundTrip(String command) throws Exception
+    /**
+     * Retrieve the remote collection streamed in chunks straight to a file
+     * <p>
+     * The last collection received is cached with its epoch, generation and
+     * tag. If the subscriber's collection has the same tag nothing is sent and
+     * the cache is copied, otherwise if it still has the changes since then
+     * only those are sent and merged into a copy of the cache.
+     *
+     * @param filename Base filename of the received file
+     * @param command  The command, sent with "stream" or "since"
+     * @return String path of the received file
+     */
+    private String retrieveStream(String filename, String command) throws Exception
     {
-        send(command);
+        acquire();
+        try
+        {
+            return receiveStream(filename, command);
+        }
+        finally
+        {
+            release();
+        }
+    }
+
+    private String receiveStream(String filename, String command) throws Exception
+    {
+        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+        String location = filename + "_" + command + "-received-" + dtf.format(LocalDateTime.now()) + ".json";
+        Path cache = Paths.get(filename + "_" + command + "-cache.json");
+        Path version = Paths.get(cache + ".version");
+
+        String since = null;
+        if (Files.exists(cache) && Files.exists(version))
+            since = new String(Files.readAllBytes(version), StandardCharsets.UTF_8).trim();
+        send(command + (since != null ? " since " + since : " stream"));
+
+        try (ChunkedInputStream chunks = new ChunkedInputStream(in, cipher);
+             OutputStream file = new BufferedOutputStream(new FileOutputStream(location)))
+        {
+            byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = chunks.read(buffer)) > 0)
+                file.write(buffer, 0, count);
+        }
+        catch (FileNotFoundException fnf)
+        {
+            receive(); // the stream was read, discard its result
+            throw new MungerException("Exception while writing " + command + " file " + location + " trace: " + Utils.getStackTrace(fnf));
+        }
+
+        // ok [bytes] [full|delta|same] [epoch] [generation] [tag]
         String response = receive();
-        return response;
+        String[] parts = (response != null) ? response.split(" ") : new String[0];
+        if (parts.length < 5 || !parts[0].equals("ok"))
+        {
+            new File(location).delete();
+            throw new MungerException("Remote " + command + " failed: " + response);
+        }
+
+        if (parts[2].equals("same"))
+        {
+            Files.copy(cache, Paths.get(location), StandardCopyOption.REPLACE_EXISTING);
+            logger.info("Remote " + command + " is not modified, using cached " + cache);
+            return location;
+        }
+        else if (parts[2].equals("delta"))
+        {
+            try
+            {
+                int changes = CollectionLog.merge(cache.toString(), location);
+                logger.info("Received " + changes + " " + command + " changes since generation " + since.split(" ")[1] + " in " +
+                        Utils.formatLong(Long.parseLong(parts[1])));
+            }
+            catch (MungerException e)
+            {
+                logger.warn("Could not merge " + command + " changes, requesting all: " + e.getMessage());
+                new File(location).delete();
+                Files.deleteIfExists(version);
+                return receiveStream(filename, command);
+            }
+        }
+        else
+        {
+            logger.info("Received " + command + " of " + Utils.formatLong(Long.parseLong(parts[1])) + " to " + location);
+        }
+
+        Files.copy(Paths.get(location), cache, StandardCopyOption.REPLACE_EXISTING);
+        Files.write(version, (parts[3] + " " + parts[4] + (parts.length > 5 ? " " + parts[5] : "")).getBytes(StandardCharsets.UTF_8));
+        return location;
     }
 
-    public void send(String command) throws Exception
+    /**
+     * Send a command and wait for its response
+     * <p>
+     * Safe to call from several transfer threads. A pipelined command is
+     * matched to its reply by id, any other holds the connection from the
+     * send until its response is read, whether or not the subscriber
+     * accepts pipelined commands.
+     *
+     * @param command The command
+     * @return String response
+     */
+    public String roundTrip(String command) throws Exception
     {
-        Utils.write(out, theirRepo.getLibraryData().libraries.key, command);
+        if (pipelined && isPipelined(command))
+            return await(submit(command));
+
+        acquire();
+        try
+        {
+            send(command);
+            String response = receive();
+            return response;
+        }
+        finally
+        {
+            release();
+        }
+    }
+
+    private void send(String command) throws Exception
+    {
+        Utils.write(out, cipher, command);
+    }
+
+    /**
+     * Send a command without waiting for its reply
+     * <p>
+     * With an older subscriber, or a command that is not pipelined, the round
+     * trip is made now and its reply kept for await().
+     *
+     * @param command The command
+     * @return int id to await() the reply
+     */
+    public int submit(String command) throws Exception
+    {
+        if (!pipelined || !isPipelined(command))
+        {
+            String reply = roundTrip(command);
+            synchronized (replies)
+            {
+                replies.put(++nextId, reply);
+                return nextId;
+            }
+        }
+        synchronized (replies)
+        {
+            while (holding)
+                replies.wait();
+            int id = ++nextId;
+            ++outstanding;
+            send("#" + id + " " + command);
+            return id;
+        }
     }
 
 }
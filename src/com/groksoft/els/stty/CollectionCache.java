@@ -0,0 +1,335 @@
+package com.groksoft.els.stty;
+
+import com.groksoft.els.MungerException;
+import com.groksoft.els.Utils;
+import com.groksoft.els.repository.CollectionLog;
+import com.groksoft.els.repository.Item;
+import com.groksoft.els.repository.Library;
+import com.groksoft.els.repository.Repository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Cache of the serialized, compressed collection a daemon sends
+ * <p>
+ * The collection is scanned, serialized and compressed once, then sent from
+ * memory to each client that asks. Its SHA-256 is sent as a tag, and a client
+ * whose cached copy has the same tag is told it is not modified.
+ * <p>
+ * The cache is stale once the repository is rescanned, invalidate() is called,
+ * or the modified time of a library source or directory changes as items are
+ * added, removed or renamed in it. Only directories are checked, one call each,
+ * so a file rewritten in place is found by the rescan of an explicit collection
+ * command. A repository kept current by a Watcher is stale when the Watcher
+ * changes it, rewrites included, and is serialized again without a scan.
+ * <p>
+ * A current snapshot is returned without waiting. Rescans are made one at a
+ * time, and each new snapshot is published whole when it is ready.
+ */
+public class CollectionCache
+{
+    private static Map<Repository, CollectionCache> instances = new IdentityHashMap<>();
+
+    private transient Logger logger = LogManager.getLogger("applog");
+    private Repository repo;
+    private final Object scanning = new Object();
+    private volatile Snapshot snapshot = null;
+
+    /**
+     * One serialized collection, not changed once made
+     */
+    public static class Snapshot
+    {
+        private int changes;
+        private List<byte[]> chunks;
+        private long generation;
+        private String hash;
+        private long length;
+        private long started;
+        private Map<String, Long> stamps = Collections.emptyMap();
+
+        /**
+         * Get the collection log generation
+         *
+         * @return long generation, 0 if not versioned
+         */
+        public long getGeneration()
+        {
+            return generation;
+        }
+
+        /**
+         * Get the tag of the content
+         *
+         * @return String SHA-256 hex of the JSON
+         */
+        public String getHash()
+        {
+            return hash;
+        }
+
+        /**
+         * Get the length before compression
+         *
+         * @return long bytes of JSON
+         */
+        public long getLength()
+        {
+            return length;
+        }
+
+        /**
+         * Send as a chunked stream
+         *
+         * @param out    The stty connection
+         * @param cipher SttyCipher of the connection
+         * @throws IOException
+         */
+        public void send(DataOutputStream out, SttyCipher cipher) throws IOException
+        {
+            ChunkedOutputStream.replay(chunks, out, cipher);
+        }
+
+        /**
+         * Get the JSON as one string, for terminal sessions
+         *
+         * @return String JSON
+         * @throws MungerException if a chunk cannot be inflated
+         */
+        public String toJson() throws MungerException
+        {
+            ByteArrayOutputStream json = new ByteArrayOutputStream((int) Math.min(length, Integer.MAX_VALUE));
+            byte[] buffer = new byte[ChunkedOutputStream.CHUNK_SIZE];
+            Inflater inflater = new Inflater();
+            try
+            {
+                for (byte[] chunk : chunks)
+                {
+                    int original = ByteBuffer.wrap(chunk).getInt();
+                    inflater.reset();
+                    inflater.setInput(chunk, 4, chunk.length - 4);
+                    int size = 0;
+                    while (size < original && !inflater.finished())
+                    {
+                        int count = inflater.inflate(buffer, size, original - size);
+                        if (count == 0 && inflater.needsInput())
+                            break;
+                        size += count;
+                    }
+                    json.write(buffer, 0, size);
+                }
+            }
+            catch (DataFormatException e)
+            {
+                throw new MungerException("Cached collection cannot be inflated: " + e.getMessage());
+            }
+            finally
+            {
+                inflater.end();
+            }
+            return new String(json.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private CollectionCache()
+    {
+        // hide default constructor
+    }
+
+    private CollectionCache(Repository repo)
+    {
+        this.repo = repo;
+    }
+
+    /**
+     * Get the cache of a repository
+     *
+     * @param repo The repository served by a daemon
+     * @return CollectionCache of the repository
+     */
+    public static synchronized CollectionCache getInstance(Repository repo)
+    {
+        CollectionCache cache = instances.get(repo);
+        if (cache == null)
+        {
+            cache = new CollectionCache(repo);
+            instances.put(repo, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Get the current collection, rescanned and serialized if stale
+     *
+     * @param versioned Update the CollectionLog when rescanned
+     * @return Snapshot of the collection
+     * @throws MungerException
+     */
+    public Snapshot get(boolean versioned) throws MungerException
+    {
+        return get(versioned, false);
+    }
+
+    /**
+     * Get the collection, rescanned and serialized if stale or asked for
+     * <p>
+     * A repository kept current by a Watcher is not rescanned, only serialized
+     * again if it changed.
+     *
+     * @param versioned Update the CollectionLog when rescanned
+     * @param refresh   Rescan even if the cache looks current, for an explicit collection command
+     * @return Snapshot of the collection
+     * @throws MungerException
+     */
+    public Snapshot get(boolean versioned, boolean refresh) throws MungerException
+    {
+        long requested = System.nanoTime();
+        Snapshot cached = snapshot;
+        if ((!refresh || repo.isWatched()) && isCurrent(cached))
+        {
+            logger.info("Collection is not modified since it was cached");
+            return cached;
+        }
+
+        synchronized (scanning)
+        {
+            // another session may have rescanned while this one waited
+            Snapshot latest = snapshot;
+            if (latest != null && latest != cached &&
+                    ((refresh && !repo.isWatched()) ? latest.started - requested >= 0 : isCurrent(latest)))
+                return latest;
+
+            // a watched repository is already current, only serialize it
+            long started = System.nanoTime();
+            if (!repo.isWatched())
+            {
+                for (Library lib : repo.getLibraryData().libraries.bibliography)
+                {
+                    repo.scan(lib.name);
+                }
+            }
+            int current = repo.getChanges(); // before serializing, a change during it makes this stale
+            long generation = versioned ? CollectionLog.getInstance().update(repo) : 0L;
+            Snapshot made = serialize(generation);
+            made.changes = current;
+            made.started = started;
+            if (!repo.isWatched())
+                made.stamps = stamp();
+            snapshot = made;
+            return made;
+        }
+    }
+
+    /**
+     * Mark the cache stale so the next request rescans
+     */
+    public void invalidate()
+    {
+        snapshot = null;
+    }
+
+    private boolean isCurrent(Snapshot cached)
+    {
+        if (cached == null || cached.changes != repo.getChanges())
+            return false;
+        if (repo.isWatched())
+            return true; // the Watcher counts each change
+        for (Map.Entry<String, Long> entry : cached.stamps.entrySet())
+        {
+            try
+            {
+                if (Files.getLastModifiedTime(Paths.get(entry.getKey())).toMillis() != entry.getValue())
+                    return false;
+            }
+            catch (IOException e)
+            {
+                return false; // removed
+            }
+        }
+        return true;
+    }
+
+    private Snapshot serialize(long generation) throws MungerException
+    {
+        Snapshot made = new Snapshot();
+        made.chunks = new ArrayList<>();
+        made.generation = generation;
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ChunkedOutputStream chunks = new ChunkedOutputStream(made.chunks);
+            Writer writer = new OutputStreamWriter(new DigestOutputStream(chunks, digest), StandardCharsets.UTF_8);
+            repo.exportItems(writer);
+            chunks.finish();
+            made.length = chunks.getTotal();
+            made.hash = Utils.toHex(digest.digest());
+        }
+        catch (IOException | NoSuchAlgorithmException e)
+        {
+            throw new MungerException("Collection cannot be serialized: " + e.getMessage());
+        }
+        made.chunks = Collections.unmodifiableList(made.chunks);
+        logger.info("Cached collection of " + Utils.formatLong(made.length) + " in " + made.chunks.size() + " chunks");
+        return made;
+    }
+
+    /**
+     * Record the modified times of the sources and directories
+     * <p>
+     * Directories use the time of their scan, so a change since is not missed.
+     *
+     * @return Map of path to modified time, -1 if it could not be read
+     */
+    private Map<String, Long> stamp()
+    {
+        Map<String, Long> stamps = new HashMap<>();
+        for (Library lib : repo.getLibraryData().libraries.bibliography)
+        {
+            if (lib.sources != null)
+            {
+                for (String source : lib.sources)
+                {
+                    try
+                    {
+                        stamps.put(source, Files.getLastModifiedTime(Paths.get(source)).toMillis());
+                    }
+                    catch (IOException e)
+                    {
+                        stamps.put(source, -1L);
+                    }
+                }
+            }
+            if (lib.items != null)
+            {
+                for (Item item : lib.items)
+                {
+                    if (item.isDirectory())
+                        stamps.put(item.getFullPath(), item.getModified());
+                }
+            }
+        }
+        return stamps;
+    }
+
+}
@@ -9,12 +9,11 @@ import java.net.*;
 /**
  * Handle individual client connections.
  * 
- * The Connection class is a subclass of Thread. It handles individual
- * connections between a Service and a client user. Each connection has a
- * separate thread. Each Service can have multiple connection requests pending
- * at once.
+ * The Connection class is a Runnable. It handles individual connections
+ * between a Service and a client user. Each connection is run by a worker
+ * thread of the ServeStty, or waits in its queue until one is free.
  */
-public class Connection extends Thread
+public class Connection implements Runnable
 {
 	protected static Logger logger = LogManager.getLogger("applog");//
 
@@ -26,16 +25,14 @@ public class Connection extends Thread
 	/**
 	 * Constructor.
 	 * 
-	 * Connection objects are created by Listener threads as part of the
-	 * server's thread group. The superclass constructor is called to create a
-	 * new thread to handle the connection request.
+	 * Connection objects are created by Listener threads and run by the
+	 * ServeStty worker pool.
 	 * 
 	 * @param aSocket Socket for connection
 	 * @param aService Service for connection
 	 */
 	public Connection (Socket aSocket, DaemonBase aService)
 	{
-		super("Daemon.Connection:" + aSocket.getInetAddress().getHostAddress() + ":" + aSocket.getPort());
 		this.socket = aSocket;
 		this.service = aService;
 	} // constructor
@@ -66,6 +63,8 @@ public class Connection extends Thread
 	 */
 	public void run ()
 	{
+		String name = Thread.currentThread().getName();
+		Thread.currentThread().setName("Daemon.Connection:" + socket.getInetAddress().getHostAddress() + ":" + socket.getPort());
 		try
 		{
 			service.process(socket);
@@ -76,12 +75,13 @@ public class Connection extends Thread
 		}
 		finally
 		{
-			// notify the ConnectionManager that this connection has closed
+			// notify the ServeStty that this connection has closed
 			ServeStty cm = ServeStty.getInstance();
 			if (cm != null)
 			{
-				cm.endConnection();
+				cm.endConnection(this);
 			}
+			Thread.currentThread().setName(name);
 		}
 	}
 } // Connection
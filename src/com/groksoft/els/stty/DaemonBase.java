@@ -25,6 +25,7 @@ public abstract class DaemonBase
     protected Socket socket;
     protected boolean stop = false;
 
+    protected SttyCipher cipher = null;
     protected DataInputStream in = null;
     protected DataOutputStream out = null;
     protected String response = "";
@@ -13,17 +13,16 @@ import java.net.*;
  * Listen for a connection request for a service.
  * 
  * The Listener class is a subclass of Thread. It listens for connections
- * on a specified port. When a connection is requested it is handled by the
- * ConnectionManager. There is one Listener for each service on a specified
- * port.
+ * on a specified port. When a connection is requested it is handed to the
+ * ServeStty. There is one Listener for each service on a specified port.
  * 
  */
 public class Listener extends Thread
 {
 	protected static Logger logger = LogManager.getLogger("applog");//
 
-	/** The default timeout for socket connections, in milliseconds */
-	protected static final int socketTimeout = 2000;
+	/** Connection requests the operating system holds until accepted */
+	protected static final int backlog = 50;
 
 	/** The socket to listen on for the associated service */
 	private ServerSocket listenSocket;
@@ -38,8 +37,8 @@ public class Listener extends Thread
 	/**
 	 * Setup a new Listener on a specified port.
 	 * 
-	 * The socket is set with a timeout to allow accept() to be interrupted, and
-	 * the service to be removed from the server.
+	 * accept() blocks until a request arrives; requestStop() closes the
+	 * socket to end it.
 	 * 
 	 * @param group The thread group used for the listener.
 	 * @param aPort The port to listen on.
@@ -53,10 +52,7 @@ public class Listener extends Thread
 		this.port = aPort;
 		addr = Inet4Address.getByName(host);
 
-		listenSocket = new ServerSocket(this.port, 5, addr);
-
-		// set a non-zero timeout on the socket so accept() may be interrupted
-		listenSocket.setSoTimeout(socketTimeout);
+		listenSocket = new ServerSocket(this.port, backlog, addr);
 	} // constructor
 
     public String getInetAddr()
@@ -71,7 +67,14 @@ public class Listener extends Thread
 	public void requestStop ()
 	{
 		this.stop = true;
-		this.interrupt();
+		try
+		{
+			listenSocket.close();
+		}
+		catch (IOException e)
+		{
+			logger.info(e);
+		}
 	}
 
 	/**
@@ -94,18 +97,10 @@ public class Listener extends Thread
 
 				ServeStty.getInstance().addConnection(theSocket);
 			}
-			catch (SocketTimeoutException e)
-			{
-				//logger.info("Listen accept timeout on port " + port + ", stop=" + ((stop)?"true, stopping":"false, continuing"));
-				continue;
-			}
-			catch (InterruptedIOException e)
-			{
-				logger.info("listener interrupted on port " + port + ", stop=" + ((stop)?"true":"false"));
-			}
 			catch (IOException e)
 			{
-				logger.error(e);
+				if (!stop)
+					logger.error(e);
 				stop = true;
 			}
 			catch (MungerException e)
@@ -11,46 +11,48 @@ import org.apache.logging.log4j.Logger;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manage all connections and enforce limits.
  * <p>
- * The ServeStty class is a subclass of Thread. It keeps a list of all
- * connections, and enforces the maximum connection limit.
+ * There is one ServeStty for the entire server. Connections accepted by a
+ * Listener are handed to a pool of up to maxConnections worker threads. When
+ * all are busy up to maxConnections more wait in the pool's queue, in the order
+ * they arrived, and are served as earlier ones close. Beyond that a connection
+ * is refused with a message, as before, rather than left waiting for a
+ * handshake that may not come before the client gives up.
  * <p>
- * Each connection uses a separate thread.
- * <p>
- * There is one ServeStty for the entire server.
- * <p>
- * The ServeStty uses another thread to remove dead connections from the
- * allConnections list.
+ * Live connections are tracked in a concurrent set so accepting, ending and
+ * listing connections never contend for a lock.
  */
-public class ServeStty extends Thread
+public class ServeStty
 {
     private transient Logger logger = LogManager.getLogger("applog");
 
     /**
-     * The list of all service connections
+     * The set of all live service connections
      */
-    private Vector<Connection> allConnections;
+    private Set<Connection> allConnections;
     /**
      * The single instance of this class
      */
     private static ServeStty instance = null;
     /**
-     * The maximum connections allowed for this entire server instance
+     * The maximum connections served at once for this entire server instance
      */
     protected int maxConnections;
     /**
      * Count of total connections since started
      */
-    private int totalConnections = 0;
+    private AtomicInteger totalConnections = new AtomicInteger(0);
     /**
-     * Flag used to determine when to stop listening
+     * Worker threads serving connections, up to as many more are queued
      */
-    private boolean _stop = false;
+    private ThreadPoolExecutor workers;
 
-    private Hashtable<String, Listener> allSessions;
+    private Map<String, Listener> allSessions;
     private ThreadGroup allSessionThreads;
 
     private Configuration cfg;
@@ -59,79 +61,82 @@ public class ServeStty extends Thread
     private boolean primaryServers;
 
     /**
-     * Instantiates the ServeStty object and set it as a daemon so the Java
-     * Virtual Machine does not wait for it to exit.
+     * Instantiates the ServeStty object with a pool of up to aMaxConnections
+     * worker threads in the specified thread group.
      */
     public ServeStty(ThreadGroup aGroup, int aMaxConnections, Configuration config, Main.Context ctxt, boolean primaryServers)
     {
-        // instantiate this object in the specified thread group to
-        // enforce the specified maximum connections limitation.
-        super(aGroup, "ServeStty");
         instance = this;
         instance.cfg = config;
         instance.context = ctxt;
         instance.primaryServers = primaryServers;
 
-        // make it a daemon so the JVM does not wait for it to exit
-        this.setDaemon(true);
-        this.setMaxConnections(aMaxConnections);
-        this.allConnections = new Vector<Connection>();
-        this.allSessions = new Hashtable<String, Listener>();
+        this.allConnections = ConcurrentHashMap.newKeySet();
+        this.allSessions = new ConcurrentHashMap<String, Listener>();
         this.allSessionThreads = aGroup;
+        this.workers = new ThreadPoolExecutor(aMaxConnections, aMaxConnections, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(aMaxConnections), runnable -> new Thread(allSessionThreads, runnable, "Daemon.Connection"));
+        this.workers.allowCoreThreadTimeOut(true);
+        this.setMaxConnections(aMaxConnections);
     } // constructor
 
     /**
      * Add a connection for a service.
      * <p>
-     * Responds to a connection request. The maximum connection limit is
-     * checked. If the limit has not been exceeded the new connection is added
-     * to allConnections, and a thread is started to service the request.
+     * Responds to a connection request. A connection is created and handed
+     * to the worker pool, where it is served at once if fewer than the maximum
+     * connections are busy, otherwise when one closes. If the queue is full too
+     * the connection is refused.
      */
-    public synchronized void addConnection(Socket aSocket) throws MungerException
+    public void addConnection(Socket aSocket) throws MungerException
     {
-        // check for maximum connections
-        if (allConnections.size() >= maxConnections)
+        // create a connection for this request
+        Connection theConnection;
+        if (cfg.isPublisherListener())
         {
-            // maximum connections exceeded - try to tell user
-            try
-            {
-                PrintWriter clientOut = new PrintWriter(aSocket.getOutputStream());
-                clientOut.println("Connection request denied; maximum users exceeded");
-                clientOut.flush();
+            theConnection = new Connection(aSocket, new com.groksoft.els.stty.publisher.Daemon(cfg, context, context.publisherRepo, context.subscriberRepo));
+        } else if (cfg.isSubscriberListener() || cfg.isSubscriberTerminal())
+        {
+            theConnection = new Connection(aSocket, new com.groksoft.els.stty.subscriber.Daemon(cfg, context, context.subscriberRepo, context.publisherRepo));
+        } else
+        {
+            throw new MungerException("FATAL: Unknown connection type");
+        }
+        allConnections.add(theConnection);
+        totalConnections.incrementAndGet();
 
-                // log it
-                logger.info("Maximum connections (" + maxConnections + ") exceeded");
-                logger.info("Connection refused from " + aSocket.getInetAddress().getHostAddress() + ":" + aSocket.getPort());
+        boolean queued = allConnections.size() > maxConnections;
+        try
+        {
+            workers.execute(theConnection);
 
-                // close the connection
-                aSocket.close();
-            } catch (IOException e)
-            {
-                logger.info(e);
-            }
-        } else
-        // if limit has not been reached
+            // log it
+            logger.info((cfg.isPublisherListener() ? "Publisher" : "Subscriber") + " daemon " + (queued ? "queued " : "opened ") +
+                    aSocket.getInetAddress().getHostAddress() + ":" + aSocket.getPort() + (queued ? ", " + maxConnections + " connections are busy" : ""));
+        }
+        catch (RejectedExecutionException e)
         {
-            // create a connection thread for this request
-            Connection theConnection;
-            if (cfg.isPublisherListener())
-            {
-                theConnection = new Connection(aSocket, new com.groksoft.els.stty.publisher.Daemon(cfg, context, context.publisherRepo, context.subscriberRepo));
-            } else if (cfg.isSubscriberListener() || cfg.isSubscriberTerminal())
+            allConnections.remove(theConnection);
+            try
             {
-                theConnection = new Connection(aSocket, new com.groksoft.els.stty.subscriber.Daemon(cfg, context, context.subscriberRepo, context.publisherRepo));
-            } else
+                if (workers.isShutdown())
+                {
+                    logger.info("Connection refused from " + aSocket.getInetAddress().getHostAddress() + ":" + aSocket.getPort() + ", server is stopping");
+                }
+                else
+                {
+                    // maximum connections and queue exceeded - try to tell user
+                    PrintWriter clientOut = new PrintWriter(aSocket.getOutputStream());
+                    clientOut.println("Connection request denied; maximum users exceeded");
+                    clientOut.flush();
+                    logger.info("Maximum connections (" + maxConnections + ") and waiting connections exceeded");
+                    logger.info("Connection refused from " + aSocket.getInetAddress().getHostAddress() + ":" + aSocket.getPort());
+                }
+                aSocket.close();
+            } catch (IOException ioe)
             {
-                throw new MungerException("FATAL: Unknown connection type");
+                logger.info(ioe);
             }
-            allConnections.add(theConnection);
-
-            // log it
-            logger.info((cfg.isPublisherListener() ? "Publisher" : "Subscriber") + " daemon opened " + aSocket.getInetAddress().getHostAddress() + ":" + aSocket.getPort());
-
-            // start the connection thread
-            theConnection.start();
-            ++totalConnections;
         }
     }
 
@@ -155,16 +160,16 @@ public class ServeStty extends Thread
     /**
      * End a client connection.
      * <p>
-     * Notifies the ServeStty that this connection has been closed. Called
-     * from the run() method of the Connection thread created by addConnection()
-     * when the connection is closed for any reason.
+     * Removes the connection from the live set. Called from the run() method
+     * of the Connection when it is closed for any reason.
      *
      * @see Connection
      */
-    public synchronized void endConnection()
+    public void endConnection(Connection aConnection)
     {
-        // notify the ServeStty thread that this connection has closed
-        this.notify();
+        if (allConnections.remove(aConnection))
+            logger.info(aConnection.service.getName() + " closed " + aConnection.socket.getInetAddress().getHostAddress() + ":" +
+                    aConnection.socket.getPort() + " port " + aConnection.socket.getLocalPort());
     }
 
     /**
@@ -176,95 +181,73 @@ public class ServeStty extends Thread
     }
 
     /**
-     * Get the connections Vector
+     * Get the live connections, including any waiting to be served
      */
-    public Vector getAllConnections()
+    public Set<Connection> getAllConnections()
     {
         return this.allConnections;
     }
 
     /**
-     * Set or change the maximum number of connections allowed for this server.
+     * Is the calling connection the only one live or waiting
+     *
+     * @return true if no other connection remains
      */
-    public synchronized void setMaxConnections(int aMax)
+    public boolean isLastConnection()
+    {
+        return allConnections.size() <= 1;
+    }
+
+    /**
+     * Set or change the maximum number of connections served at once.
+     */
+    public void setMaxConnections(int aMax)
     {
         maxConnections = aMax;
+        if (aMax > workers.getMaximumPoolSize())
+        {
+            workers.setMaximumPoolSize(aMax);
+            workers.setCorePoolSize(aMax);
+        } else
+        {
+            workers.setCorePoolSize(aMax);
+            workers.setMaximumPoolSize(aMax);
+        }
     }
 
     /**
      * Dump statistics of connections.
      */
-    public synchronized String dumpStatistics()
+    public String dumpStatistics()
     {
         String data = "Listening on: " + listenPort + "\r\n" +
-                "Active connections: " + allConnections.size() + "\r\n";
-        for (int index = 0; index < allConnections.size(); ++index)
+                "Active connections: " + workers.getActiveCount() + "\r\n";
+        for (Connection c : allConnections)
         {
-            Connection c = (Connection) allConnections.elementAt(index);
             data += "  " + c.service.getName() + " to " + c.socket.getInetAddress().getHostAddress() + ":" + c.socket.getPort() + "\r\n";
         }
 
         // dump connection counts
-        data += "  Total connections since started: " + totalConnections + "\r\n";
-        data += "  Maximum allowed connections: " + maxConnections + "\r\n";
+        data += "  Waiting connections: " + workers.getQueue().size() + "\r\n";
+        data += "  Total connections since started: " + totalConnections.get() + "\r\n";
+        data += "  Maximum connections served at once: " + maxConnections + "\r\n";
 
         return data;
     }
 
     /**
-     * Politely request the listener to stop.
+     * Politely request the server to stop.
+     * <p>
+     * Live connections are asked to stop and the worker pool is shutdown.
      */
     public void requestStop()
     {
-        this._stop = true;
-        for (int index = 0; index < allConnections.size(); ++index)
+        for (Connection c : allConnections)
         {
             // stop live connections
-            Connection c = (Connection) allConnections.elementAt(index);
-            if (c.isAlive())
-            {
-                c.getConsole().requestStop();
-            }
+            c.getConsole().requestStop();
         }
-        this.interrupt();
-    }
-
-    /**
-     * Thread used to clean-up dead connections.
-     * <p>
-     * Waits to be notified of a closed connection via a call to the
-     * endConnection() method, then scans all current connections for any that
-     * are dead. Each dead connection is removed from the allConnections list.
-     */
-    public void run()
-    {
-        // log it
-        logger.info("Starting ServeStty server for up to " + maxConnections + " incoming connections");
-        while (_stop == false)
-        {
-            for (int index = 0; index < allConnections.size(); ++index)
-            {
-                // remove dead connections
-                Connection c = (Connection) allConnections.elementAt(index);
-                if (!c.isAlive())
-                {
-                    allConnections.removeElementAt(index);
-                    logger.info(c.service.getName() + " closed " + c.socket.getInetAddress().getHostAddress() + ":" + c.socket.getPort() + " port " + c.socket.getLocalPort());
-                }
-            }
-
-            // wait for notify of closed connection
-            try
-            {
-                synchronized (this)
-                {
-                    this.wait();
-                }
-            } catch (InterruptedException e)
-            {
-                logger.info("ServeStty interrupted, stop=" + ((_stop) ? "true" : "false"));
-            }
-        } // while (true)
+        workers.shutdown();
         logger.info("Stopped ServeStty");
     }
 
@@ -300,7 +283,7 @@ public class ServeStty extends Thread
         listenPort = Utils.getPort(listen) + ((primaryServers) ? 0 : 2);
         if (listenPort > 0)
         {
-            this.start();
+            logger.info("Starting ServeStty server for " + maxConnections + " connections at once, as many more are queued");
             addListener(host, listenPort);
         }
         if (listenPort < 1)
@@ -314,19 +297,11 @@ public class ServeStty extends Thread
         if (allSessions != null)
         {
             logger.info("Stopping all Sessions");
-            Enumeration keys = allSessions.keys();
-            while (keys.hasMoreElements())
+            for (Listener listener : allSessions.values())
             {
-                //Integer port = (Integer)keys.nextElement();
-                Connection conn = (Connection) keys.nextElement();
-                Socket sock = conn.getSocket();
-                Integer port = sock.getPort();
-                Listener listener = (Listener) allSessions.get(port);
-                if (listener != null)
-                {
-                    listener.requestStop();
-                }
+                listener.requestStop();
             }
+            allSessions.clear();
             this.requestStop();
         } else
         {
@@ -0,0 +1,140 @@
+package com.groksoft.els.stty;
+
+import com.groksoft.els.Configuration;
+import com.groksoft.els.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Loopback stty message benchmark
+ * <p>
+ * Opens an stty connection to an echo thread on this system and logs how many
+ * messages per second Utils.write and Utils.read carry for a few message sizes,
+ * as round trips and as a one-way stream, after an unmeasured warm-up.
+ */
+public class SttyBenchmark
+{
+    public static final int MESSAGES = 20000;
+    public static final int[] SIZES = {64, 1024, 16384};
+
+    private transient Logger logger = LogManager.getLogger("applog");
+
+    /**
+     * Run the benchmark on its own, without Main
+     * <p>
+     * Logging is set up as Main does with the default log file, results to the console.
+     *
+     * @param args Not used
+     */
+    public static void main(String[] args)
+    {
+        Configuration cfg = new Configuration();
+        System.setProperty("logFilename", cfg.getLogFilename());
+        System.setProperty("consoleLevel", "info");
+        System.setProperty("debugLevel", cfg.getDebugLevel());
+        System.setProperty("pattern", cfg.getPattern());
+        new SttyBenchmark().run();
+    }
+
+    /**
+     * Run the benchmark
+     */
+    public void run()
+    {
+        String key = UUID.randomUUID().toString();
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress()))
+        {
+            Thread echo = new Thread(() -> echo(listener, key), "stty.benchmark");
+            echo.setDaemon(true);
+            echo.start();
+
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort()))
+            {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                SttyCipher cipher = SttyCipher.connect(in, out, key);
+                logger.info(String.format("Loopback benchmark of stty messages, %,d of each size", MESSAGES));
+
+                // warm up the JIT so the first size is not penalized
+                measure(in, out, cipher, SIZES[0], true);
+                measure(in, out, cipher, SIZES[0], false);
+
+                for (int size : SIZES)
+                {
+                    double trips = measure(in, out, cipher, size, true);
+                    double oneWay = measure(in, out, cipher, size, false);
+                    logger.info(String.format("  %6d bytes  %10.0f round trips/s  %10.0f messages/s one way", size, trips, oneWay));
+                }
+                Utils.write(out, cipher, "quit");
+            }
+        }
+        catch (Exception e)
+        {
+            logger.error("Loopback stty benchmark failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answer each message, or only the last of a one-way stream marked by "sync"
+     */
+    private void echo(ServerSocket listener, String key)
+    {
+        try (Socket socket = listener.accept())
+        {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            SttyCipher cipher = SttyCipher.accept(in, out, key);
+            while (true)
+            {
+                String message = Utils.read(in, cipher);
+                if (message == null || message.equals("quit"))
+                    break;
+                if (message.startsWith("sync") || message.startsWith("trip"))
+                    Utils.write(out, cipher, "ok");
+            }
+        }
+        catch (Exception e)
+        {
+            logger.error("Loopback stty echo failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Measure one message size
+     *
+     * @return double messages per second
+     */
+    private double measure(DataInputStream in, DataOutputStream out, SttyCipher cipher, int size, boolean roundTrip) throws Exception
+    {
+        char[] fill = new char[size - 4];
+        Arrays.fill(fill, 'x');
+        String message = (roundTrip ? "trip" : "data") + new String(fill);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; ++i)
+        {
+            Utils.write(out, cipher, message);
+            if (roundTrip)
+                Utils.read(in, cipher);
+        }
+        if (!roundTrip)
+        {
+            Utils.write(out, cipher, "sync");
+            Utils.read(in, cipher);
+        }
+        return MESSAGES / ((System.nanoTime() - start) / 1000000000.0);
+    }
+
+}
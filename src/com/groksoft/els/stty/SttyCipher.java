@@ -0,0 +1,246 @@
+package com.groksoft.els.stty;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * AES-GCM cipher state of one stty connection
+ * <p>
+ * When a connection opens the server sends a random nonce in the clear and the
+ * client answers with its own. An AES key for each direction is derived once
+ * from the server's libraries.key UUID and both nonces, so no two sessions
+ * share keys. Every frame is an int of its sealed length then the sealed bytes,
+ * with a counter as the GCM nonce, so a frame that is altered, replayed or
+ * sealed with another key fails to open. A message larger than MAXIMUM_FRAME
+ * is split into frames, each but the last written with a negative length and
+ * sealed with a flag in the nonce, so the split cannot be altered either.
+ * <p>
+ * Each direction has its own Cipher and buffers, reused for every frame, so
+ * one thread may read while another writes.
+ */
+public class SttyCipher
+{
+    public static final int MAXIMUM_FRAME = 64 * 1024 * 1024;
+    public static final int TAG_SIZE = 16;
+
+    private static final int MAGIC = 0x454c5353; // ELSS
+    private static final int NONCE_SIZE = 16;
+    private static final int VERSION = 1;
+
+    private Direction reader;
+    private Direction writer;
+
+    /**
+     * The cipher, key, counter and buffers of one direction
+     */
+    private static class Direction
+    {
+        byte[] buffer = new byte[4096];
+        Cipher cipher;
+        long count = 0L;
+        byte[] frame = new byte[4096];
+        byte[] iv = new byte[12];
+        SecretKeySpec key;
+        int mode;
+
+        Direction(int mode, byte[] key) throws IOException
+        {
+            this.mode = mode;
+            this.key = new SecretKeySpec(key, 0, 16, "AES");
+            try
+            {
+                cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IOException("AES/GCM is not available: " + e.getMessage());
+            }
+        }
+
+        int crypt(byte[] data, int offset, int length, boolean more) throws IOException
+        {
+            iv[0] = (byte) (more ? 1 : 0);
+            for (int i = 0; i < 8; ++i)
+                iv[4 + i] = (byte) (count >>> (56 - (i * 8)));
+            ++count;
+            try
+            {
+                cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, iv));
+                int size = cipher.getOutputSize(length);
+                if (size > buffer.length)
+                    buffer = new byte[Math.max(size, buffer.length * 2)];
+                return cipher.doFinal(data, offset, length, buffer, 0);
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IOException("stty frame " + (count - 1) + (mode == Cipher.DECRYPT_MODE ? " failed authentication: " : " could not be sealed: ") + e.getMessage());
+            }
+        }
+    }
+
+    private SttyCipher()
+    {
+        // hide default constructor
+    }
+
+    private SttyCipher(byte[] readKey, byte[] writeKey) throws IOException
+    {
+        reader = new Direction(Cipher.DECRYPT_MODE, readKey);
+        writer = new Direction(Cipher.ENCRYPT_MODE, writeKey);
+    }
+
+    /**
+     * Start the cipher of a connection accepted by an stty server
+     *
+     * @param in  The connection input
+     * @param out The connection output
+     * @param key The libraries.key UUID of this server
+     * @return SttyCipher for the connection
+     * @throws IOException if the client is not a compatible ELS
+     */
+    public static SttyCipher accept(DataInputStream in, DataOutputStream out, String key) throws IOException
+    {
+        byte[] serverNonce = random();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.write(serverNonce);
+        out.flush();
+
+        byte[] clientNonce = new byte[NONCE_SIZE];
+        in.readFully(clientNonce);
+        return new SttyCipher(derive(key, "client to server", serverNonce, clientNonce), derive(key, "server to client", serverNonce, clientNonce));
+    }
+
+    /**
+     * Start the cipher of a connection to an stty server
+     *
+     * @param in  The connection input
+     * @param out The connection output
+     * @param key The libraries.key UUID of the server
+     * @return SttyCipher for the connection
+     * @throws IOException if the server is not a compatible ELS
+     */
+    public static SttyCipher connect(DataInputStream in, DataOutputStream out, String key) throws IOException
+    {
+        int magic = in.readInt();
+        if (magic != MAGIC)
+        {
+            // a server refusing a connection says why in a line of text
+            StringBuilder text = new StringBuilder();
+            for (int i = 24; i >= 0; i -= 8)
+                text.append((char) ((magic >>> i) & 0xff));
+            int c;
+            while (text.length() < 200 && (c = in.read()) >= 0 && c != '\n')
+                text.append((char) c);
+            if (text.toString().startsWith("Connection request denied"))
+                throw new IOException(text.toString().trim());
+            throw new IOException("stty server is not a compatible ELS");
+        }
+        if (in.readInt() != VERSION)
+            throw new IOException("stty server is not a compatible ELS");
+        byte[] serverNonce = new byte[NONCE_SIZE];
+        in.readFully(serverNonce);
+
+        byte[] clientNonce = random();
+        out.write(clientNonce);
+        out.flush();
+        return new SttyCipher(derive(key, "server to client", serverNonce, clientNonce), derive(key, "client to server", serverNonce, clientNonce));
+    }
+
+    private static byte[] derive(String key, String label, byte[] serverNonce, byte[] clientNonce) throws IOException
+    {
+        try
+        {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            mac.update(label.getBytes(StandardCharsets.UTF_8));
+            mac.update(serverNonce);
+            mac.update(clientNonce);
+            return mac.doFinal();
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IOException("HmacSHA256 is not available: " + e.getMessage());
+        }
+    }
+
+    private static byte[] random()
+    {
+        byte[] nonce = new byte[NONCE_SIZE];
+        new SecureRandom().nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * Read and open a frame whose length has been read
+     * <p>
+     * The returned buffer is reused by the next read.
+     *
+     * @param in     The connection input
+     * @param length The sealed length of the frame, negative if the message continues in the next frame
+     * @return ByteBuffer of the opened data
+     * @throws IOException if the frame cannot be read or fails authentication
+     */
+    public ByteBuffer read(DataInputStream in, int length) throws IOException
+    {
+        synchronized (reader)
+        {
+            boolean more = (length < 0);
+            if (more)
+                length = -length;
+            if (length < TAG_SIZE || length > MAXIMUM_FRAME)
+                throw new IOException("stty frame of " + length + " bytes is not valid");
+            if (length > reader.frame.length)
+                reader.frame = new byte[Math.max(length, reader.frame.length * 2)];
+            in.readFully(reader.frame, 0, length);
+            int size = reader.crypt(reader.frame, 0, length, more);
+            return ByteBuffer.wrap(reader.buffer, 0, size);
+        }
+    }
+
+    /**
+     * Seal and write a frame, the caller flushes
+     *
+     * @param out    The connection output
+     * @param data   The data
+     * @param offset Start of the data
+     * @param length Bytes of data
+     * @throws IOException if the frame cannot be sealed or written
+     */
+    public void write(DataOutputStream out, byte[] data, int offset, int length) throws IOException
+    {
+        write(out, data, offset, length, false);
+    }
+
+    /**
+     * Seal and write a frame, the caller flushes
+     *
+     * @param out    The connection output
+     * @param data   The data
+     * @param offset Start of the data
+     * @param length Bytes of data
+     * @param more   True if the message continues in the next frame
+     * @throws IOException if the frame cannot be sealed or written
+     */
+    public void write(DataOutputStream out, byte[] data, int offset, int length, boolean more) throws IOException
+    {
+        synchronized (writer)
+        {
+            if (length + TAG_SIZE > MAXIMUM_FRAME)
+                throw new IOException("stty frame of " + length + " bytes is too large");
+            int size = writer.crypt(data, offset, length, more);
+            out.writeInt(more ? -size : size);
+            out.write(writer.buffer, 0, size);
+        }
+    }
+
+}
@@ -4,6 +4,7 @@ import com.groksoft.els.Configuration;
 import com.groksoft.els.Utils;
 import com.groksoft.els.repository.Repository;
 import com.groksoft.els.stty.ClientStty;
+import com.groksoft.els.stty.SttyCipher;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -21,6 +22,7 @@ public class TerminalGui implements WindowListener, ActionListener
     Configuration cfg = null;
     JTextField commandField;
     JFrame frame;
+    SttyCipher cipher = null;
     DataInputStream in = null;
     DataOutputStream out = null;
     JScrollPane scroll;
@@ -30,8 +32,9 @@ public class TerminalGui implements WindowListener, ActionListener
     private Repository myRepo;
     private Repository theirRepo;
 
-    public TerminalGui(ClientStty clientStty, Configuration cfg, DataInputStream in, DataOutputStream out)
+    public TerminalGui(ClientStty clientStty, Configuration cfg, DataInputStream in, DataOutputStream out, SttyCipher cipher)
     {
+        this.cipher = cipher;
         this.terminal = clientStty;
         this.cfg = cfg;
         this.in = in;
@@ -171,7 +174,7 @@ public class TerminalGui implements WindowListener, ActionListener
 
     public String receive() throws Exception
     {
-        String response = Utils.read(in, theirRepo.getLibraryData().libraries.key);
+        String response = Utils.read(in, cipher);
         textArea.append(response);
         return response;
     }
@@ -205,7 +208,7 @@ public class TerminalGui implements WindowListener, ActionListener
     public int send(String command) throws Exception
     {
         textArea.append(command + "\r\n");
-        Utils.write(out, theirRepo.getLibraryData().libraries.key, command);
+        Utils.write(out, cipher, command);
         return 0;
     }
 
@@ -2,13 +2,16 @@ package com.groksoft.els.stty.publisher;
 
 import com.groksoft.els.*;
 import com.groksoft.els.Process;
+import com.groksoft.els.bulk.ClientBulk;
 import com.groksoft.els.repository.Item;
 import com.groksoft.els.repository.Library;
 import com.groksoft.els.repository.Repository;
 import com.groksoft.els.sftp.ClientSftp;
 import com.groksoft.els.stty.ClientStty;
+import com.groksoft.els.stty.CollectionCache;
 import com.groksoft.els.stty.DaemonBase;
 import com.groksoft.els.stty.ServeStty;
+import com.groksoft.els.stty.SttyCipher;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -18,9 +21,8 @@ import java.io.IOException;
 import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
 
 /**
@@ -32,12 +34,16 @@ import java.util.StringTokenizer;
 @SuppressWarnings("Duplicates")
 public class Daemon extends DaemonBase
 {
+    public static final int PAGE_SIZE = 100;
+
     protected static Logger logger = LogManager.getLogger("applog");
 
     private Main.Context context;
     private boolean fault = false;
     private boolean isTerminal = false;
     private Process process; // munge process for get command
+    private List<Item> results; // of the last find, shown a page at a time
+    private int resultsPosition = 0;
 
     /**
      * Instantiate the Daemon service
@@ -77,19 +83,20 @@ public class Daemon extends DaemonBase
         boolean valid = false;
         try
         {
-            Utils.write(out, myKey, "HELO");
+            cipher = SttyCipher.accept(in, out, myKey);
+            Utils.write(out, cipher, "HELO");
 
-            String input = Utils.read(in, myKey);
+            String input = Utils.read(in, cipher);
             if (input.equals("DribNit") || input.equals("DribNlt"))
             {
                 isTerminal = input.equals("DribNit");
-                Utils.write(out, myKey, myKey);
+                Utils.write(out, cipher, myKey);
 
-                input = Utils.read(in, myKey);
+                input = Utils.read(in, cipher);
                 if (input.equals(theirKey))
                 {
                     // send my flavor
-                    Utils.write(out, myKey, myRepo.getLibraryData().libraries.flavor);
+                    Utils.write(out, cipher, myRepo.getLibraryData().libraries.flavor);
 
                     logger.info("Authenticated " + (isTerminal ? "terminal" : "automated") + " session: " + theirRepo.getLibraryData().libraries.description);
                     valid = true;
@@ -124,6 +131,10 @@ public class Daemon extends DaemonBase
         // for get command
         long totalSize = 0L;
         ArrayList<Item> group = new ArrayList<>();
+
+        // for find and more commands
+        results = new ArrayList<>();
+        resultsPosition = 0;
         process = new Process(cfg, context); // munge process for get command
 
         // setup i/o
@@ -171,12 +182,12 @@ public class Daemon extends DaemonBase
                 // prompt the user for a command
                 if (!tout)
                 {
-                    Utils.write(out, myKey, response + (isTerminal ? prompt : ""));
+                    Utils.write(out, cipher, response + (isTerminal ? prompt : ""));
                 }
                 tout = false;
                 response = "";
 
-                line = Utils.read(in, myKey);
+                line = Utils.read(in, cipher);
                 if (line == null)
                 {
                     logger.info("EOF line");
@@ -230,22 +241,7 @@ public class Daemon extends DaemonBase
                 {
                     try
                     {
-                        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
-                        LocalDateTime now = LocalDateTime.now();
-                        String stamp = dtf.format(now);
-
-                        String location = myRepo.getJsonFilename() + "_collection-generated-" + stamp + ".json";
-                        cfg.setExportCollectionFilename(location);
-
-                        for (Library subLib : myRepo.getLibraryData().libraries.bibliography)
-                        {
-                            myRepo.scan(subLib.name);
-                        }
-
-                        // otherwise it must be -S so do not scan
-                        myRepo.exportItems();
-
-                        response = new String(Files.readAllBytes(Paths.get(location)));
+                        response = CollectionCache.getInstance(myRepo).get(false, true).toJson();
                     }
                     catch (MungerException e)
                     {
@@ -263,36 +259,33 @@ public class Daemon extends DaemonBase
                     }
                     else
                     {
+                        results = new ArrayList<>();
+                        resultsPosition = 0;
                         if (t.hasMoreTokens())
                         {
                             String find = remainingTokens(t);
-                            find = find.toLowerCase();
                             logger.info("find: " + find);
-                            for (Library subLib : myRepo.getLibraryData().libraries.bibliography)
-                            {
-                                boolean titled = false;
-                                if (subLib.items == null)
-                                {
-                                    myRepo.scan(subLib.name);
-                                }
-                                for (Item item : subLib.items)
-                                {
-                                    if (item.getItemPath().toLowerCase().contains(find))
-                                    {
-                                        if (!titled)
-                                        {
-                                            response += "  In library: " + subLib.name + "\r\n";
-                                            titled = true;
-                                        }
-                                        response += "    " + item.getItemPath() + "\r\n";
-                                    }
-                                }
-                            }
-                        }
-                        if (response.length() < 1)
-                        {
-                            response = "No results found, try collection command if refresh is needed\r\n";
+                            results = search(find);
                         }
+                        response = nextPage();
+                    }
+                    continue;
+                }
+
+                // -------------- more --------------------------------------
+                if (theCommand.equalsIgnoreCase("more"))
+                {
+                    if (!authorized)
+                    {
+                        response = "not authorized\r\n";
+                    }
+                    else if (resultsPosition >= results.size())
+                    {
+                        response = "No more results\r\n";
+                    }
+                    else
+                    {
+                        response = nextPage();
                     }
                     continue;
                 }
@@ -307,53 +300,44 @@ public class Daemon extends DaemonBase
                     else
                     {
                         boolean found = false;
+                        StringBuilder listing = new StringBuilder();
                         if (t.hasMoreTokens())
                         {
                             String find = remainingTokens(t);
-                            find = find.toLowerCase();
                             logger.info("get: " + find);
-                            for (Library subLib : myRepo.getLibraryData().libraries.bibliography)
+                            String library = null;
+                            for (Item item : search(find))
                             {
-                                boolean titled = false;
-                                if (subLib.items == null)
+                                if (myRepo.ignore(item))
                                 {
-                                    myRepo.scan(subLib.name);
+                                    listing.append("  ! Ignoring '").append(item.getItemPath()).append("'\r\n");
+                                    continue;
                                 }
-                                for (Item item : subLib.items)
+                                if (!item.isDirectory())
                                 {
-                                    if (myRepo.ignore(item))
+                                    if (!item.getLibrary().equals(library))
+                                    {
+                                        library = item.getLibrary();
+                                        listing.append("  In library: ").append(library).append("\r\n");
+                                    }
+                                    listing.append("    ").append(item.getItemPath()).append("\r\n");
+                                    if (item.getSize() < 0)
                                     {
-                                        response += "  ! Ignoring '" + item.getItemPath() + "'\r\n";
-                                        continue;
+                                        logger.warn("File size was < 0 during get command, getting");
+                                        size = Files.size(Paths.get(item.getFullPath()));
+                                        item.setSize(size);
+                                        totalSize += size;
                                     }
-                                    if (item.getItemPath().toLowerCase().contains(find))
+                                    else
                                     {
-                                        if (!item.isDirectory())
-                                        {
-                                            if (!titled)
-                                            {
-                                                response += "  In library: " + subLib.name + "\r\n";
-                                                titled = true;
-                                            }
-                                            response += "    " + item.getItemPath() + "\r\n";
-                                            if (item.getSize() < 0)
-                                            {
-                                                logger.warn("File size was < 0 during get command, getting");
-                                                size = Files.size(Paths.get(item.getFullPath()));
-                                                item.setSize(size);
-                                                totalSize += size;
-                                            }
-                                            else
-                                            {
-                                                totalSize += item.getSize();
-                                            }
-                                            group.add(item);
-                                            found = true;
-                                        }
+                                        totalSize += item.getSize();
                                     }
+                                    group.add(item);
+                                    found = true;
                                 }
                             }
                         }
+                        response = listing.toString();
                         if (!found)
                         {
                             response += "No results found, try collection command if refresh is needed\r\n";
@@ -363,9 +347,9 @@ public class Daemon extends DaemonBase
                             response += "  Total size: ";
                             response += Utils.formatLong(totalSize) + "\r\n";
                             response += "Copy listed items (y/N)? ";
-                            Utils.write(out, myKey, response);
+                            Utils.write(out, cipher, response);
 
-                            line = Utils.read(in, myKey);
+                            line = Utils.read(in, cipher);
                             if (line == null)
                             {
                                 logger.info("EOF line");
@@ -378,12 +362,20 @@ public class Daemon extends DaemonBase
                                 if (context.clientStty == null)
                                 {
                                     // start the serveSftp client
-                                    context.clientSftp = new ClientSftp(myRepo, theirRepo, false);
+                                    context.clientSftp = new ClientSftp(cfg, context, myRepo, theirRepo, false);
                                     if (!context.clientSftp.startClient())
                                     {
                                         throw new MungerException("Publisher sftp client failed to connect");
                                     }
 
+                                    // start the bulk client if selected, sftp is used if it cannot connect
+                                    if (ClientBulk.isEnabled(myRepo, theirRepo))
+                                    {
+                                        context.clientBulk = new ClientBulk(cfg, myRepo, theirRepo, false);
+                                        if (!context.clientBulk.startClient())
+                                            context.clientBulk = null;
+                                    }
+
                                     // start the serveStty client for automation
                                     context.clientStty = new ClientStty(cfg, false, false);
                                     if (!context.clientStty.connect(myRepo, theirRepo))
@@ -422,7 +414,7 @@ public class Daemon extends DaemonBase
                 // -------------- quit, bye, exit ---------------------------
                 if (theCommand.equalsIgnoreCase("quit") || theCommand.equalsIgnoreCase("bye") || theCommand.equalsIgnoreCase("exit"))
                 {
-                    Utils.write(out, myKey, "End-Execution");
+                    Utils.write(out, cipher, "End-Execution");
                     stop = true;
                     break; // break the loop
                 }
@@ -489,6 +481,7 @@ public class Daemon extends DaemonBase
                     if (authorized)
                     {
                         response += "  find [text] = search collection for all matching text, use collection command to refresh\r\n" +
+                                "  more = next page of find results\r\n" +
                                 "  get [text] = like find but offers the option to get/copy the listed items in overwrite mode\r\n" +
                                 "  status = server and console status information\r\n" +
                                 "\r\n" + "" +
@@ -517,7 +510,7 @@ public class Daemon extends DaemonBase
                 stop = true;
                 try
                 {
-                    Utils.write(out, myKey, e.getMessage());
+                    Utils.write(out, cipher, e.getMessage());
                 }
                 catch (Exception ex) {}
                 break;
@@ -538,11 +531,62 @@ public class Daemon extends DaemonBase
             out.close();
             in.close();
 
-            Runtime.getRuntime().exit(0);
+            // other publishers and terminals may still be connected or waiting
+            ServeStty serveStty = ServeStty.getInstance();
+            if (serveStty == null || serveStty.isLastConnection())
+                Runtime.getRuntime().exit(0);
         }
 
     } // process
 
+    /**
+     * Format the next page of find results
+     *
+     * @return String of up to PAGE_SIZE results
+     */
+    private String nextPage()
+    {
+        if (results.isEmpty())
+            return "No results found, try collection command if refresh is needed\r\n";
+
+        StringBuilder page = new StringBuilder();
+        String library = null;
+        int end = Math.min(resultsPosition + PAGE_SIZE, results.size());
+        for (; resultsPosition < end; ++resultsPosition)
+        {
+            Item item = results.get(resultsPosition);
+            if (!item.getLibrary().equals(library))
+            {
+                library = item.getLibrary();
+                page.append("  In library: ").append(library).append("\r\n");
+            }
+            page.append("    ").append(item.getItemPath()).append("\r\n");
+        }
+        page.append("  ").append(end).append(" of ").append(results.size()).append(" results");
+        page.append(end < results.size() ? ", use more for the next page\r\n" : "\r\n");
+        return page.toString();
+    }
+
+    /**
+     * Search the collection using the trigram index of each library
+     *
+     * @param text The text to find, not case sensitive
+     * @return List of matching items in library order
+     */
+    private List<Item> search(String text) throws MungerException
+    {
+        List<Item> matches = new ArrayList<>();
+        for (Library subLib : myRepo.getLibraryData().libraries.bibliography)
+        {
+            if (subLib.items == null)
+            {
+                subLib = myRepo.scan(subLib.name);
+            }
+            matches.addAll(myRepo.getItemIndex(subLib).find(text));
+        }
+        return matches;
+    }
+
     public String remainingTokens(StringTokenizer t)
     {
         String result = "";
@@ -1,25 +1,42 @@
 package com.groksoft.els.stty.subscriber;
 
+import com.google.gson.Gson;
 import com.groksoft.els.Configuration;
 import com.groksoft.els.Main;
 import com.groksoft.els.MungerException;
 import com.groksoft.els.Utils;
+import com.groksoft.els.repository.CollectionLog;
 import com.groksoft.els.repository.Library;
 import com.groksoft.els.repository.Repository;
+import com.groksoft.els.sftp.BatchArchive;
+import com.groksoft.els.sftp.FileSystemAccessor;
+import com.groksoft.els.storage.Storage;
+import com.groksoft.els.storage.Target;
+import com.groksoft.els.stty.ChunkedOutputStream;
+import com.groksoft.els.stty.CollectionCache;
 import com.groksoft.els.stty.DaemonBase;
 import com.groksoft.els.stty.ServeStty;
+import com.groksoft.els.stty.SttyCipher;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Subscriber Daemon service.
@@ -32,9 +49,15 @@ public class Daemon extends DaemonBase
 {
     protected static Logger logger = LogManager.getLogger("applog");
 
+    public static final String[] FILE_COMMANDS = {"hash", "mkdirs", "preallocate", "unpack"};
+    public static final int PIPELINE_THREADS = 8;
+
     private Main.Context context;
     private boolean fault = false;
+    private List<Future<?>> inflight = new ArrayList<>();
     private boolean isTerminal = false;
+    private List<Path> roots = null;
+    private ExecutorService workers = null;
 
     /**
      * Instantiate the Daemon service
@@ -59,6 +82,220 @@ public class Daemon extends DaemonBase
         return data;
     } // dumpStatistics
 
+    /**
+     * Execute a command that does not depend on the session state
+     * <p>
+     * These are the commands a publisher may pipeline.
+     *
+     * @param theCommand The command name
+     * @param t          Tokenizer positioned after the command name
+     * @param line       The whole command line
+     * @return String response, or null if the command is not one of these
+     */
+    private String execute(String theCommand, StringTokenizer t, String line)
+    {
+        // commands that touch files need an automated session or authorization
+        if (isTerminal && !authorized)
+        {
+            for (String command : FILE_COMMANDS)
+            {
+                if (theCommand.equalsIgnoreCase(command))
+                    return "not authorized\r\n";
+            }
+        }
+
+        // -------------- hash a range of a file -------------------
+        if (theCommand.equalsIgnoreCase("hash"))
+        {
+            String response = (isTerminal ? "hash command requires an offset, length and location\r\n" : "error");
+            if (t.countTokens() >= 3)
+            {
+                try
+                {
+                    long offset = Long.parseLong(t.nextToken());
+                    long length = Long.parseLong(t.nextToken());
+                    String location = t.nextToken("").trim();
+                    if (resolve(location) == null)
+                        return (isTerminal ? "location not allowed\r\n" : "error location not allowed");
+                    String hash = Utils.hashRange(location, offset, length);
+                    response = (isTerminal ? hash + "\r\n" : "ok " + hash);
+                }
+                catch (NumberFormatException e)
+                {
+                    logger.error("Invalid hash range: " + line);
+                }
+                catch (IOException e)
+                {
+                    logger.error("Hash failed: " + e.getMessage());
+                    response = (isTerminal ? "hash failed: " + e.getMessage() + "\r\n" : "error " + e.getMessage());
+                }
+            }
+            return response;
+        }
+
+        // -------------- make a directory tree ---------------------
+        if (theCommand.equalsIgnoreCase("mkdirs"))
+        {
+            String location = (t.hasMoreTokens() ? t.nextToken("").trim() : "");
+            if (location.length() > 0)
+            {
+                Path path = resolve(location);
+                if (path == null)
+                    return (isTerminal ? "location not allowed\r\n" : "error location not allowed");
+                try
+                {
+                    Files.createDirectories(path);
+                    return (isTerminal ? "created " + location + "\r\n" : "ok");
+                }
+                catch (Exception e)
+                {
+                    logger.error("Mkdirs " + location + " failed: " + e.getMessage());
+                    return (isTerminal ? "mkdirs failed: " + e.getMessage() + "\r\n" : "error " + e.getMessage());
+                }
+            }
+            return (isTerminal ? "mkdirs command requires a location\r\n" : "error no location");
+        }
+
+        // -------------- preallocate next sftp upload --------------
+        if (theCommand.equalsIgnoreCase("preallocate"))
+        {
+            String response = (isTerminal ? "preallocate command requires a size and location\r\n" : "error");
+            if (t.hasMoreTokens())
+            {
+                try
+                {
+                    long size = Long.parseLong(t.nextToken());
+                    String location = (t.hasMoreTokens() ? t.nextToken("").trim() : "");
+                    Path path = resolve(location);
+                    if (location.length() > 0 && path == null)
+                    {
+                        response = (isTerminal ? "location not allowed\r\n" : "error location not allowed");
+                    }
+                    else if (location.length() > 0)
+                    {
+                        // space is checked when the sftp upload opens the file
+                        FileSystemAccessor.expect(path, size);
+                        response = (isTerminal ? "preallocating " + location + "\r\n" : "ok");
+                    }
+                }
+                catch (NumberFormatException e)
+                {
+                    logger.error("Invalid preallocate size: " + line);
+                }
+            }
+            return response;
+        }
+
+        // -------------- available disk space ----------------------
+        if (theCommand.equalsIgnoreCase("space"))
+        {
+            // one or more locations separated by |, answered in order
+            String locations = (t.hasMoreTokens() ? t.nextToken("").trim() : "");
+            if (locations.length() < 1)
+                return (isTerminal ? "space command requires a location\r\n" : "0");
+            StringBuilder response = new StringBuilder();
+            for (String location : locations.split("\\|"))
+            {
+                long space = Utils.availableSpace(location.trim());
+                if (response.length() > 0)
+                    response.append(isTerminal ? "\r\n" : " ");
+                response.append(isTerminal ? Utils.formatLong(space) : String.valueOf(space));
+            }
+            return response.toString();
+        }
+
+        // -------------- return targets file -----------------------
+        if (theCommand.equalsIgnoreCase("targets"))
+        {
+            try
+            {
+                return new String(Files.readAllBytes(Paths.get(cfg.getTargetsFilename())));
+            }
+            catch (Exception e)
+            {
+                logger.error(e.getMessage());
+            }
+            return "";
+        }
+
+        // -------------- unpack a batch of small files -------------
+        if (theCommand.equalsIgnoreCase("unpack"))
+        {
+            String location = (t.hasMoreTokens() ? t.nextToken("").trim() : "");
+            if (location.length() > 0)
+            {
+                Path path = resolve(location);
+                if (path == null)
+                    return (isTerminal ? "location not allowed\r\n" : "error location not allowed");
+                try
+                {
+                    // the count then the position of each file unpacked, so the rest can be sent again
+                    List<Integer> unpacked = BatchArchive.unpack(path, to -> resolve(to.toString()) != null);
+                    StringBuilder positions = new StringBuilder();
+                    for (Integer position : unpacked)
+                    {
+                        if (positions.length() > 0)
+                            positions.append(",");
+                        positions.append(position);
+                    }
+                    return "ok " + unpacked.size() + (unpacked.isEmpty() ? "" : " " + positions);
+                }
+                catch (Exception e)
+                {
+                    logger.error("Unpack " + location + " failed: " + e.getMessage());
+                    return "error " + e.getMessage();
+                }
+            }
+            return (isTerminal ? "unpack command requires a location\r\n" : "error no location");
+        }
+
+        return null;
+    } // execute
+
+    /**
+     * Get the directories the publisher may write in
+     * <p>
+     * The sources of the subscriber's libraries and the locations of its
+     * targets file, if one is used.
+     */
+    private synchronized List<Path> getRoots()
+    {
+        if (roots == null)
+        {
+            List<Path> found = new ArrayList<>();
+            for (Library lib : myRepo.getLibraryData().libraries.bibliography)
+            {
+                if (lib.sources != null)
+                {
+                    for (String source : lib.sources)
+                        found.add(Paths.get(source).toAbsolutePath().normalize());
+                }
+            }
+            if (cfg.getTargetsFilename().length() > 0 && Files.exists(Paths.get(cfg.getTargetsFilename())))
+            {
+                try
+                {
+                    Storage storage = new Storage();
+                    storage.read(cfg.getTargetsFilename(), myRepo.getLibraryData().libraries.flavor);
+                    for (Target target : storage.getTargetData().targets.storage)
+                    {
+                        if (target.locations != null)
+                        {
+                            for (String location : target.locations)
+                                found.add(Paths.get(location).toAbsolutePath().normalize());
+                        }
+                    }
+                }
+                catch (MungerException e)
+                {
+                    logger.error("Targets cannot be read to check locations: " + e.getMessage());
+                }
+            }
+            roots = found;
+        }
+        return roots;
+    }
+
     /**
      * Get the short name of the service.
      *
@@ -74,19 +311,20 @@ public class Daemon extends DaemonBase
         boolean valid = false;
         try
         {
-            Utils.write(out, myKey, "HELO");
+            cipher = SttyCipher.accept(in, out, myKey);
+            Utils.write(out, cipher, "HELO");
 
-            String input = Utils.read(in, myKey);
+            String input = Utils.read(in, cipher);
             if (input.equals("DribNit") || input.equals("DribNlt"))
             {
                 isTerminal = input.equals("DribNit");
-                Utils.write(out, myKey, myKey);
+                Utils.write(out, cipher, myKey);
 
-                input = Utils.read(in, myKey);
+                input = Utils.read(in, cipher);
                 if (input.equals(theirKey))
                 {
                     // send my flavor
-                    Utils.write(out, myKey, myRepo.getLibraryData().libraries.flavor);
+                    Utils.write(out, cipher, myRepo.getLibraryData().libraries.flavor);
 
                     logger.info("Authenticated " + (isTerminal ? "terminal" : "automated") + " session: " + theirRepo.getLibraryData().libraries.description);
                     valid = true;
@@ -101,6 +339,67 @@ public class Daemon extends DaemonBase
         return valid;
     } // handshake
 
+    /**
+     * Resolve a location sent by the publisher
+     *
+     * @param location The location
+     * @return Path normalized, or null if outside the library sources and targets
+     */
+    private Path resolve(String location)
+    {
+        try
+        {
+            Path path = Paths.get(location).toAbsolutePath().normalize();
+            for (Path root : getRoots())
+            {
+                if (path.startsWith(root))
+                    return path;
+            }
+        }
+        catch (InvalidPathException e)
+        {
+            // refused below
+        }
+        logger.error("Refused location outside the libraries and targets: " + location);
+        return null;
+    }
+
+    /**
+     * Run a pipelined "#id command" on a worker, answered "#id response"
+     */
+    private void pipeline(String line)
+    {
+        int space = line.indexOf(' ');
+        String tag = (space > 0) ? line.substring(0, space) : line;
+        String command = (space > 0) ? line.substring(space + 1).trim() : "";
+        inflight.removeIf(Future::isDone);
+        inflight.add(workers.submit(() ->
+        {
+            StringTokenizer t = new StringTokenizer(command);
+            String answer = null;
+            try
+            {
+                if (t.hasMoreTokens())
+                    answer = execute(t.nextToken(), t, command);
+                if (answer == null)
+                    answer = "error not a pipelined command: " + command;
+            }
+            catch (Exception e)
+            {
+                logger.error("Pipelined " + command + " failed: " + e.getMessage());
+                answer = "error " + e.getMessage();
+            }
+            try
+            {
+                Utils.write(out, cipher, tag + " " + answer);
+            }
+            catch (Exception e)
+            {
+                logger.error("Could not answer pipelined " + command + ": " + e.getMessage());
+            }
+        }));
+    } // pipeline
+
     /**
      * Process a connection request to the Daemon service.
      * <p>
@@ -115,6 +414,7 @@ public class Daemon extends DaemonBase
         String line;
         String basePrompt = ": ";
         String prompt = basePrompt;
+        boolean tagged = false;
         boolean tout = false;
 
         // setup i/o
@@ -151,6 +451,15 @@ public class Daemon extends DaemonBase
                 {
                     response = response + ":RequestTargets";
                 }
+
+                // stateless commands may be pipelined and run concurrently
+                response = response + ":Pipeline";
+                workers = Executors.newFixedThreadPool(PIPELINE_THREADS, runnable ->
+                {
+                    Thread thread = new Thread(runnable, "Daemon.Pipeline:" + address.getHostAddress() + ":" + port);
+                    thread.setDaemon(true);
+                    return thread;
+                });
             }
         }
 
@@ -160,14 +469,15 @@ public class Daemon extends DaemonBase
             try
             {
                 // prompt the user for a command
-                if (!tout)
+                if (!tout && !tagged)
                 {
-                    Utils.write(out, myKey, response + (isTerminal ? prompt : ""));
+                    Utils.write(out, cipher, response + (isTerminal ? prompt : ""));
                 }
                 tout = false;
+                tagged = false;
                 response = "";
 
-                line = Utils.read(in, myKey);
+                line = Utils.read(in, cipher);
                 if (line == null)
                 {
                     logger.info("EOF line");
@@ -183,6 +493,21 @@ public class Daemon extends DaemonBase
 
                 logger.info("Processing command: " + line);
 
+                if (workers != null)
+                {
+                    if (line.startsWith("#"))
+                    {
+                        pipeline(line);
+                        tagged = true; // a worker answers
+                        continue;
+                    }
+
+                    // other commands wait so their replies are not mixed with pipelined ones
+                    for (Future<?> pending : inflight)
+                        pending.get();
+                    inflight.clear();
+                }
+
                 // parse the command
                 StringTokenizer t = new StringTokenizer(line);
                 if (!t.hasMoreTokens())
@@ -219,28 +544,76 @@ public class Daemon extends DaemonBase
                 // -------------- return collection file --------------------
                 if (theCommand.equalsIgnoreCase("collection"))
                 {
-                    try
+                    // automated sessions stream it in chunks instead of one message,
+                    // only the changes if they have a cached collection of this epoch,
+                    // or nothing if theirs has the same tag
+                    String mode = t.hasMoreTokens() ? t.nextToken() : "";
+                    if (!isTerminal && (mode.equalsIgnoreCase("stream") || mode.equalsIgnoreCase("since")))
                     {
-                        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
-                        LocalDateTime now = LocalDateTime.now();
-                        String stamp = dtf.format(now);
-
-                        String location = myRepo.getJsonFilename() + "_collection-generated-" + stamp + ".json";
-                        cfg.setExportCollectionFilename(location);
-
-                        for (Library subLib : myRepo.getLibraryData().libraries.bibliography)
+                        ChunkedOutputStream chunks = null;
+                        try
                         {
-                            if (subLib.items != null)
+                            CollectionCache.Snapshot snapshot = CollectionCache.getInstance(myRepo).get(true);
+                            CollectionLog versions = CollectionLog.getInstance();
+                            String tag = snapshot.getHash();
+                            CollectionLog.Delta delta = null;
+                            String sent;
+                            if (mode.equalsIgnoreCase("since") && t.countTokens() >= 2)
                             {
-                                subLib.items = null; // clear any existing data
+                                String epoch = t.nextToken();
+                                long since = Long.parseLong(t.nextToken());
+                                if (t.hasMoreTokens() && t.nextToken().equals(tag))
+                                    sent = "same";
+                                else
+                                {
+                                    delta = versions.getDelta(epoch, since);
+                                    sent = (delta != null) ? "delta" : "full";
+                                }
+                            }
+                            else
+                            {
+                                sent = "full";
                             }
-                            myRepo.scan(subLib.name);
-                        }
 
-                        // otherwise it must be -S so do not scan
-                        myRepo.exportItems();
+                            long bytes = 0L;
+                            if (sent.equals("full"))
+                            {
+                                snapshot.send(out, cipher);
+                                bytes = snapshot.getLength();
+                            }
+                            else
+                            {
+                                chunks = new ChunkedOutputStream(out, cipher);
+                                if (delta != null)
+                                {
+                                    Writer writer = new OutputStreamWriter(chunks, StandardCharsets.UTF_8);
+                                    new Gson().toJson(delta, writer);
+                                    writer.flush();
+                                    logger.info("Sending " + delta.changes.size() + " collection changes, generation " + snapshot.getGeneration());
+                                }
+                                else
+                                {
+                                    logger.info("Collection is not modified, tag " + tag);
+                                }
+                                chunks.finish();
+                                bytes = chunks.getTotal();
+                            }
+                            response = "ok " + bytes + " " + sent + " " + versions.getEpoch() + " " + snapshot.getGeneration() + " " + tag;
+                        }
+                        catch (MungerException | NumberFormatException e)
+                        {
+                            logger.error(e.getMessage());
+                            response = "error " + e.getMessage();
+                            if (chunks == null)
+                                chunks = new ChunkedOutputStream(out, cipher);
+                            chunks.finish();
+                        }
+                        continue;
+                    }
 
-                        response = new String(Files.readAllBytes(Paths.get(location)));
+                    try
+                    {
+                        response = CollectionCache.getInstance(myRepo).get(true, true).toJson();
                     }
                     catch (MungerException e)
                     {
@@ -249,6 +622,13 @@ public class Daemon extends DaemonBase
                     continue;
                 }
 
+                String answer = execute(theCommand, t, line);
+                if (answer != null)
+                {
+                    response = answer;
+                    continue;
+                }
+
                 // -------------- logout ------------------------------------
                 if (theCommand.equalsIgnoreCase("logout"))
                 {
@@ -268,32 +648,15 @@ public class Daemon extends DaemonBase
                 // -------------- quit, bye, exit ---------------------------
                 if (theCommand.equalsIgnoreCase("quit") || theCommand.equalsIgnoreCase("bye") || theCommand.equalsIgnoreCase("exit"))
                 {
-                    Utils.write(out, myKey, "End-Execution");
+                    Utils.write(out, cipher, "End-Execution");
                     stop = true;
                     break; // break the loop
                 }
 
-                // -------------- available disk space ----------------------
-                if (theCommand.equalsIgnoreCase("space"))
+                // -------------- keep an idle session open ----------------
+                if (theCommand.equalsIgnoreCase("ping"))
                 {
-                    String location = "";
-                    if (t.hasMoreTokens())
-                    {
-                        location = t.nextToken();
-                        long space = Utils.availableSpace(location);
-                        if (isTerminal)
-                        {
-                            response = Utils.formatLong(space);
-                        }
-                        else
-                        {
-                            response = String.valueOf(space);
-                        }
-                    }
-                    else
-                    {
-                        response = (isTerminal ? "space command requires a location\r\n" : "0");
-                    }
+                    response = (isTerminal ? "ok\r\n" : "ok");
                     continue;
                 }
 
@@ -308,20 +671,8 @@ public class Daemon extends DaemonBase
                     {
                         response = ServeStty.getInstance().dumpStatistics();
                         response += dumpStatistics();
-                    }
-                    continue;
-                }
-
-                // -------------- return targets file -----------------------
-                if (theCommand.equalsIgnoreCase("targets"))
-                {
-                    try
-                    {
-                        response = new String(Files.readAllBytes(Paths.get(cfg.getTargetsFilename())));
-                    }
-                    catch (Exception e)
-                    {
-                        logger.error(e.getMessage());
+                        if (context.serveSftp != null)
+                            response += context.serveSftp.dumpStatistics();
                     }
                     continue;
                 }
@@ -334,14 +685,19 @@ public class Daemon extends DaemonBase
 
                     if (authorized)
                     {
-                        response += "  status = server and console status information\r\n" +
+                        response += "  hash [offset] [length] [location] = SHA-256 of a range of a file\r\n" +
+                                "  mkdirs [location] = make a directory and any missing parents\r\n" +
+                                "  preallocate [size] [location] = reserve space for the next sftp upload of location\r\n" +
+                                "  status = server and console status information\r\n" +
+                                "  unpack [location] = unpack a batch of small files uploaded by sftp\r\n" +
                                 "\r\n" + "" +
                                 " And:\r\n";
                     }
 
                     response += "  auth [password] = access Authorized commands\r\n" +
                             "  collection = get collection data from remote, can take a few moments to scan\r\n" +
-                            "  space [location] = free space at location on remote\r\n" +
+                            "  ping = keep an idle session open\r\n" +
+                            "  space [location|...] = free space at each location on remote\r\n" +
                             "  targets = get targets file from remote\r\n" +
                             "\r\n  help or ? = this list\r\n" +
                             "  logout = exit current level\r\n" +
@@ -361,13 +717,16 @@ public class Daemon extends DaemonBase
                 stop = true;
                 try
                 {
-                    Utils.write(out, myKey, e.getMessage());
+                    Utils.write(out, cipher, e.getMessage());
                 }
                 catch (Exception ex) {}
                 break;
             }
         } // while
 
+        if (workers != null)
+            workers.shutdown();
+
         if (stop)
         {
             // all done, close everything
@@ -382,7 +741,10 @@ public class Daemon extends DaemonBase
             out.close();
             in.close();
 
-            Runtime.getRuntime().exit(0);
+            // other publishers and terminals may still be connected or waiting
+            ServeStty serveStty = ServeStty.getInstance();
+            if (serveStty == null || serveStty.isLastConnection())
+                Runtime.getRuntime().exit(0);
         }
 
     } // process
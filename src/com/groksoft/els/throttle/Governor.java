@@ -0,0 +1,356 @@
+package com.groksoft.els.throttle;
+
+import com.google.gson.Gson;
+import com.groksoft.els.MungerException;
+import com.groksoft.els.Utils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Global I/O governor
+ * <p>
+ * All disk and network paths draw from the token buckets of the device and link
+ * they use: directory scans take one operation per entry, copies and sftp
+ * transfers take one token per byte. Limits come from a JSON throttle file and
+ * may change with time-of-day profiles, so a back-up can run during the day at
+ * a reserved rate.
+ * <p>
+ * When no throttle file is used the governor is inactive and every call returns
+ * immediately.
+ */
+public class Governor
+{
+    public static final int CHUNK_SIZE = 256 * 1024; // throttled transfer size, keeps waits short
+
+    private static Governor instance = null;
+
+    private transient Logger logger = LogManager.getLogger("applog");
+    private volatile boolean active = false;
+    private volatile List<Limiter> devices = Collections.emptyList(); // replaced whole, not changed
+    private String jsonFilename = "";
+    private volatile long lastMinute = -1L;
+    private volatile List<Limiter> links = Collections.emptyList();
+
+    /**
+     * A device or link and its buckets
+     */
+    private static class Limiter
+    {
+        TokenBucket bytes;
+        TokenBucket operations;
+        Rule rule;
+
+        Limiter(Rule rule)
+        {
+            this.rule = rule;
+            this.bytes = new TokenBucket(0L);
+            this.operations = new TokenBucket(0L);
+        }
+    }
+
+    private Governor()
+    {
+        // hide default constructor
+    }
+
+    /**
+     * Get this instance
+     *
+     * @return Governor singleton
+     */
+    public static synchronized Governor getInstance()
+    {
+        if (instance == null)
+            instance = new Governor();
+        return instance;
+    }
+
+    /**
+     * Take bytes from the device holding a path
+     *
+     * @param path  Local path being read or written
+     * @param bytes Number of bytes
+     */
+    public void acquireBytes(String path, long bytes)
+    {
+        if (active)
+        {
+            Limiter limiter = findDevice(path);
+            if (limiter != null)
+                limiter.bytes.acquire(bytes);
+        }
+    }
+
+    /**
+     * Take bytes from a network link
+     *
+     * @param host  Host name or address of the other end
+     * @param bytes Number of bytes
+     */
+    public void acquireLink(String host, long bytes)
+    {
+        if (active)
+        {
+            Limiter limiter = findLink(host);
+            if (limiter != null)
+                limiter.bytes.acquire(bytes);
+        }
+    }
+
+    /**
+     * Take one file system operation from the device holding a path
+     *
+     * @param path Local path being examined
+     */
+    public void acquireOperation(String path)
+    {
+        if (active)
+        {
+            Limiter limiter = findDevice(path);
+            if (limiter != null)
+                limiter.operations.acquire(1L);
+        }
+    }
+
+    /**
+     * Apply the default or time-of-day limits, checked once a minute
+     */
+    private void applyProfiles()
+    {
+        long minute = System.currentTimeMillis() / 60000L;
+        if (minute == lastMinute)
+            return;
+        synchronized (this)
+        {
+            if (minute == lastMinute)
+                return;
+            LocalTime now = LocalTime.now();
+            for (Limiter limiter : devices)
+                applyProfile(limiter, now);
+            for (Limiter limiter : links)
+                applyProfile(limiter, now);
+            lastMinute = minute;
+        }
+    }
+
+    /**
+     * Apply the limits for one device or link
+     */
+    private void applyProfile(Limiter limiter, LocalTime now)
+    {
+        String rate = limiter.rule.rate;
+        String operations = limiter.rule.operations;
+        if (limiter.rule.profiles != null)
+        {
+            for (Profile profile : limiter.rule.profiles)
+            {
+                if (isWithin(profile, now))
+                {
+                    if (profile.rate != null)
+                        rate = profile.rate;
+                    if (profile.operations != null)
+                        operations = profile.operations;
+                    break;
+                }
+            }
+        }
+        long bytes = parseRate(rate);
+        long ops = parseRate(operations);
+        if (bytes != limiter.bytes.getRate() || ops != limiter.operations.getRate())
+        {
+            logger.info("Throttle " + limiter.rule.name + " set to " + (bytes > 0 ? Utils.formatLong(bytes) + "/s" : "unlimited") +
+                    ", " + (ops > 0 ? ops + " operations/s" : "unlimited operations"));
+        }
+        limiter.bytes.setRate(bytes);
+        limiter.operations.setRate(ops);
+    }
+
+    /**
+     * Find the device with the longest path prefix matching a path
+     */
+    private Limiter findDevice(String path)
+    {
+        applyProfiles();
+        Limiter found = null;
+        int length = -1;
+        boolean ignoreCase = (File.separatorChar == '\\');
+        for (Limiter limiter : devices)
+        {
+            for (String prefix : limiter.rule.match)
+            {
+                if (prefix.length() > length && path.regionMatches(ignoreCase, 0, prefix, 0, prefix.length()))
+                {
+                    found = limiter;
+                    length = prefix.length();
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Find the link matching a host
+     */
+    private Limiter findLink(String host)
+    {
+        applyProfiles();
+        if (host == null)
+            host = "localhost";
+        for (Limiter limiter : links)
+        {
+            for (String name : limiter.rule.match)
+            {
+                if (name.equalsIgnoreCase(host))
+                    return limiter;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets JSON filename
+     *
+     * @return the JSON filename
+     */
+    public String getJsonFilename()
+    {
+        return jsonFilename;
+    }
+
+    /**
+     * Is the governor limiting anything?
+     *
+     * @return true if a throttle file has been read
+     */
+    public boolean isActive()
+    {
+        return active;
+    }
+
+    /**
+     * Is a time within a profile?
+     */
+    private boolean isWithin(Profile profile, LocalTime now)
+    {
+        LocalTime from = LocalTime.parse(profile.from);
+        LocalTime to = LocalTime.parse(profile.to);
+        if (from.isBefore(to))
+            return !now.isBefore(from) && now.isBefore(to);
+        return !now.isBefore(from) || now.isBefore(to); // wraps past midnight
+    }
+
+    /**
+     * Parse a rate that is either scaled, e.g. 40MB, or a plain number
+     *
+     * @return long per second, 0 is unlimited
+     */
+    private long parseRate(String value)
+    {
+        if (value == null || value.trim().length() == 0)
+            return 0L;
+        long rate = Utils.getScaledValue(value);
+        if (rate < 0)
+            rate = Long.parseLong(value.trim());
+        return Math.max(rate, 0L);
+    }
+
+    /**
+     * Read and validate a throttle file, then activate the governor
+     *
+     * @param filename The JSON throttle filename
+     * @throws MungerException
+     */
+    public synchronized void read(String filename) throws MungerException
+    {
+        ThrottleData data;
+        try
+        {
+            Gson gson = new Gson();
+            logger.info("Reading Throttle file " + filename);
+            jsonFilename = filename;
+            String json = new String(Files.readAllBytes(Paths.get(filename)));
+            data = gson.fromJson(json, ThrottleData.class);
+        }
+        catch (IOException ioe)
+        {
+            throw new MungerException("Exception while reading throttle: " + filename + " trace: " + Utils.getStackTrace(ioe));
+        }
+
+        validate(data);
+
+        // new lists so transfers finding a limiter never see them part built
+        List<Limiter> newDevices = new ArrayList<>();
+        List<Limiter> newLinks = new ArrayList<>();
+        if (data.throttle.devices != null)
+        {
+            for (Rule rule : data.throttle.devices)
+                newDevices.add(new Limiter(rule));
+        }
+        if (data.throttle.links != null)
+        {
+            for (Rule rule : data.throttle.links)
+                newLinks.add(new Limiter(rule));
+        }
+        devices = Collections.unmodifiableList(newDevices);
+        links = Collections.unmodifiableList(newLinks);
+        lastMinute = -1L;
+        applyProfiles();
+        active = true;
+    }
+
+    /**
+     * Validate the throttle data
+     *
+     * @throws MungerException
+     */
+    private void validate(ThrottleData data) throws MungerException
+    {
+        if (data == null || data.throttle == null)
+            throw new MungerException("throttle must be defined in " + jsonFilename);
+
+        List<Rule> rules = new ArrayList<>();
+        if (data.throttle.devices != null)
+            rules.addAll(Arrays.asList(data.throttle.devices));
+        if (data.throttle.links != null)
+            rules.addAll(Arrays.asList(data.throttle.links));
+
+        for (int i = 0; i < rules.size(); ++i)
+        {
+            Rule rule = rules.get(i);
+            if (rule.name == null || rule.name.length() == 0)
+                throw new MungerException("throttle rule [" + i + "] name must be defined");
+            if (rule.match == null || rule.match.length == 0)
+                throw new MungerException("throttle rule " + rule.name + " match must be defined");
+            try
+            {
+                parseRate(rule.rate);
+                parseRate(rule.operations);
+                if (rule.profiles != null)
+                {
+                    for (Profile profile : rule.profiles)
+                    {
+                        LocalTime.parse(profile.from);
+                        LocalTime.parse(profile.to);
+                        parseRate(profile.rate);
+                        parseRate(profile.operations);
+                    }
+                }
+            }
+            catch (Exception e)
+            {
+                throw new MungerException("throttle rule " + rule.name + " has an invalid rate or time: " + e.getMessage());
+            }
+        }
+    }
+
+}
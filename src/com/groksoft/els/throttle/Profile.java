@@ -0,0 +1,30 @@
+package com.groksoft.els.throttle;
+
+/**
+ * The type Profile.
+ * <p>
+ * Limits for part of the day. A from time later than the to time wraps
+ * past midnight.
+ */
+public class Profile
+{
+    /**
+     * The start time, HH:mm.
+     */
+    public String from;
+
+    /**
+     * The end time, HH:mm, exclusive.
+     */
+    public String to;
+
+    /**
+     * The bytes per second during this profile.
+     */
+    public String rate;
+
+    /**
+     * The operations per second during this profile.
+     */
+    public String operations;
+}
@@ -0,0 +1,36 @@
+package com.groksoft.els.throttle;
+
+/**
+ * The type Rule.
+ * <p>
+ * A limit for one device or network link.
+ */
+public class Rule
+{
+    /**
+     * The rule Name.
+     */
+    public String name;
+
+    /**
+     * The path prefixes of a device, or the host names/addresses of a link.
+     */
+    public String[] match;
+
+    /**
+     * The default bytes per second, scaled like storage minimum, e.g. 40MB.
+     * Empty or 0 is unlimited.
+     */
+    public String rate;
+
+    /**
+     * The default file system operations per second, e.g. directory entry stats.
+     * Empty or 0 is unlimited.
+     */
+    public String operations;
+
+    /**
+     * The time-of-day Profiles that override the defaults.
+     */
+    public Profile[] profiles;
+}
@@ -0,0 +1,22 @@
+package com.groksoft.els.throttle;
+
+/**
+ * The type Throttle.
+ */
+public class Throttle
+{
+    /**
+     * The Description of this set of limits.
+     */
+    public String description;
+
+    /**
+     * The Device limits, matched by path.
+     */
+    public Rule[] devices;
+
+    /**
+     * The Link limits, matched by host.
+     */
+    public Rule[] links;
+}
@@ -0,0 +1,14 @@
+package com.groksoft.els.throttle;
+
+/**
+ * The type Throttle data.
+ * <p>
+ * An "anonymous" outer class for GSON to read the JSON.
+ */
+public class ThrottleData
+{
+    /**
+     * The Throttle.
+     */
+    public Throttle throttle;
+}
@@ -0,0 +1,91 @@
+package com.groksoft.els.throttle;
+
+/**
+ * Token bucket rate limiter
+ * <p>
+ * Tokens accrue at the rate per second up to one second of burst. A caller
+ * takes what it needs and, if that puts the bucket in debt, sleeps until the
+ * debt would be repaid. Large requests are therefore allowed but paid for.
+ */
+public class TokenBucket
+{
+    private long last;
+    private long rate = 0L;
+    private double tokens = 0.0;
+
+    /**
+     * Instantiate a bucket
+     *
+     * @param rate Tokens per second, 0 is unlimited
+     */
+    public TokenBucket(long rate)
+    {
+        setRate(rate);
+    }
+
+    /**
+     * Take tokens, waiting if necessary
+     *
+     * @param amount Number of tokens
+     */
+    public void acquire(long amount)
+    {
+        long wait = 0L;
+        synchronized (this)
+        {
+            if (rate <= 0 || amount <= 0)
+                return;
+            refill();
+            tokens -= amount;
+            if (tokens < 0)
+                wait = (long) ((-tokens * 1000.0) / rate);
+        }
+        if (wait > 0)
+        {
+            try
+            {
+                Thread.sleep(wait);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Get the current rate
+     *
+     * @return long tokens per second, 0 is unlimited
+     */
+    public synchronized long getRate()
+    {
+        return rate;
+    }
+
+    /**
+     * Add tokens for the time elapsed since the last call
+     */
+    private void refill()
+    {
+        long now = System.nanoTime();
+        tokens = Math.min((double) rate, tokens + ((now - last) / 1000000000.0) * rate);
+        last = now;
+    }
+
+    /**
+     * Change the rate, e.g. when a time-of-day profile starts
+     *
+     * @param rate Tokens per second, 0 is unlimited
+     */
+    public synchronized void setRate(long rate)
+    {
+        if (rate != this.rate)
+        {
+            this.rate = Math.max(rate, 0L);
+            this.tokens = this.rate;
+            this.last = System.nanoTime();
+        }
+    }
+
+}